@@ -0,0 +1,69 @@
+package com.metratec.lib.connection;
+
+/*******************************************************************************
+ * Copyright (c) 2023 by metraTec GmbH
+ * All rights reserved.
+ *******************************************************************************/
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Write and read throughput of the downstream buffer of the {@link MpsTunnelConnection}. The chunk
+ * size does not divide the buffer size, so the wrap around is included.
+ *
+ * @author man
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CircularBufferBenchmark {
+  @Param({"48", "1000"})
+  public int chunkSize;
+
+  private MpsTunnelConnection.CircularBuffer buffer;
+  private byte[] chunk;
+  private byte[] readBuffer;
+
+  @Setup
+  public void setup() {
+    MpsTunnelConnection tunnel = new MpsTunnelConnection(new MemoryConnection(new byte[] {'\r'}));
+    buffer = tunnel.new CircularBuffer(100 * 1024);
+    chunk = new byte[chunkSize];
+    for (int i = 0; i < chunk.length; i++) {
+      chunk[i] = (byte) i;
+    }
+    readBuffer = new byte[chunkSize];
+  }
+
+  @Benchmark
+  public byte[] writeReadBlock() throws IOException {
+    buffer.write(chunk);
+    buffer.read(readBuffer, 0, readBuffer.length);
+    return readBuffer;
+  }
+
+  @Benchmark
+  public byte[] writeReadPerByte() throws IOException {
+    buffer.write(chunk);
+    for (int i = 0; i < readBuffer.length; i++) {
+      readBuffer[i] = (byte) buffer.read();
+    }
+    return readBuffer;
+  }
+}
@@ -0,0 +1,82 @@
+package com.metratec.lib.connection;
+
+/*******************************************************************************
+ * Copyright (c) 2023 by metraTec GmbH
+ * All rights reserved.
+ *******************************************************************************/
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.metratec.lib.connection.server.ClientConnectionListener;
+import com.metratec.lib.connection.server.SocketServer;
+
+/**
+ * Command/response transactions with a {@link TcpConnection} over loopback. A {@link SocketServer}
+ * answers every REV command like a reader, so the measured time is the round trip through the
+ * network stack and both connection implementations.
+ *
+ * @author man
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoopbackTcpBenchmark {
+  private static final byte[] REVISION = "DeskID_ISO 0103\r".getBytes();
+
+  private SocketServer server;
+  private TcpConnection connection;
+
+  @Setup
+  public void setup() throws CommConnectionException {
+    server = new SocketServer();
+    server.start(0, 1, InetAddress.getLoopbackAddress(), new ClientConnectionListener() {
+      @Override
+      public void clientConnected(ICommConnection client) {
+        try {
+          while (client.isConnected()) {
+            client.receive('\r');
+            client.send(REVISION);
+          }
+        } catch (CommConnectionException e) {
+          // client gone
+        }
+      }
+
+      @Override
+      public void serverError(IOException e) {
+        e.printStackTrace();
+      }
+    });
+    connection = new TcpConnection("127.0.0.1", server.getPort());
+    connection.connect();
+  }
+
+  @TearDown
+  public void tearDown() throws CommConnectionException {
+    connection.disconnect();
+    server.stop();
+  }
+
+  @Benchmark
+  public StringBuilder transaction() throws CommConnectionException {
+    connection.send("REV\r");
+    return connection.receive('\r');
+  }
+}
@@ -0,0 +1,119 @@
+package com.metratec.lib.connection;
+
+/*******************************************************************************
+ * Copyright (c) 2023 by metraTec GmbH
+ * All rights reserved.
+ *******************************************************************************/
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Hashtable;
+
+/**
+ * In-memory connection for the benchmarks. Receiving returns the given data over and over again,
+ * sent data is dropped. Only {@link #recv()} and {@link #dataAvailable()} are implemented, so the
+ * receive methods of {@link ICommConnection} are measured without any transport overhead.
+ *
+ * @author man
+ */
+public class MemoryConnection extends ICommConnection {
+  private final byte[] data;
+  private final OutputStream outputStream = new OutputStream() {
+    @Override
+    public void write(int b) {
+      // dropped
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      // dropped
+    }
+  };
+  private int position = 0;
+  private boolean connected = false;
+  private int recvTimeout = 1000;
+  private int connectionTimeout = 1000;
+
+  /**
+   * @param data the data to receive repeatedly
+   */
+  public MemoryConnection(byte[] data) {
+    this.data = data;
+  }
+
+  @Override
+  public void connect() throws CommConnectionException {
+    connected = true;
+  }
+
+  @Override
+  public void disconnect() throws CommConnectionException {
+    connected = false;
+  }
+
+  @Override
+  public void send(byte[] senddata) throws CommConnectionException {
+    // dropped
+  }
+
+  @Override
+  public int recv() throws CommConnectionException {
+    int c = data[position] & 0xFF;
+    if (++position == data.length) {
+      position = 0;
+    }
+    return c;
+  }
+
+  @Override
+  public int dataAvailable() throws CommConnectionException {
+    return data.length - position;
+  }
+
+  @Override
+  public boolean isConnected() {
+    return connected;
+  }
+
+  @Override
+  public Hashtable<String, Object> getInfo() {
+    Hashtable<String, Object> info = new Hashtable<>();
+    info.put("type", "Memory");
+    return info;
+  }
+
+  @Override
+  public void setSettings(Hashtable<String, String> settings) {
+    // nothing to set
+  }
+
+  @Override
+  public InputStream getInputStream() {
+    return null;
+  }
+
+  @Override
+  public OutputStream getOutputStream() {
+    return outputStream;
+  }
+
+  @Override
+  public void setRecvTimeout(int timeout) throws CommConnectionException {
+    recvTimeout = timeout;
+  }
+
+  @Override
+  public int getRecvTimeout() {
+    return recvTimeout;
+  }
+
+  @Override
+  public void setConnectionTimeout(int timeout) {
+    connectionTimeout = timeout;
+  }
+
+  @Override
+  public int getConnectionTimeout() {
+    return connectionTimeout;
+  }
+}
@@ -0,0 +1,64 @@
+package com.metratec.lib.connection;
+
+/*******************************************************************************
+ * Copyright (c) 2023 by metraTec GmbH
+ * All rights reserved.
+ *******************************************************************************/
+
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.bind.DatatypeConverter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Hexadecimal coding of the MPS tunnel frames through the real tunnel streams. Sending encodes a
+ * BINXT command and waits for the BINXT OK of the in-memory master, receiving decodes a BINXR line
+ * into the downstream buffer and reads it back. Both use the maximum frame size of 96 bytes.
+ *
+ * @author man
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MpsCodecBenchmark {
+  private MpsTunnelConnection sendTunnel;
+  private MpsTunnelConnection recvTunnel;
+  private byte[] frame;
+  private byte[] readBuffer;
+
+  @Setup
+  public void setup() {
+    sendTunnel = new MpsTunnelConnection(new MemoryConnection("BINXT OK\r".getBytes()));
+    frame = new byte[sendTunnel.getMaxFrameSize()];
+    for (int i = 0; i < frame.length; i++) {
+      frame[i] = (byte) (i * 31);
+    }
+    String binxr = "BINXR " + DatatypeConverter.printHexBinary(frame) + "\r";
+    recvTunnel = new MpsTunnelConnection(new MemoryConnection(binxr.getBytes()));
+    readBuffer = new byte[frame.length];
+  }
+
+  @Benchmark
+  public void sendBinxt() throws CommConnectionException {
+    sendTunnel.send(frame);
+  }
+
+  @Benchmark
+  public byte[] recvBinxr() throws CommConnectionException {
+    recvTunnel.recv(readBuffer, 0, readBuffer.length);
+    return readBuffer;
+  }
+}
@@ -0,0 +1,80 @@
+package com.metratec.lib.connection;
+
+/*******************************************************************************
+ * Copyright (c) 2023 by metraTec GmbH
+ * All rights reserved.
+ *******************************************************************************/
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Receive paths of {@link ICommConnection} on an in-memory connection: terminated responses with
+ * {@link ICommConnection#receive(int...)} and {@link FrameReader}, fixed length blocks with
+ * {@link ICommConnection#recv(byte[], int, int)} and with a per-byte {@link ICommConnection#recv()}
+ * loop.
+ *
+ * @author man
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReceiveBenchmark {
+  /** length of a response including the terminator */
+  @Param({"16", "256"})
+  public int responseLength;
+
+  private ICommConnection connection;
+  private FrameReader frameReader;
+  private byte[] block;
+
+  @Setup
+  public void setup() throws CommConnectionException {
+    byte[] response = new byte[responseLength];
+    Arrays.fill(response, (byte) 'A');
+    response[responseLength - 1] = '\r';
+    connection = new MemoryConnection(response);
+    connection.connect();
+    frameReader = new FrameReader(connection, '\r');
+    block = new byte[responseLength];
+  }
+
+  @Benchmark
+  public StringBuilder receive() throws CommConnectionException {
+    return connection.receive('\r');
+  }
+
+  @Benchmark
+  public int frameReader() throws CommConnectionException {
+    return frameReader.readFrame();
+  }
+
+  @Benchmark
+  public byte[] recvBlock() throws CommConnectionException {
+    connection.recv(block, 0, block.length);
+    return block;
+  }
+
+  @Benchmark
+  public byte[] recvPerByte() throws CommConnectionException {
+    for (int i = 0; i < block.length; i++) {
+      block[i] = (byte) connection.recv();
+    }
+    return block;
+  }
+}
@@ -0,0 +1,64 @@
+package com.metratec.lib.connection;
+
+/*******************************************************************************
+ * Copyright (c) 2023 by metraTec GmbH
+ * All rights reserved.
+ *******************************************************************************/
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing of the responses to the UDP discovery broadcasts of {@link UdpConnection}, without the
+ * network and the reachability check.
+ *
+ * @author man
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UdpParseBenchmark {
+  private byte[] metratecResponse;
+  private byte[] lantronixResponse;
+  private InetAddress source;
+
+  @Setup
+  public void setup() throws UnknownHostException {
+    source = InetAddress.getByAddress(new byte[] {(byte) 192, (byte) 168, 2, (byte) 239});
+
+    metratecResponse = new byte[64];
+    byte[] mac = {0x00, 0x20, 0x4A, (byte) 0xB1, 0x2C, 0x3D};
+    System.arraycopy(mac, 0, metratecResponse, 10, mac.length);
+    byte[] name = "DeskID_ISO 0001".getBytes();
+    System.arraycopy(name, 0, metratecResponse, 17, name.length);
+
+    lantronixResponse = new byte[30];
+    lantronixResponse[3] = (byte) 0xF7;
+    System.arraycopy(mac, 0, lantronixResponse, 24, mac.length);
+  }
+
+  @Benchmark
+  public EthernetDevice parseMetratec() {
+    return UdpConnection.parseMetratecResponse(metratecResponse, source);
+  }
+
+  @Benchmark
+  public EthernetDevice parseLantronix() {
+    return UdpConnection.parseLantronixResponse(lantronixResponse, source);
+  }
+}
@@ -5,8 +5,6 @@ package com.metratec.lib.connection;
  * All rights reserved.
  *******************************************************************************/
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -15,6 +13,8 @@ import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.util.Hashtable;
 
 import org.slf4j.Logger;
@@ -32,13 +32,14 @@ public abstract class AbstractTcpConnection extends ICommConnection {
   private String ipAddress = null;
   private int port = 0;
   /** output stream */
-  private OutputStream outputstream = null;
-  /** output stream */
-  private InputStream inputstream = null;
+  private PooledOutputStream outputstream = null;
+  /** input stream */
+  private PooledInputStream inputstream = null;
   // protected boolean _init = false;
   private int recvTimeout = 2000;
   private int connectTimeout = 1000;
   private boolean isServerConnection = false;
+  private boolean tcpNoDelay = true;
 
   /**
    * Construct a new instance, with the given parameters.
@@ -78,6 +79,8 @@ public abstract class AbstractTcpConnection extends ICommConnection {
     ipAddress = socket.getInetAddress().getHostAddress();
     port = socket.getPort();
     try {
+      /* keep the setting of the caller's socket */
+      tcpNoDelay = socket.getTcpNoDelay();
       initializeSocket();
     } catch (IOException e) {
       throw new CommConnectionException(ICommConnection.NOT_INITIALISED, e.getMessage());
@@ -98,9 +101,12 @@ public abstract class AbstractTcpConnection extends ICommConnection {
         } catch (IOException | UnsupportedOperationException e1) {
           logger.trace("{} input shutdown warning - {}", this.toString(), e1.getMessage());
         }
+        InputStream in = inputstream;
+        OutputStream out = outputstream;
         inputstream = null;
         outputstream = null;
         socket.close();
+        releaseStreams(in, out);
       } catch (IOException e) {
         throw new CommConnectionException(UNHANDLED_ERROR, e.getMessage());
       }
@@ -147,8 +153,9 @@ public abstract class AbstractTcpConnection extends ICommConnection {
 
   private void initializeSocket() throws IOException {
     socket.setSoTimeout(recvTimeout);
-    outputstream = new BufferedOutputStream(socket.getOutputStream());
-    inputstream = new BufferedInputStream(socket.getInputStream());
+    socket.setTcpNoDelay(tcpNoDelay);
+    outputstream = new PooledOutputStream(socket.getOutputStream(), STREAM_BUFFER_SIZE);
+    inputstream = new PooledInputStream(socket.getInputStream(), STREAM_BUFFER_SIZE);
   }
 
   /**
@@ -247,6 +254,51 @@ public abstract class AbstractTcpConnection extends ICommConnection {
     }
   }
 
+  @Override
+  public int recvAvailable(byte[] b, int off, int len) throws CommConnectionException {
+    if (len <= 0) {
+      return 0;
+    }
+    try {
+      int count = inputstream.read(b, off, len);
+      if (count < 0) {
+        try {
+          disconnect();
+        } catch (CommConnectionException e) {
+          if (logger.isDebugEnabled()) {
+            String message = this.toString() + " error disconnect " + e.getMessage();
+            if (logger.isTraceEnabled()) {
+              logger.trace(message, e);
+            } else {
+              logger.debug(message);
+            }
+          }
+        }
+        throw new CommConnectionException(CONNECTION_LOST, "socket closed");
+      }
+      return count;
+    } catch (NullPointerException e) {
+      throw new CommConnectionException(NOT_INITIALISED, "not initialize");
+    } catch (SocketTimeoutException e) {
+      // means no Data Available
+      return -1;
+    } catch (IOException e) {
+      try {
+        disconnect();
+      } catch (CommConnectionException e1) {
+        if (logger.isDebugEnabled()) {
+          String message = this.toString() + " error disconnect " + e.getMessage();
+          if (logger.isTraceEnabled()) {
+            logger.trace(message, e);
+          } else {
+            logger.debug(message);
+          }
+        }
+      }
+      throw new CommConnectionException(CONNECTION_LOST, e.getMessage());
+    }
+  }
+
   @Override
   public void setRecvTimeout(int timeout) throws CommConnectionException {
     recvTimeout = timeout;
@@ -259,11 +311,172 @@ public abstract class AbstractTcpConnection extends ICommConnection {
     }
   }
 
+  /**
+   * Enables or disables TCP_NODELAY (the Nagle algorithm) on the socket. It is enabled by default
+   * for the sockets created by {@link #connect()}, as every send() is flushed as one complete
+   * command; commands that should share a segment are written with
+   * {@link #sendNoFlush(byte[], int, int)} and sent with {@link #flush()} instead. A connection
+   * created from a given socket keeps the setting of that socket.
+   *
+   * @param tcpNoDelay true to send data immediately, false to let the operating system coalesce
+   *        small segments
+   * @throws CommConnectionException if the option can not be set on the connected socket, error code
+   *         {@link ICommConnection#SET_CONFIGURATION}
+   */
+  public void setTcpNoDelay(boolean tcpNoDelay) throws CommConnectionException {
+    this.tcpNoDelay = tcpNoDelay;
+    if (isConnected()) {
+      try {
+        socket.setTcpNoDelay(tcpNoDelay);
+      } catch (SocketException e) {
+        throw new CommConnectionException(SET_CONFIGURATION, e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * @return true if TCP_NODELAY is enabled
+   */
+  public boolean isTcpNoDelay() {
+    return tcpNoDelay;
+  }
+
+  @Override
+  public int read(ByteBuffer dst) throws CommConnectionException {
+    SocketChannel channel = null == socket ? null : socket.getChannel();
+    try {
+      if (null == channel || !dst.hasRemaining() || inputstream.buffered() > 0
+          || inputstream.available() == 0) {
+        /*
+         * The socket channel does not support a receive timeout, so wait for new data (and consume
+         * buffered data) using the input stream.
+         */
+        return super.read(dst);
+      }
+      int count = channel.read(dst);
+      if (count < 0) {
+        throw new IOException("socket closed");
+      }
+      return count;
+    } catch (NullPointerException e) {
+      throw new CommConnectionException(NOT_INITIALISED, "not initialize");
+    } catch (CommConnectionException e) {
+      throw e;
+    } catch (IOException e) {
+      try {
+        disconnect();
+      } catch (CommConnectionException e1) {
+        if (logger.isDebugEnabled()) {
+          String message = this.toString() + " error disconnect " + e.getMessage();
+          if (logger.isTraceEnabled()) {
+            logger.trace(message, e);
+          } else {
+            logger.debug(message);
+          }
+        }
+      }
+      throw new CommConnectionException(CONNECTION_LOST, e.getMessage());
+    }
+  }
+
   @Override
   public void send(byte[] senddata) throws CommConnectionException {
+    if (null == senddata) {
+      throw new CommConnectionException(WRONG_PARAMETER, "data are null");
+    }
+    send(senddata, 0, senddata.length);
+  }
+
+  @Override
+  public void send(ByteBuffer src) throws CommConnectionException {
+    SocketChannel channel = null == socket ? null : socket.getChannel();
+    if (null == channel || null == src) {
+      super.send(src);
+      return;
+    }
+    try {
+      // data written by the output stream must be sent first
+      outputstream.flush();
+      flushed();
+      while (src.hasRemaining()) {
+        channel.write(src);
+      }
+    } catch (NullPointerException e) {
+      throw new CommConnectionException(NOT_INITIALISED, "not initialize");
+    } catch (IOException e) {
+      try {
+        disconnect();
+      } catch (CommConnectionException e1) {
+        if (logger.isDebugEnabled()) {
+          String message = this.toString() + " error disconnect " + e.getMessage();
+          if (logger.isTraceEnabled()) {
+            logger.trace(message, e);
+          } else {
+            logger.debug(message);
+          }
+        }
+      }
+      throw new CommConnectionException(CONNECTION_LOST, e.getMessage());
+    }
+  }
+
+  @Override
+  public void send(ByteBuffer... parts) throws CommConnectionException {
+    SocketChannel channel = null == socket ? null : socket.getChannel();
+    if (null == channel) {
+      sendBuffered(parts);
+      return;
+    }
+    long length = remaining(parts);
     try {
-      outputstream.write(senddata);
+      // data written by the output stream must be sent first
       outputstream.flush();
+      flushed();
+      while (length > 0) {
+        length -= channel.write(parts);
+      }
+    } catch (NullPointerException e) {
+      throw new CommConnectionException(NOT_INITIALISED, "not initialize");
+    } catch (IOException e) {
+      try {
+        disconnect();
+      } catch (CommConnectionException e1) {
+        if (logger.isDebugEnabled()) {
+          String message = this.toString() + " error disconnect " + e.getMessage();
+          if (logger.isTraceEnabled()) {
+            logger.trace(message, e);
+          } else {
+            logger.debug(message);
+          }
+        }
+      }
+      throw new CommConnectionException(CONNECTION_LOST, e.getMessage());
+    }
+  }
+
+  @Override
+  public void send(byte[] senddata, int off, int len) throws CommConnectionException {
+    write(senddata, off, len, true);
+  }
+
+  @Override
+  public void sendNoFlush(byte[] senddata, int off, int len) throws CommConnectionException {
+    write(senddata, off, len, false);
+  }
+
+  @Override
+  public void flush() throws CommConnectionException {
+    write(NO_DATA, 0, 0, true);
+  }
+
+  private void write(byte[] senddata, int off, int len, boolean flush)
+      throws CommConnectionException {
+    try {
+      outputstream.write(senddata, off, len);
+      if (flush || unflushed(len)) {
+        outputstream.flush();
+        flushed();
+      }
     } catch (NullPointerException e) {
       if (senddata == null) {
         throw new CommConnectionException(WRONG_PARAMETER, "data are null");
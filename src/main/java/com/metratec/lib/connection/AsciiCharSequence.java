@@ -0,0 +1,168 @@
+package com.metratec.lib.connection;
+
+/*******************************************************************************
+ * Copyright (c) 2023 by metraTec GmbH
+ * All rights reserved.
+ *******************************************************************************/
+
+/**
+ * A {@link CharSequence} view of bytes in a byte array, every byte is one ISO-8859-1 (and so ASCII)
+ * character. The bytes are not copied, so the view is only valid as long as the array region is not
+ * overwritten. Views returned by the library are reused for the next response, use
+ * {@link #toString()} to keep the text.
+ *
+ * @author man
+ */
+public class AsciiCharSequence implements CharSequence {
+  private byte[] bytes;
+  private int offset;
+  private int length;
+
+  /**
+   * Creates an empty view.
+   */
+  public AsciiCharSequence() {
+    this(new byte[0], 0, 0);
+  }
+
+  /**
+   * @param bytes the byte array
+   * @param offset the offset of the first character
+   * @param length the number of characters
+   */
+  public AsciiCharSequence(byte[] bytes, int offset, int length) {
+    set(bytes, offset, length);
+  }
+
+  /**
+   * Moves the view to another array region.
+   *
+   * @param bytes the byte array
+   * @param offset the offset of the first character
+   * @param length the number of characters
+   * @return this view
+   */
+  public AsciiCharSequence set(byte[] bytes, int offset, int length) {
+    if (offset < 0 || length < 0 || offset + length > bytes.length) {
+      throw new IndexOutOfBoundsException("offset " + offset + ", length " + length);
+    }
+    this.bytes = bytes;
+    this.offset = offset;
+    this.length = length;
+    return this;
+  }
+
+  @Override
+  public int length() {
+    return length;
+  }
+
+  @Override
+  public char charAt(int index) {
+    if (index < 0 || index >= length) {
+      throw new IndexOutOfBoundsException("index " + index);
+    }
+    return (char) (bytes[offset + index] & 0xFF);
+  }
+
+  /**
+   * @return a new view of the same bytes
+   */
+  @Override
+  public AsciiCharSequence subSequence(int start, int end) {
+    if (start < 0 || end > length || start > end) {
+      throw new IndexOutOfBoundsException("start " + start + ", end " + end);
+    }
+    return new AsciiCharSequence(bytes, offset + start, end - start);
+  }
+
+  /**
+   * @param prefix the prefix
+   * @return true if the text starts with the prefix
+   */
+  public boolean startsWith(CharSequence prefix) {
+    return regionMatches(0, prefix);
+  }
+
+  /**
+   * @param suffix the suffix
+   * @return true if the text ends with the suffix
+   */
+  public boolean endsWith(CharSequence suffix) {
+    return regionMatches(length - suffix.length(), suffix);
+  }
+
+  /**
+   * @param text the text to compare
+   * @return true if the text is the same
+   */
+  public boolean contentEquals(CharSequence text) {
+    return text.length() == length && regionMatches(0, text);
+  }
+
+  /**
+   * @param start the start index
+   * @param text the text to compare
+   * @return true if the text at the start index is the same as the given text
+   */
+  public boolean regionMatches(int start, CharSequence text) {
+    int len = text.length();
+    if (start < 0 || start + len > length) {
+      return false;
+    }
+    for (int i = 0; i < len; i++) {
+      if ((bytes[offset + start + i] & 0xFF) != text.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @param c the character
+   * @param fromIndex the index to start from
+   * @return the index of the first occurrence of the character or -1
+   */
+  public int indexOf(char c, int fromIndex) {
+    for (int i = Math.max(0, fromIndex); i < length; i++) {
+      if ((bytes[offset + i] & 0xFF) == c) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Parses a decimal or hexadecimal number without creating a String.
+   *
+   * @param start the index of the first digit
+   * @param end the index after the last digit
+   * @param radix 10 or 16
+   * @return the number
+   * @throws NumberFormatException if the region is empty or contains other characters
+   */
+  public int parseInt(int start, int end, int radix) {
+    if (start < 0 || end > length || start >= end) {
+      throw new NumberFormatException("empty number");
+    }
+    boolean negative = charAt(start) == '-';
+    int i = negative ? start + 1 : start;
+    if (i == end) {
+      throw new NumberFormatException("empty number");
+    }
+    int value = 0;
+    for (; i < end; i++) {
+      int digit = Character.digit(charAt(i), radix);
+      if (digit < 0) {
+        throw new NumberFormatException("invalid digit '" + charAt(i) + "'");
+      }
+      value = value * radix + digit;
+    }
+    return negative ? -value : value;
+  }
+
+  @Override
+  public String toString() {
+    return new String(bytes, offset, length, ICommConnection.ISO_8859_1);
+  }
+}
@@ -0,0 +1,28 @@
+package com.metratec.lib.connection;
+
+/*******************************************************************************
+ * Copyright (c) 2023 by metraTec GmbH
+ * All rights reserved.
+ *******************************************************************************/
+
+/**
+ * Callback for the operations of an {@link AsyncConnection}. The methods are called on the I/O
+ * thread that executed the operation, so they should return quickly.
+ *
+ * @param <T> the result type of the operation
+ */
+public interface AsyncCallback<T> {
+  /**
+   * Called if the operation has finished successfully.
+   *
+   * @param result the result of the operation
+   */
+  void completed(T result);
+
+  /**
+   * Called if the operation has failed or its deadline has expired (RECV_TIMEOUT).
+   *
+   * @param e the error
+   */
+  void failed(CommConnectionException e);
+}
@@ -0,0 +1,390 @@
+package com.metratec.lib.connection;
+
+/*******************************************************************************
+ * Copyright (c) 2023 by metraTec GmbH
+ * All rights reserved.
+ *******************************************************************************/
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Asynchronous facade for an {@link ICommConnection}.
+ *
+ * The operations are executed on a shared, bounded I/O executor, so a single thread pool can drive
+ * many connections. Operations of one AsyncConnection are executed one after another in the order
+ * they were submitted, but never block a pool thread while waiting in the queue. Every operation
+ * has a deadline, which is measured from the submission. An operation whose deadline has expired
+ * before it could start fails with RECV_TIMEOUT, a started receive fails with RECV_TIMEOUT when the
+ * deadline expires, even if the device is still sending.
+ *
+ * The results are returned as {@link Future}, the {@link ExecutionException} thrown by
+ * {@link Future#get()} holds the {@link CommConnectionException}. Optionally an
+ * {@link AsyncCallback} is notified on completion.
+ *
+ * The connection must not be used directly while asynchronous operations are pending.
+ *
+ * @author man
+ */
+public class AsyncConnection {
+  private static final Logger logger = LoggerFactory.getLogger(AsyncConnection.class);
+  private static Executor defaultExecutor = null;
+
+  private final ICommConnection connection;
+  private final Executor executor;
+  private final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+  private boolean running = false;
+  private int operationTimeout = 0;
+
+  private final Runnable drainer = new Runnable() {
+    @Override
+    public void run() {
+      Runnable task;
+      synchronized (tasks) {
+        task = tasks.poll();
+        if (null == task) {
+          running = false;
+          return;
+        }
+      }
+      try {
+        task.run();
+      } finally {
+        /* give the other connections on the executor a chance before running the next task */
+        schedule();
+      }
+    }
+  };
+
+  /**
+   * Creates an asynchronous facade using the shared default executor.
+   *
+   * @param connection the connection
+   */
+  public AsyncConnection(ICommConnection connection) {
+    this(connection, getDefaultExecutor());
+  }
+
+  /**
+   * Creates an asynchronous facade.
+   *
+   * @param connection the connection
+   * @param executor the executor running the I/O operations, may be shared by several connections
+   */
+  public AsyncConnection(ICommConnection connection, Executor executor) {
+    this.connection = connection;
+    this.executor = executor;
+  }
+
+  /**
+   * Returns the shared default executor. It has at most twice as many threads as processors (but at
+   * least 4), idle threads are terminated after a minute.
+   *
+   * @return the shared default executor
+   */
+  public static synchronized Executor getDefaultExecutor() {
+    if (null == defaultExecutor) {
+      int threads = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+      ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+          new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+              Thread thread = new Thread(r, "AsyncConnection-" + count.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            }
+          });
+      pool.allowCoreThreadTimeOut(true);
+      defaultExecutor = pool;
+    }
+    return defaultExecutor;
+  }
+
+  /**
+   * Sets the shared default executor used by AsyncConnections created afterwards.
+   *
+   * @param executor the new default executor
+   */
+  public static synchronized void setDefaultExecutor(Executor executor) {
+    defaultExecutor = executor;
+  }
+
+  /**
+   * @return the timeout of an operation in milliseconds, 0 means the receive timeout of the
+   *         connection
+   */
+  public int getOperationTimeout() {
+    return operationTimeout;
+  }
+
+  /**
+   * @param timeout the timeout of an operation in milliseconds, 0 means the receive timeout of the
+   *        connection
+   */
+  public void setOperationTimeout(int timeout) {
+    operationTimeout = timeout;
+  }
+
+  /**
+   * @return the connection
+   */
+  public ICommConnection getConnection() {
+    return connection;
+  }
+
+  /**
+   * Sends data to the connected device.
+   *
+   * @param data the data to send
+   * @return the pending operation
+   */
+  public Future<Void> sendAsync(byte[] data) {
+    return sendAsync(data, getDefaultTimeout(), null);
+  }
+
+  /**
+   * Sends a string to the connected device.
+   *
+   * @param data the string to send
+   * @return the pending operation
+   */
+  public Future<Void> sendAsync(String data) {
+    return sendAsync(data.getBytes(ICommConnection.ISO_8859_1), getDefaultTimeout(), null);
+  }
+
+  /**
+   * Sends data to the connected device.
+   *
+   * @param data the data to send
+   * @param timeout the deadline for the start of the operation, in milliseconds from now
+   * @param callback callback notified on completion, may be null
+   * @return the pending operation
+   */
+  public Future<Void> sendAsync(final byte[] data, int timeout,
+      AsyncCallback<Void> callback) {
+    final long deadline = deadline(timeout);
+    return submit(new Callable<Void>() {
+      @Override
+      public Void call() throws CommConnectionException {
+        remaining(deadline);
+        connection.send(data);
+        return null;
+      }
+    }, callback);
+  }
+
+  /**
+   * Receives data from the connected device until one of the terminator signs is found.
+   *
+   * @param terminators A list of terminator signs. Note that this may be a list of parameters or an
+   *        array.
+   * @return the pending operation, its result includes the termination sign
+   */
+  public Future<String> receiveAsync(int... terminators) {
+    return receiveAsync(getDefaultTimeout(), null, terminators);
+  }
+
+  /**
+   * Receives data from the connected device until one of the terminator signs is found.
+   *
+   * @param timeout the deadline of the operation, in milliseconds from now
+   * @param callback callback notified on completion, may be null
+   * @param terminators A list of terminator signs. Note that this may be a list of parameters or an
+   *        array.
+   * @return the pending operation, its result includes the termination sign
+   */
+  public Future<String> receiveAsync(int timeout, AsyncCallback<String> callback,
+      final int... terminators) {
+    final long deadline = deadline(timeout);
+    return submit(new Callable<String>() {
+      @Override
+      public String call() throws CommConnectionException {
+        return receive(deadline, terminators);
+      }
+    }, callback);
+  }
+
+  /**
+   * Sends a command and receives the response.
+   *
+   * @param command the command to send
+   * @param terminators the terminator signs of the response
+   * @return the pending operation, its result includes the termination sign
+   */
+  public Future<String> transactAsync(String command, int... terminators) {
+    return transactAsync(command, getDefaultTimeout(), null, terminators);
+  }
+
+  /**
+   * Sends a command and receives the response.
+   *
+   * @param command the command to send
+   * @param timeout the deadline of the whole transaction, in milliseconds from now
+   * @param callback callback notified on completion, may be null
+   * @param terminators the terminator signs of the response
+   * @return the pending operation, its result includes the termination sign
+   */
+  public Future<String> transactAsync(final String command, int timeout,
+      AsyncCallback<String> callback, final int... terminators) {
+    final long deadline = deadline(timeout);
+    return submit(new Callable<String>() {
+      @Override
+      public String call() throws CommConnectionException {
+        remaining(deadline);
+        connection.send(command);
+        return receive(deadline, terminators);
+      }
+    }, callback);
+  }
+
+  private int getDefaultTimeout() {
+    return operationTimeout > 0 ? operationTimeout : connection.getRecvTimeout();
+  }
+
+  private static long deadline(int timeout) {
+    return System.nanoTime() + timeout * 1000000L;
+  }
+
+  /**
+   * @return the remaining time until the deadline in milliseconds
+   * @throws CommConnectionException RECV_TIMEOUT if the deadline has expired
+   */
+  private static int remaining(long deadline) throws CommConnectionException {
+    long remaining = (deadline - System.nanoTime()) / 1000000;
+    if (remaining <= 0) {
+      throw new CommConnectionException(ICommConnection.RECV_TIMEOUT, "Deadline expired");
+    }
+    return (int) Math.min(remaining, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Receives like {@link ICommConnection#receive(int...)}, but checks the deadline between the
+   * bytes. The receive timeout of the connection is only changed if it would exceed the remaining
+   * time, and then to half of the remaining time, so it is reconfigured a few times per operation
+   * at most and never per byte.
+   */
+  private String receive(long deadline, int[] terminators) throws CommConnectionException {
+    int timeout = connection.getRecvTimeout();
+    int recvTimeout = timeout;
+    StringBuilder data = new StringBuilder();
+    try {
+      while (true) {
+        long remaining = (deadline - System.nanoTime()) / 1000000;
+        if (remaining <= 0) {
+          throw data.length() == 0 ? CommConnectionException.recvTimeout()
+              : new CommConnectionException(ICommConnection.RECV_TIMEOUT, data.toString());
+        }
+        if (recvTimeout <= 0 || recvTimeout > remaining) {
+          recvTimeout = (int) Math.min(Math.max(1, remaining / 2), Integer.MAX_VALUE);
+          connection.setRecvTimeout(recvTimeout);
+        }
+        int c = connection.recv();
+        if (c < 0) {
+          /* the receive timeout expired before the deadline, check the deadline again */
+          continue;
+        }
+        data.append((char) c);
+        for (int terminator : terminators) {
+          if (terminator == c) {
+            return data.toString();
+          }
+        }
+      }
+    } finally {
+      if (recvTimeout != timeout) {
+        connection.setRecvTimeout(timeout);
+      }
+    }
+  }
+
+  private <T> Future<T> submit(Callable<T> callable, AsyncCallback<T> callback) {
+    Operation<T> operation = new Operation<T>(callable, callback);
+    synchronized (tasks) {
+      tasks.add(operation);
+      if (running) {
+        return operation;
+      }
+      running = true;
+    }
+    schedule();
+    return operation;
+  }
+
+  private void schedule() {
+    synchronized (tasks) {
+      if (tasks.isEmpty()) {
+        running = false;
+        return;
+      }
+    }
+    try {
+      executor.execute(drainer);
+    } catch (RejectedExecutionException e) {
+      logger.debug("{} executor rejected operations - {}", connection, e.getMessage());
+      Runnable task;
+      synchronized (tasks) {
+        running = false;
+        task = tasks.poll();
+      }
+      /* cancel everything queued, the executor will not run it */
+      while (null != task) {
+        ((Future<?>) task).cancel(false);
+        synchronized (tasks) {
+          task = tasks.poll();
+        }
+      }
+    }
+  }
+
+  /**
+   * An operation notifying its callback on completion.
+   */
+  private static class Operation<T> extends FutureTask<T> {
+    private final AsyncCallback<T> callback;
+
+    Operation(Callable<T> callable, AsyncCallback<T> callback) {
+      super(callable);
+      this.callback = callback;
+    }
+
+    @Override
+    protected void done() {
+      if (null == callback) {
+        return;
+      }
+      T result;
+      try {
+        result = get();
+      } catch (CancellationException e) {
+        callback.failed(new CommConnectionException(ICommConnection.UNHANDLED_ERROR,
+            "Operation cancelled"));
+        return;
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        callback.failed(cause instanceof CommConnectionException ? (CommConnectionException) cause
+            : new CommConnectionException(ICommConnection.UNHANDLED_ERROR, cause.toString()));
+        return;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+      callback.completed(result);
+    }
+  }
+}
@@ -0,0 +1,297 @@
+package com.metratec.lib.connection;
+
+/*******************************************************************************
+ * Copyright (c) 2023 by metraTec GmbH
+ * All rights reserved.
+ *******************************************************************************/
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A pool of byte arrays for I/O buffers, shared by all connections of the library, so the memory
+ * used for buffers stays flat when many connections are opened, or idle.
+ *
+ * The arrays are pooled in power of two size classes from 256 bytes to 1 MB, an acquired array may
+ * be larger than requested. Larger arrays are allocated and not pooled. A small cache per thread
+ * serves most acquire/release pairs without locking, the shared pool holds at most
+ * {@link #getMaxPooledBytes()} bytes, further released arrays are left to the garbage collector.
+ *
+ * Every acquired array must be released exactly once and must not be used after the release. With
+ * leak detection enabled (system property <code>com.metratec.lib.connection.leakDetection</code>
+ * or {@link #setLeakDetection(boolean)}), arrays which are garbage collected without a release are
+ * logged with the stack trace of their acquisition, arrays released twice with the stack trace of
+ * the release.
+ *
+ * @author man
+ */
+public class BufferPool {
+  private static final Logger logger = LoggerFactory.getLogger(BufferPool.class);
+  private static final int MIN_SHIFT = 8;
+  private static final int MAX_SHIFT = 20;
+  /** arrays up to this size are cached per thread */
+  private static final int THREAD_CACHE_MAX_SIZE = 16 * 1024;
+  /** arrays per size class cached per thread */
+  private static final int THREAD_CACHE_SIZE = 2;
+
+  private static final BufferPool DEFAULT = new BufferPool(4 * 1024 * 1024,
+      Boolean.getBoolean("com.metratec.lib.connection.leakDetection"));
+
+  private final SizeClass[] sizeClasses = new SizeClass[MAX_SHIFT - MIN_SHIFT + 1];
+  private final AtomicLong pooledBytes = new AtomicLong();
+  private volatile long maxPooledBytes;
+  private final ThreadLocal<byte[][][]> threadCache = new ThreadLocal<byte[][][]>() {
+    @Override
+    protected byte[][][] initialValue() {
+      return new byte[shift(THREAD_CACHE_MAX_SIZE) - MIN_SHIFT + 1][THREAD_CACHE_SIZE][];
+    }
+  };
+  private volatile LeakDetector leakDetector;
+
+  /**
+   * @param maxPooledBytes the maximum number of bytes held by the shared pool
+   * @param leakDetection true to enable the leak detection
+   */
+  public BufferPool(long maxPooledBytes, boolean leakDetection) {
+    this.maxPooledBytes = maxPooledBytes;
+    for (int i = 0; i < sizeClasses.length; i++) {
+      sizeClasses[i] = new SizeClass();
+    }
+    setLeakDetection(leakDetection);
+  }
+
+  /**
+   * @return the pool used by the connections of the library
+   */
+  public static BufferPool getDefault() {
+    return DEFAULT;
+  }
+
+  /**
+   * Acquires an array.
+   *
+   * @param size the minimum size
+   * @return an array of at least the given size, its content is undefined
+   */
+  public byte[] acquire(int size) {
+    int shift = shift(size);
+    byte[] b = null;
+    if (shift <= MAX_SHIFT) {
+      b = poll(shift);
+    }
+    if (null == b) {
+      b = new byte[shift <= MAX_SHIFT ? 1 << shift : size];
+    }
+    LeakDetector detector = leakDetector;
+    if (null != detector) {
+      detector.acquired(b);
+    }
+    return b;
+  }
+
+  /**
+   * Releases an array acquired from this pool. Arrays of other sizes than the size classes are
+   * ignored.
+   *
+   * @param b the array, may be null
+   */
+  public void release(byte[] b) {
+    if (null == b) {
+      return;
+    }
+    LeakDetector detector = leakDetector;
+    if (null != detector && !detector.released(b)) {
+      return;
+    }
+    int shift = shift(b.length);
+    if (shift > MAX_SHIFT || b.length != 1 << shift) {
+      return;
+    }
+    if (b.length <= THREAD_CACHE_MAX_SIZE) {
+      byte[][] cache = threadCache.get()[shift - MIN_SHIFT];
+      for (int i = 0; i < cache.length; i++) {
+        if (null == cache[i]) {
+          cache[i] = b;
+          return;
+        }
+      }
+    }
+    if (pooledBytes.addAndGet(b.length) > maxPooledBytes) {
+      pooledBytes.addAndGet(-b.length);
+      return;
+    }
+    SizeClass sizeClass = sizeClasses[shift - MIN_SHIFT];
+    synchronized (sizeClass) {
+      sizeClass.arrays.push(b);
+    }
+  }
+
+  private byte[] poll(int shift) {
+    if (1 << shift <= THREAD_CACHE_MAX_SIZE) {
+      byte[][] cache = threadCache.get()[shift - MIN_SHIFT];
+      for (int i = cache.length - 1; i >= 0; i--) {
+        byte[] b = cache[i];
+        if (null != b) {
+          cache[i] = null;
+          return b;
+        }
+      }
+    }
+    SizeClass sizeClass = sizeClasses[shift - MIN_SHIFT];
+    byte[] b;
+    synchronized (sizeClass) {
+      b = sizeClass.arrays.poll();
+    }
+    if (null != b) {
+      pooledBytes.addAndGet(-b.length);
+    }
+    return b;
+  }
+
+  /**
+   * @return the smallest shift of a size class holding the given size
+   */
+  private static int shift(int size) {
+    return size <= 1 << MIN_SHIFT ? MIN_SHIFT : 32 - Integer.numberOfLeadingZeros(size - 1);
+  }
+
+  /**
+   * @return the number of bytes held by the shared pool (without the per thread caches)
+   */
+  public long getPooledBytes() {
+    return pooledBytes.get();
+  }
+
+  /**
+   * @return the maximum number of bytes held by the shared pool
+   */
+  public long getMaxPooledBytes() {
+    return maxPooledBytes;
+  }
+
+  /**
+   * @param maxPooledBytes the maximum number of bytes held by the shared pool
+   */
+  public void setMaxPooledBytes(long maxPooledBytes) {
+    this.maxPooledBytes = maxPooledBytes;
+  }
+
+  /**
+   * Enables or disables the leak detection. It records the stack trace of every acquisition, so it
+   * should only be enabled for debugging. Arrays acquired before enabling are not tracked, they are
+   * reported (and not pooled again) when released.
+   *
+   * @param leakDetection true to enable the leak detection
+   */
+  public synchronized void setLeakDetection(boolean leakDetection) {
+    if (leakDetection && null == leakDetector) {
+      leakDetector = new LeakDetector();
+    } else if (!leakDetection) {
+      leakDetector = null;
+    }
+  }
+
+  /**
+   * @return true if the leak detection is enabled
+   */
+  public boolean isLeakDetection() {
+    return null != leakDetector;
+  }
+
+  /**
+   * @return the number of leaked arrays found by the leak detection so far
+   */
+  public long getLeakCount() {
+    LeakDetector detector = leakDetector;
+    if (null == detector) {
+      return 0;
+    }
+    detector.expunge();
+    return detector.leaks.get();
+  }
+
+  private static class SizeClass {
+    final ArrayDeque<byte[]> arrays = new ArrayDeque<>();
+  }
+
+  private static class Acquisition extends WeakReference<byte[]> {
+    final Throwable origin = new Throwable("acquired here");
+
+    Acquisition(byte[] b, ReferenceQueue<byte[]> queue) {
+      super(b, queue);
+    }
+  }
+
+  /**
+   * Tracks the acquired arrays with weak references, an array collected before its release is a
+   * leak.
+   */
+  private static class LeakDetector {
+    private final ReferenceQueue<byte[]> queue = new ReferenceQueue<>();
+    /** acquired arrays by identity hash code */
+    private final Map<Integer, List<Acquisition>> acquired = new HashMap<>();
+    final AtomicLong leaks = new AtomicLong();
+
+    void acquired(byte[] b) {
+      expunge();
+      Integer key = System.identityHashCode(b);
+      synchronized (acquired) {
+        List<Acquisition> list = acquired.get(key);
+        if (null == list) {
+          list = new ArrayList<>(1);
+          acquired.put(key, list);
+        }
+        list.add(new Acquisition(b, queue));
+      }
+    }
+
+    /**
+     * @return false if the array is not acquired (released twice or not from this pool)
+     */
+    boolean released(byte[] b) {
+      expunge();
+      Integer key = System.identityHashCode(b);
+      synchronized (acquired) {
+        List<Acquisition> list = acquired.get(key);
+        if (null != list) {
+          for (int i = 0; i < list.size(); i++) {
+            if (list.get(i).get() == b) {
+              list.remove(i).clear();
+              if (list.isEmpty()) {
+                acquired.remove(key);
+              }
+              return true;
+            }
+          }
+        }
+      }
+      logger.warn("buffer of {} bytes released twice or not acquired from the pool", b.length,
+          new Throwable("released here"));
+      return false;
+    }
+
+    void expunge() {
+      Acquisition leaked;
+      while (null != (leaked = (Acquisition) queue.poll())) {
+        synchronized (acquired) {
+          for (List<Acquisition> list : acquired.values()) {
+            if (list.remove(leaked)) {
+              break;
+            }
+          }
+        }
+        leaks.incrementAndGet();
+        logger.warn("buffer garbage collected without release", leaked.origin);
+      }
+    }
+  }
+}
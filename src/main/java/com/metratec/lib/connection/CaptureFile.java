@@ -0,0 +1,248 @@
+package com.metratec.lib.connection;
+
+/*******************************************************************************
+ * Copyright (c) 2023 by metraTec GmbH
+ * All rights reserved.
+ *******************************************************************************/
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A capture file written by a {@link RecordingConnection}.
+ *
+ * The file starts with the magic "MTCAP", a version byte and the recording start time in
+ * milliseconds since the epoch. Then follow the records: a type byte, the time since the start of
+ * the recording in nanoseconds (8 bytes), the data length (4 bytes) and the data. A type of 0 or the
+ * end of the file ends the capture. All numbers are big-endian.
+ *
+ * @author man
+ */
+public class CaptureFile {
+  /** the data sent to the device */
+  public static final byte SEND = 1;
+  /** the data received from the device */
+  public static final byte RECEIVE = 2;
+  /** connection established, no data */
+  public static final byte CONNECT = 3;
+  /** connection closed, no data */
+  public static final byte DISCONNECT = 4;
+
+  static final byte[] MAGIC = {'M', 'T', 'C', 'A', 'P'};
+  static final byte VERSION = 1;
+  static final int FILE_HEADER_LENGTH = MAGIC.length + 1 + 8;
+  static final int RECORD_HEADER_LENGTH = 1 + 8 + 4;
+
+  private final long startTime;
+  private final List<Record> records;
+
+  private CaptureFile(long startTime, List<Record> records) {
+    this.startTime = startTime;
+    this.records = records;
+  }
+
+  /**
+   * Reads a capture file.
+   *
+   * @param file the capture file
+   * @return the capture
+   * @throws IOException if the file can not be read or is not a capture file
+   */
+  public static CaptureFile read(File file) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+        FileChannel channel = raf.getChannel()) {
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException("capture file too large");
+      }
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (buffer.remaining() < FILE_HEADER_LENGTH) {
+        throw new IOException("not a capture file");
+      }
+      for (byte b : MAGIC) {
+        if (buffer.get() != b) {
+          throw new IOException("not a capture file");
+        }
+      }
+      byte version = buffer.get();
+      if (version != VERSION) {
+        throw new IOException("unsupported capture file version " + version);
+      }
+      long startTime = buffer.getLong();
+      List<Record> records = new ArrayList<Record>();
+      while (buffer.remaining() >= RECORD_HEADER_LENGTH) {
+        byte type = buffer.get();
+        if (type == 0) {
+          break;
+        }
+        long timestamp = buffer.getLong();
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+          /* the recording was interrupted while writing this record */
+          break;
+        }
+        byte[] data = new byte[length];
+        buffer.get(data);
+        records.add(new Record(type, timestamp, data));
+      }
+      return new CaptureFile(startTime, Collections.unmodifiableList(records));
+    }
+  }
+
+  /**
+   * @return the start of the recording in milliseconds since the epoch
+   */
+  public long getStartTime() {
+    return startTime;
+  }
+
+  /**
+   * @return the records in the order they were recorded
+   */
+  public List<Record> getRecords() {
+    return records;
+  }
+
+  /**
+   * One record of a capture.
+   */
+  public static class Record {
+    private final byte type;
+    private final long timestamp;
+    private final byte[] data;
+
+    Record(byte type, long timestamp, byte[] data) {
+      this.type = type;
+      this.timestamp = timestamp;
+      this.data = data;
+    }
+
+    /**
+     * @return the record type, {@link CaptureFile#SEND}, {@link CaptureFile#RECEIVE},
+     *         {@link CaptureFile#CONNECT} or {@link CaptureFile#DISCONNECT}
+     */
+    public byte getType() {
+      return type;
+    }
+
+    /**
+     * @return the time since the start of the recording in nanoseconds
+     */
+    public long getTimestamp() {
+      return timestamp;
+    }
+
+    /**
+     * @return the data, do not modify
+     */
+    public byte[] getData() {
+      return data;
+    }
+  }
+
+  /**
+   * Appends records to a capture file through memory-mapped regions. Writing a record is a copy
+   * into the mapped memory, the operating system writes it to the file in the background. When a
+   * region is full, the next one is mapped behind it.
+   */
+  static class Writer {
+    private static final long MERGE_TIME = 1000000;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final int regionSize;
+    private final long start = System.nanoTime();
+    private MappedByteBuffer region;
+    /** file position of the region start */
+    private long regionPosition;
+    /** region position of the last record, -1 if it can not be extended */
+    private int lastRecord = -1;
+    private long lastTimestamp;
+
+    Writer(File file, int regionSize) throws IOException {
+      this.file = new RandomAccessFile(file, "rw");
+      this.channel = this.file.getChannel();
+      this.regionSize = regionSize;
+      try {
+        channel.truncate(0);
+        map(0, FILE_HEADER_LENGTH);
+        region.put(MAGIC).put(VERSION).putLong(System.currentTimeMillis());
+      } catch (IOException e) {
+        this.file.close();
+        throw e;
+      }
+    }
+
+    private void map(long position, int needed) throws IOException {
+      lastRecord = -1;
+      regionPosition = position;
+      region = channel.map(FileChannel.MapMode.READ_WRITE, position, Math.max(regionSize, needed));
+    }
+
+    private ByteBuffer reserve(byte type, int length) throws IOException {
+      if (null == region) {
+        throw new IOException("capture closed");
+      }
+      int needed = RECORD_HEADER_LENGTH + length;
+      if (region.remaining() < needed) {
+        map(regionPosition + region.position(), needed);
+      }
+      lastRecord = region.position();
+      lastTimestamp = System.nanoTime() - start;
+      return region.put(type).putLong(lastTimestamp).putInt(length);
+    }
+
+    /**
+     * Appends a single byte. It is added to the last record if it has the same type and was started
+     * less than a millisecond ago, so byte-wise receiving does not create a record per byte.
+     */
+    synchronized void write(byte type, int b) throws IOException {
+      if (lastRecord >= 0 && region.get(lastRecord) == type && region.hasRemaining()
+          && System.nanoTime() - start - lastTimestamp < MERGE_TIME) {
+        int lengthPosition = lastRecord + 1 + 8;
+        region.putInt(lengthPosition, region.getInt(lengthPosition) + 1);
+        region.put((byte) b);
+      } else {
+        reserve(type, 1).put((byte) b);
+      }
+    }
+
+    synchronized void write(byte type, byte[] b, int off, int len) throws IOException {
+      reserve(type, len).put(b, off, len);
+    }
+
+    synchronized void write(byte type, ByteBuffer data) throws IOException {
+      reserve(type, data.remaining()).put(data);
+    }
+
+    synchronized void write(byte type, CharSequence data) throws IOException {
+      ByteBuffer buffer = reserve(type, data.length());
+      for (int i = 0; i < data.length(); i++) {
+        buffer.put((byte) data.charAt(i));
+      }
+    }
+
+    synchronized void close() throws IOException {
+      if (null == region) {
+        return;
+      }
+      long end = regionPosition + region.position();
+      region.force();
+      region = null;
+      lastRecord = -1;
+      try {
+        /* cut off the unused part of the last region, not possible on all platforms while mapped */
+        channel.truncate(end);
+      } catch (IOException e) {
+        // a type 0 record ends the capture as well
+      } finally {
+        file.close();
+      }
+    }
+  }
+}
@@ -19,6 +19,16 @@ public class CommConnectionException extends IOException {
   private static final long serialVersionUID = 1L;
   private int errorcode = 0;
 
+  /**
+   * Creates a RECV_TIMEOUT exception with an empty message and without stack trace, so throwing it
+   * is cheap enough for polling loops where timeouts are routine.
+   *
+   * @return a new receive timeout exception
+   */
+  public static CommConnectionException recvTimeout() {
+    return new Stackless(ICommConnection.RECV_TIMEOUT, "");
+  }
+
   /**
    * Constructs a new communication exception.
    *
@@ -143,4 +153,20 @@ public class CommConnectionException extends IOException {
 
 
   }
+
+  /**
+   * An exception without stack trace.
+   */
+  private static class Stackless extends CommConnectionException {
+    private static final long serialVersionUID = 1L;
+
+    Stackless(int errorcode, String s) {
+      super(errorcode, s);
+    }
+
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+      return this;
+    }
+  }
 }
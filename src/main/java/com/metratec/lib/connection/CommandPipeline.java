@@ -0,0 +1,228 @@
+package com.metratec.lib.connection;
+
+/*******************************************************************************
+ * Copyright (c) 2023 by metraTec GmbH
+ * All rights reserved.
+ *******************************************************************************/
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Pipelined command/response transactions for devices answering their commands strictly in order
+ * (e.g. metraTec readers).
+ *
+ * Instead of waiting for the response of a command before the next command is sent, the queued
+ * commands are written back-to-back with a single send. The sent requests are kept in a FIFO and
+ * every received terminated response is assigned to the oldest request in flight. The number of
+ * requests in flight is limited, so the device input buffer does not overflow.
+ *
+ * Every command must produce exactly one terminated response. Once a connection is used by a
+ * pipeline, it should not be read directly any more.
+ *
+ * <pre>
+ * CommandPipeline pipeline = new CommandPipeline(connection, 8, '\r');
+ * String[] responses = pipeline.transact("REV\r", "RHR\r", "RSN\r");
+ * </pre>
+ *
+ * @author man
+ */
+public class CommandPipeline {
+
+  /**
+   * A command and its response.
+   */
+  public static class Request {
+    private final String command;
+    private String response = null;
+
+    Request(String command) {
+      this.command = command;
+    }
+
+    /**
+     * @return the command
+     */
+    public String getCommand() {
+      return command;
+    }
+
+    /**
+     * @return the response including the termination sign or null if not yet received
+     */
+    public String getResponse() {
+      return response;
+    }
+
+    /**
+     * @return true if the response has been received
+     */
+    public boolean isDone() {
+      return null != response;
+    }
+  }
+
+  private final ICommConnection connection;
+  private final FrameReader reader;
+  private final ArrayDeque<Request> queued = new ArrayDeque<Request>();
+  private final ArrayDeque<Request> inFlight = new ArrayDeque<Request>();
+  private int maxInFlight;
+  private byte[] sendBuffer = new byte[256];
+
+  /**
+   * Creates a new pipeline.
+   *
+   * @param connection the connection to the device
+   * @param maxInFlight maximum number of requests sent without having received their response
+   * @param terminators the terminator signs of the responses
+   */
+  public CommandPipeline(ICommConnection connection, int maxInFlight, int... terminators) {
+    if (maxInFlight <= 0) {
+      throw new IllegalArgumentException("Maximum number of requests in flight must be positive");
+    }
+    this.connection = connection;
+    this.maxInFlight = maxInFlight;
+    reader = new FrameReader(connection, terminators);
+  }
+
+  /**
+   * Queues a command. It is sent with the next {@link #flush()} or {@link #receive()}.
+   *
+   * @param command the command including its termination sign (one byte per character)
+   * @return the request, which holds the response once it has been received
+   */
+  public synchronized Request submit(String command) {
+    Request request = new Request(command);
+    queued.add(request);
+    return request;
+  }
+
+  /**
+   * Sends as many queued commands as the maximum number of requests in flight allows. The commands
+   * are sent with a single send call.
+   *
+   * @throws CommConnectionException possible Errorcodes: see {@link ICommConnection#send(byte[])}.
+   *         The requests remain queued if sending fails.
+   */
+  public synchronized void flush() throws CommConnectionException {
+    int count = 0;
+    int length = 0;
+    Iterator<Request> it = queued.iterator();
+    while (it.hasNext() && inFlight.size() + count < maxInFlight) {
+      String command = it.next().command;
+      if (sendBuffer.length < length + command.length()) {
+        byte[] newBuffer = new byte[Math.max(length + command.length(), 2 * sendBuffer.length)];
+        System.arraycopy(sendBuffer, 0, newBuffer, 0, length);
+        sendBuffer = newBuffer;
+      }
+      for (int i = 0; i < command.length(); i++) {
+        sendBuffer[length++] = (byte) command.charAt(i);
+      }
+      count++;
+    }
+    if (count == 0) {
+      return;
+    }
+    connection.send(sendBuffer, 0, length);
+    while (count-- > 0) {
+      inFlight.add(queued.poll());
+    }
+  }
+
+  /**
+   * Receives the response of the oldest request in flight. Queued commands are sent first if the
+   * maximum number of requests in flight allows it.
+   *
+   * @return the completed request
+   * @throws CommConnectionException possible Errorcodes:
+   *         <ul>
+   *         <li>RECV_TIMEOUT - the request stays in flight</li>
+   *         <li>CONNECTION_LOST</li>
+   *         <li>UNHANDLED_ERROR - also if no request is pending</li>
+   *         <li>NOT_INITIALISE</li>
+   *         </ul>
+   */
+  public synchronized Request receive() throws CommConnectionException {
+    flush();
+    if (inFlight.isEmpty()) {
+      throw new CommConnectionException(ICommConnection.UNHANDLED_ERROR, "No request pending");
+    }
+    int length = reader.readFrame();
+    Request request = inFlight.poll();
+    request.response = new String(reader.getBuffer(), reader.getFrameOffset(), length,
+        ICommConnection.ISO_8859_1);
+    /* keep the pipeline filled */
+    flush();
+    return request;
+  }
+
+  /**
+   * Sends the commands pipelined and receives their responses.
+   *
+   * @param commands the commands including their termination sign
+   * @return the responses in the order of the commands, including the termination sign
+   * @throws CommConnectionException possible Errorcodes: see {@link #receive()}
+   */
+  public synchronized String[] transact(String... commands) throws CommConnectionException {
+    Request[] requests = new Request[commands.length];
+    for (int i = 0; i < commands.length; i++) {
+      requests[i] = submit(commands[i]);
+    }
+    String[] responses = new String[commands.length];
+    for (int i = 0; i < requests.length; i++) {
+      while (!requests[i].isDone()) {
+        receive();
+      }
+      responses[i] = requests[i].response;
+    }
+    return responses;
+  }
+
+  /**
+   * Forgets all queued requests and requests in flight, e.g. after a receive timeout. Responses of
+   * requests in flight that arrive later are assigned to new requests, so the device should be
+   * quiet before the pipeline is used again.
+   */
+  public synchronized void clear() {
+    queued.clear();
+    inFlight.clear();
+  }
+
+  /**
+   * @return number of requests sent without having received their response
+   */
+  public synchronized int getInFlightCount() {
+    return inFlight.size();
+  }
+
+  /**
+   * @return number of requests queued but not sent yet
+   */
+  public synchronized int getQueuedCount() {
+    return queued.size();
+  }
+
+  /**
+   * @return the maximum number of requests in flight
+   */
+  public synchronized int getMaxInFlight() {
+    return maxInFlight;
+  }
+
+  /**
+   * @param maxInFlight the maximum number of requests in flight
+   */
+  public synchronized void setMaxInFlight(int maxInFlight) {
+    if (maxInFlight <= 0) {
+      throw new IllegalArgumentException("Maximum number of requests in flight must be positive");
+    }
+    this.maxInFlight = maxInFlight;
+  }
+
+  /**
+   * @return the connection
+   */
+  public ICommConnection getConnection() {
+    return connection;
+  }
+}
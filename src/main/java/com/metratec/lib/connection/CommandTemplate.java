@@ -0,0 +1,84 @@
+package com.metratec.lib.connection;
+
+/*******************************************************************************
+ * Copyright (c) 2023 by metraTec GmbH
+ * All rights reserved.
+ *******************************************************************************/
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A command with parameter slots, compiled once into its ISO-8859-1 bytes. Every <code>{}</code> in
+ * the pattern is a slot, e.g. <code>LNK {}\r</code> for the MPS link command. The template is
+ * immutable and can be shared, the parameters are set on a {@link PreparedCommand}:
+ *
+ * <pre>
+ * static final CommandTemplate LINK = CommandTemplate.compile("LNK {}\r");
+ * ...
+ * PreparedCommand link = LINK.prepare();
+ * link.set(0, slaveEID).send(connection);
+ * </pre>
+ *
+ * A template can also describe an expected response, see
+ * {@link PreparedCommand#matches(byte[], int, int)}.
+ *
+ * @author man
+ */
+public class CommandTemplate {
+  private static final String SLOT = "{}";
+
+  private final String pattern;
+  /** literal parts, one more than slots */
+  private final byte[][] literals;
+
+  private CommandTemplate(String pattern, byte[][] literals) {
+    this.pattern = pattern;
+    this.literals = literals;
+  }
+
+  /**
+   * Compiles a command pattern.
+   *
+   * @param pattern the command including its terminator, <code>{}</code> marks a parameter slot
+   * @return the template
+   */
+  public static CommandTemplate compile(String pattern) {
+    List<byte[]> literals = new ArrayList<byte[]>();
+    int start = 0;
+    int slot;
+    while ((slot = pattern.indexOf(SLOT, start)) >= 0) {
+      literals.add(pattern.substring(start, slot).getBytes(ICommConnection.ISO_8859_1));
+      start = slot + SLOT.length();
+    }
+    literals.add(pattern.substring(start).getBytes(ICommConnection.ISO_8859_1));
+    return new CommandTemplate(pattern, literals.toArray(new byte[literals.size()][]));
+  }
+
+  /**
+   * @return a new command with empty parameters, it is not thread safe
+   */
+  public PreparedCommand prepare() {
+    return new PreparedCommand(this);
+  }
+
+  /**
+   * @return the number of parameter slots
+   */
+  public int getSlotCount() {
+    return literals.length - 1;
+  }
+
+  /**
+   * @param index the literal index, the literal before slot n has the index n
+   * @return the literal bytes, do not modify
+   */
+  byte[] getLiteral(int index) {
+    return literals[index];
+  }
+
+  @Override
+  public String toString() {
+    return pattern;
+  }
+}
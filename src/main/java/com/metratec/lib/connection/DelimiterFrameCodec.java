@@ -0,0 +1,75 @@
+package com.metratec.lib.connection;
+
+/*******************************************************************************
+ * Copyright (c) 2023 by metraTec GmbH
+ * All rights reserved.
+ *******************************************************************************/
+
+/**
+ * Frames ending with a single- or multi-byte delimiter sequence (e.g. CR LF). The delimiter is not
+ * part of the payload.
+ */
+public class DelimiterFrameCodec implements FrameCodec {
+  private final byte[] delimiter;
+
+  /**
+   * @param delimiter the delimiter sequence
+   */
+  public DelimiterFrameCodec(byte... delimiter) {
+    if (delimiter.length == 0) {
+      throw new IllegalArgumentException("No delimiter given");
+    }
+    this.delimiter = delimiter.clone();
+  }
+
+  /**
+   * @param delimiter the delimiter sequence, each character is one byte (ISO-8859-1)
+   */
+  public DelimiterFrameCodec(String delimiter) {
+    this(delimiter.getBytes(ICommConnection.ISO_8859_1));
+  }
+
+  @Override
+  public int frameLength(byte[] b, int off, int len, int scanned) {
+    byte last = delimiter[delimiter.length - 1];
+    /* a delimiter may have been incomplete at the end of the scanned data */
+    int from = Math.max(scanned, delimiter.length - 1);
+    outer: for (int i = off + from; i < off + len; i++) {
+      if (b[i] != last) {
+        continue;
+      }
+      for (int k = 2; k <= delimiter.length; k++) {
+        if (b[i + 1 - k] != delimiter[delimiter.length - k]) {
+          continue outer;
+        }
+      }
+      return i + 1 - off;
+    }
+    return -1;
+  }
+
+  @Override
+  public int headerLength(byte[] b, int off, int frameLength) {
+    return 0;
+  }
+
+  @Override
+  public int trailerLength(byte[] b, int off, int frameLength) {
+    return delimiter.length;
+  }
+
+  @Override
+  public int encodedLength(int payloadLength) {
+    return payloadLength + delimiter.length;
+  }
+
+  /**
+   * Appends the delimiter to the payload. The payload itself must not contain it.
+   */
+  @Override
+  public int encode(byte[] payload, int off, int len, byte[] dst, int dstOff) {
+    System.arraycopy(payload, off, dst, dstOff, len);
+    System.arraycopy(delimiter, 0, dst, dstOff + len, delimiter.length);
+    return len + delimiter.length;
+  }
+}
@@ -0,0 +1,363 @@
+package com.metratec.lib.connection;
+
+/*******************************************************************************
+ * Copyright (c) 2023 by metraTec GmbH
+ * All rights reserved.
+ *******************************************************************************/
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import jd2xx.JD2XX.DeviceInfo;
+
+/**
+ * A snapshot of the known devices on disk, so services can connect to their readers immediately
+ * after a restart while a scan refreshes the cache in the background (see
+ * {@link DeviceDiscoveryService#setCache(DeviceCache)}).
+ *
+ * The cache holds the ethernet devices with the time they were last seen, the serial numbers of the
+ * USB devices and the names of the serial ports. The file is a small versioned binary file, it is
+ * written to a temporary file first and then moved over the old file, so a crash never leaves a
+ * partly written cache. A file of an unknown version or a damaged file is ignored.
+ *
+ * @author man
+ */
+public class DeviceCache {
+  /** "MTDC" */
+  private static final int MAGIC = 0x4D544443;
+  private static final int VERSION = 1;
+  /** upper bound for the number of entries of a valid file */
+  private static final int MAX_ENTRIES = 1 << 20;
+  private static final Logger logger = LoggerFactory.getLogger(DeviceCache.class);
+
+  private final File file;
+  /** serializes the writing of the file */
+  private final Object saveLock = new Object();
+  /** ethernet devices by normalized MAC address */
+  private final Map<String, CachedDevice> devices = new LinkedHashMap<>();
+  private List<String> usbDevices = Collections.emptyList();
+  private List<String> serialPorts = Collections.emptyList();
+  private long savedAt = 0;
+  private boolean modified = false;
+
+  /**
+   * @param file the cache file
+   */
+  public DeviceCache(File file) {
+    this.file = file;
+  }
+
+  /**
+   * @return the cache file
+   */
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * Loads the cache file, replacing the content of this cache.
+   *
+   * @return true if the file was loaded, false if it does not exist, is damaged or of an unknown
+   *         version (the cache is empty then)
+   */
+  public synchronized boolean load() {
+    devices.clear();
+    usbDevices = Collections.emptyList();
+    serialPorts = Collections.emptyList();
+    savedAt = 0;
+    modified = false;
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+      if (in.readInt() != MAGIC) {
+        logger.warn("{} is no device cache", file);
+        return false;
+      }
+      int version = in.readUnsignedShort();
+      if (version != VERSION) {
+        logger.info("device cache {} has unknown version {}, ignored", file, version);
+        return false;
+      }
+      long time = in.readLong();
+      int count = readCount(in);
+      for (int i = 0; i < count; i++) {
+        EthernetDevice device = new EthernetDevice(readString(in), readString(in),
+            readString(in), false);
+        long lastSeen = in.readLong();
+        devices.put(DeviceCollector.normalizeMac(device.getMACAddress()),
+            new CachedDevice(device, lastSeen));
+      }
+      List<String> usb = readStrings(in);
+      List<String> serial = readStrings(in);
+      usbDevices = usb;
+      serialPorts = serial;
+      savedAt = time;
+      return true;
+    } catch (FileNotFoundException e) {
+      return false;
+    } catch (IOException e) {
+      logger.warn("device cache {} damaged, ignored - {}", file, e.getMessage());
+      devices.clear();
+      return false;
+    }
+  }
+
+  /**
+   * Writes the cache file. The cache is copied first, so it is not locked while writing.
+   *
+   * @throws IOException if the file can not be written
+   */
+  public void save() throws IOException {
+    synchronized (saveLock) {
+      List<CachedDevice> deviceList;
+      List<String> usb;
+      List<String> serial;
+      synchronized (this) {
+        deviceList = new ArrayList<>(devices.values());
+        usb = usbDevices;
+        serial = serialPorts;
+        modified = false;
+      }
+      long time = System.currentTimeMillis();
+      try {
+        write(deviceList, usb, serial, time);
+      } catch (IOException e) {
+        synchronized (this) {
+          modified = true;
+        }
+        throw e;
+      }
+      synchronized (this) {
+        savedAt = time;
+      }
+    }
+  }
+
+  private void write(List<CachedDevice> deviceList, List<String> usb, List<String> serial,
+      long time) throws IOException {
+    File dir = file.getAbsoluteFile().getParentFile();
+    if (null != dir) {
+      dir.mkdirs();
+    }
+    File tmp = new File(dir, file.getName() + ".tmp");
+    try (DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+      out.writeInt(MAGIC);
+      out.writeShort(VERSION);
+      out.writeLong(time);
+      out.writeInt(deviceList.size());
+      for (CachedDevice cached : deviceList) {
+        writeString(out, cached.device.getIPAddress());
+        writeString(out, cached.device.getMACAddress());
+        writeString(out, cached.device.getDeviceName());
+        out.writeLong(cached.lastSeen);
+      }
+      writeStrings(out, usb);
+      writeStrings(out, serial);
+    }
+    try {
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  /**
+   * Writes the cache file if the cache was modified since the last load or save.
+   *
+   * @throws IOException if the file can not be written
+   */
+  public void saveIfModified() throws IOException {
+    synchronized (this) {
+      if (!modified) {
+        return;
+      }
+    }
+    save();
+  }
+
+  private static int readCount(DataInputStream in) throws IOException {
+    int count = in.readInt();
+    if (count < 0 || count > MAX_ENTRIES) {
+      throw new IOException("invalid entry count " + count);
+    }
+    return count;
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    return in.readBoolean() ? in.readUTF() : null;
+  }
+
+  private static void writeString(DataOutputStream out, String s) throws IOException {
+    out.writeBoolean(null != s);
+    if (null != s) {
+      out.writeUTF(s);
+    }
+  }
+
+  private static List<String> readStrings(DataInputStream in) throws IOException {
+    int count = readCount(in);
+    List<String> list = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      list.add(in.readUTF());
+    }
+    return Collections.unmodifiableList(list);
+  }
+
+  private static void writeStrings(DataOutputStream out, List<String> list) throws IOException {
+    out.writeInt(list.size());
+    for (String s : list) {
+      out.writeUTF(s);
+    }
+  }
+
+  /**
+   * @return the time of the last load or save ({@link System#currentTimeMillis()}), 0 if the cache
+   *         has never been saved
+   */
+  public synchronized long getSavedAt() {
+    return savedAt;
+  }
+
+  /**
+   * @return the cached ethernet devices, sorted, they are not checked for reachability
+   */
+  public synchronized List<EthernetDevice> getEthernetDevices() {
+    List<EthernetDevice> list = new ArrayList<>(devices.size());
+    for (CachedDevice cached : devices.values()) {
+      list.add(cached.device);
+    }
+    Collections.sort(list);
+    return list;
+  }
+
+  /**
+   * @param macAddress the MAC address, e.g. "00:11:22:33:44:55" (case insensitive, any separator)
+   * @return the cached device or null
+   */
+  public synchronized EthernetDevice getEthernetDevice(String macAddress) {
+    CachedDevice cached = devices.get(DeviceCollector.normalizeMac(macAddress));
+    return null == cached ? null : cached.device;
+  }
+
+  /**
+   * @param macAddress the MAC address of the device
+   * @return the time the device was last seen ({@link System#currentTimeMillis()}), 0 if the
+   *         device is not cached
+   */
+  public synchronized long getLastSeen(String macAddress) {
+    CachedDevice cached = devices.get(DeviceCollector.normalizeMac(macAddress));
+    return null == cached ? 0 : cached.lastSeen;
+  }
+
+  /**
+   * Adds or updates an ethernet device.
+   *
+   * @param device the device
+   * @param lastSeen the time the device was last seen ({@link System#currentTimeMillis()})
+   */
+  public synchronized void putEthernetDevice(EthernetDevice device, long lastSeen) {
+    String mac = DeviceCollector.normalizeMac(device.getMACAddress());
+    if (null == mac) {
+      return;
+    }
+    devices.put(mac, new CachedDevice(device, lastSeen));
+    modified = true;
+  }
+
+  /**
+   * @param macAddress the MAC address of the device to remove
+   */
+  public synchronized void removeEthernetDevice(String macAddress) {
+    if (null != devices.remove(DeviceCollector.normalizeMac(macAddress))) {
+      modified = true;
+    }
+  }
+
+  /**
+   * @return the serial numbers of the cached USB devices
+   */
+  public synchronized List<String> getUsbDevices() {
+    return usbDevices;
+  }
+
+  /**
+   * @param serials the serial numbers of the USB devices
+   */
+  public synchronized void setUsbDevices(List<String> serials) {
+    if (!serials.equals(usbDevices)) {
+      usbDevices = Collections.unmodifiableList(new ArrayList<>(serials));
+      modified = true;
+    }
+  }
+
+  /**
+   * @return the names of the cached serial ports
+   */
+  public synchronized List<String> getSerialPorts() {
+    return serialPorts;
+  }
+
+  /**
+   * @param ports the names of the serial ports
+   */
+  public synchronized void setSerialPorts(List<String> ports) {
+    if (!ports.equals(serialPorts)) {
+      serialPorts = Collections.unmodifiableList(new ArrayList<>(ports));
+      modified = true;
+    }
+  }
+
+  /**
+   * Enumerates the USB devices and serial ports and updates the cache. Types without installed
+   * driver library are left unchanged.
+   */
+  public void refreshLocalDevices() {
+    try {
+      List<String> serials = new ArrayList<>();
+      for (DeviceInfo device : UsbConnection.getUSBDevices()) {
+        serials.add(device.serial);
+      }
+      setUsbDevices(serials);
+    } catch (CommConnectionException e) {
+      logger.debug("USB devices not enumerated - {}", e.getMessage());
+    } catch (NoClassDefFoundError e) {
+      logger.debug("USB devices not enumerated - {}", e.getMessage());
+    }
+    try {
+      List<String> ports = new ArrayList<>();
+      Collections.addAll(ports, Rs232Connection.getSerialPorts());
+      setSerialPorts(ports);
+    } catch (CommConnectionException e) {
+      logger.debug("serial ports not enumerated - {}", e.getMessage());
+    }
+  }
+
+  private static class CachedDevice {
+    final EthernetDevice device;
+    final long lastSeen;
+
+    CachedDevice(EthernetDevice device, long lastSeen) {
+      this.device = device;
+      this.lastSeen = lastSeen;
+    }
+  }
+}
@@ -0,0 +1,113 @@
+package com.metratec.lib.connection;
+
+/*******************************************************************************
+ * Copyright (c) 2023 by metraTec GmbH
+ * All rights reserved.
+ *******************************************************************************/
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A {@link DeviceDiscoveryListener} collecting the found devices, which stops the scan as soon as
+ * a device with a given MAC address, a device matching a filter or a given number of devices has
+ * been found. Without condition, the scan runs until its timeout.
+ *
+ * <pre>
+ * DeviceCollector collector = new DeviceCollector().untilMac("00:11:22:33:44:55");
+ * UdpConnection.discoverMetratecEthernetDevices(3000, addresses, collector);
+ * EthernetDevice reader = collector.getMatch(); // null if not found
+ * </pre>
+ *
+ * @author man
+ */
+public class DeviceCollector implements DeviceDiscoveryListener {
+  private final List<EthernetDevice> devices = new ArrayList<>();
+  private String mac = null;
+  private DeviceFilter filter = null;
+  private int count = 0;
+  private EthernetDevice match = null;
+
+  /**
+   * Stops the scan when the device with the given MAC address is found.
+   *
+   * @param macAddress the MAC address, e.g. "00:11:22:33:44:55" (case insensitive, any separator)
+   * @return this collector
+   */
+  public DeviceCollector untilMac(String macAddress) {
+    this.mac = normalizeMac(macAddress);
+    return this;
+  }
+
+  /**
+   * Stops the scan when a device matching the filter is found.
+   *
+   * @param filter the filter
+   * @return this collector
+   */
+  public DeviceCollector until(DeviceFilter filter) {
+    this.filter = filter;
+    return this;
+  }
+
+  /**
+   * Stops the scan when the given number of devices is found.
+   *
+   * @param count the number of devices, 0 for no limit
+   * @return this collector
+   */
+  public DeviceCollector untilCount(int count) {
+    this.count = count;
+    return this;
+  }
+
+  @Override
+  public boolean deviceFound(EthernetDevice device) {
+    devices.add(device);
+    if (null == match && matches(device)) {
+      match = device;
+      return false;
+    }
+    return count <= 0 || devices.size() < count;
+  }
+
+  private boolean matches(EthernetDevice device) {
+    if (null != mac && mac.equals(normalizeMac(device.getMACAddress()))) {
+      return true;
+    }
+    return null != filter && filter.accept(device);
+  }
+
+  /**
+   * @param mac a MAC address with any separator or none, e.g. "00-11-22-33-44-55"
+   * @return the MAC address like "00:11:22:33:44:55", a string which is no MAC address upper-cased,
+   *         null for null
+   */
+  static String normalizeMac(String mac) {
+    if (null == mac) {
+      return null;
+    }
+    try {
+      return DeviceRecord.formatMac(DeviceRecord.parseMac(mac));
+    } catch (IllegalArgumentException e) {
+      return mac.toUpperCase();
+    }
+  }
+
+  /**
+   * @return the found devices, sorted
+   */
+  public List<EthernetDevice> getDevices() {
+    List<EthernetDevice> list = new ArrayList<>(devices);
+    Collections.sort(list);
+    return list;
+  }
+
+  /**
+   * @return the first device with the MAC address or matching the filter, null if none was found
+   */
+  public EthernetDevice getMatch() {
+    return match;
+  }
+}
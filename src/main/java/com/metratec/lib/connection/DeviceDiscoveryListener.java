@@ -0,0 +1,26 @@
+package com.metratec.lib.connection;
+
+/*******************************************************************************
+ * Copyright (c) 2023 by metraTec GmbH
+ * All rights reserved.
+ *******************************************************************************/
+
+/**
+ * Receives the devices found by a streaming discovery, e.g.
+ * {@link UdpConnection#discoverMetratecEthernetDevices}.
+ *
+ * @see DeviceCollector
+ * @author man
+ */
+public interface DeviceDiscoveryListener {
+
+  /**
+   * Called by the scanning thread as soon as the response of a device is parsed. Every device is
+   * reported once per scan (devices are equal if IP and MAC address are equal), it is not checked
+   * for reachability.
+   *
+   * @param device the found device
+   * @return true to continue the scan, false to stop it
+   */
+  boolean deviceFound(EthernetDevice device);
+}
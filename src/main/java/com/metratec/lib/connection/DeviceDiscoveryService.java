@@ -0,0 +1,600 @@
+package com.metratec.lib.connection;
+
+/*******************************************************************************
+ * Copyright (c) 2023 by metraTec GmbH
+ * All rights reserved.
+ *******************************************************************************/
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps a table of the metraTec ethernet devices in the network up to date in the background, so
+ * applications can look up devices without waiting for a scan.
+ *
+ * The service scans periodically with
+ * {@link UdpConnection#discoverMetratecEthernetDevices(int, List, DeviceDiscoveryListener)} and
+ * optionally listens passively for device broadcasts on the discovery port 41000. Devices are
+ * indexed by MAC and IP address. A device which has not been seen within the time to live is
+ * removed. Changes are published to the registered {@link DeviceEventListener}s.
+ *
+ * The devices in the table have answered within the time to live, so they are marked as reachable.
+ * With a {@link DeviceCache}, the table starts with the cached devices (not reachable until they
+ * answer), so they can be looked up immediately after a restart, and the cache is saved after a
+ * scan if it was modified.
+ *
+ * <pre>
+ * DeviceDiscoveryService service = new DeviceDiscoveryService();
+ * service.addListener(listener);
+ * service.start();
+ * ...
+ * EthernetDevice reader = service.getDeviceByMac("00:11:22:33:44:55");
+ * </pre>
+ *
+ * @author man
+ */
+public class DeviceDiscoveryService {
+  /** the port of the device broadcasts */
+  public static final int DISCOVERY_PORT = 41000;
+  private static final Logger logger = LoggerFactory.getLogger(DeviceDiscoveryService.class);
+
+  private final List<DeviceEventListener> listeners = new CopyOnWriteArrayList<>();
+  /** the table, guarded by this */
+  private final Map<String, Entry> byMac = new HashMap<>();
+  private final Map<String, Entry> byIp = new HashMap<>();
+  /** events not yet passed to the listeners, guarded by this */
+  private final ArrayDeque<Event> events = new ArrayDeque<>();
+  /** true while a thread passes the events to the listeners, guarded by this */
+  private boolean dispatching = false;
+  private List<InetAddress> addresses = null;
+  private volatile long scanInterval = 30000;
+  private volatile int scanTimeout = 2000;
+  private volatile long ttl = 90000;
+  private volatile boolean passive = true;
+  private ScheduledExecutorService scheduler = null;
+  private DatagramSocket passiveSocket = null;
+  private DeviceCache cache = null;
+
+  /**
+   * Starts the service. The first scan starts immediately.
+   *
+   * @throws IOException if the passive listening socket can not be bound
+   */
+  public void start() throws IOException {
+    try {
+      startService();
+    } finally {
+      /* the cached devices */
+      dispatch();
+    }
+  }
+
+  private synchronized void startService() throws IOException {
+    if (null != scheduler) {
+      return;
+    }
+    if (null != cache) {
+      loadCache();
+    }
+    if (passive) {
+      passiveSocket = new DatagramSocket(null);
+      passiveSocket.setReuseAddress(true);
+      passiveSocket.setBroadcast(true);
+      passiveSocket.bind(new InetSocketAddress(DISCOVERY_PORT));
+      Thread thread = new Thread(new PassiveListener(passiveSocket),
+          "DeviceDiscoveryService-listener");
+      thread.setDaemon(true);
+      thread.start();
+    }
+    scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "DeviceDiscoveryService");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    if (scanInterval > 0) {
+      scheduler.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          scan();
+        }
+      }, 0, scanInterval, TimeUnit.MILLISECONDS);
+    }
+    long evictInterval = Math.max(100, ttl / 4);
+    scheduler.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        evict();
+      }
+    }, evictInterval, evictInterval, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stops the service. The device table is kept.
+   */
+  public void stop() {
+    synchronized (this) {
+      if (null != scheduler) {
+        scheduler.shutdownNow();
+        scheduler = null;
+      }
+      if (null != passiveSocket) {
+        passiveSocket.close();
+        passiveSocket = null;
+      }
+    }
+    saveCache();
+  }
+
+  /**
+   * @return true if the service is running
+   */
+  public synchronized boolean isRunning() {
+    return null != scheduler;
+  }
+
+  /**
+   * Scans once and waits for the scan, e.g. to refresh the table on demand.
+   */
+  public void scan() {
+    try {
+      List<InetAddress> addr = getAddresses();
+      if (null == addr) {
+        addr = UdpConnection.getAllInterfaceInetAddresses();
+      }
+      UdpConnection.discoverMetratecEthernetDevices(scanTimeout, addr,
+          new DeviceDiscoveryListener() {
+            @Override
+            public boolean deviceFound(EthernetDevice device) {
+              seen(device);
+              return true;
+            }
+          });
+    } catch (IOException e) {
+      logger.warn("device scan failed - {}", e.getMessage());
+    }
+    saveCache();
+  }
+
+  /**
+   * Fills the table with the cached devices, they are seen now.
+   */
+  private void loadCache() {
+    if (0 == cache.getSavedAt()) {
+      cache.load();
+    }
+    long now = System.nanoTime();
+    for (EthernetDevice device : cache.getEthernetDevices()) {
+      String mac = DeviceCollector.normalizeMac(device.getMACAddress());
+      if (!byMac.containsKey(mac)) {
+        Entry entry = new Entry(device, now);
+        byMac.put(mac, entry);
+        byIp.put(device.getIPAddress(), entry);
+        fireAdded(device);
+      }
+    }
+  }
+
+  /**
+   * Writes the cache file if the cache was modified. The table is not locked while writing.
+   */
+  private void saveCache() {
+    DeviceCache c = getCache();
+    if (null == c) {
+      return;
+    }
+    try {
+      c.saveIfModified();
+    } catch (IOException e) {
+      logger.warn("device cache not saved - {}", e.getMessage());
+    }
+  }
+
+  /**
+   * Puts the device into the cache if it is new or changed, or if the last seen time in the cache
+   * is older than half the time to live, so the cache is not rewritten after every scan.
+   */
+  private void updateCache(Entry entry, boolean changed, long now) {
+    if (null != cache && (changed || now - entry.cachedAt > ttl * 500000L)) {
+      cache.putEthernetDevice(entry.device, System.currentTimeMillis());
+      entry.cachedAt = now;
+    }
+  }
+
+  /**
+   * Updates the table with a device which has just answered.
+   */
+  void seen(EthernetDevice device) {
+    synchronized (this) {
+      update(device);
+    }
+    dispatch();
+  }
+
+  private void update(EthernetDevice device) {
+    String mac = DeviceCollector.normalizeMac(device.getMACAddress());
+    if (null == mac) {
+      return;
+    }
+    device.setReachable(true);
+    long now = System.nanoTime();
+    Entry entry = byMac.get(mac);
+    if (null == entry) {
+      entry = new Entry(device, now);
+      byMac.put(mac, entry);
+      byIp.put(device.getIPAddress(), entry);
+      updateCache(entry, true, now);
+      fireAdded(device);
+      return;
+    }
+    entry.lastSeen = now;
+    EthernetDevice old = entry.device;
+    if (equal(old.getIPAddress(), device.getIPAddress())
+        && equal(old.getDeviceName(), device.getDeviceName())) {
+      /* e.g. a cached device */
+      old.setReachable(true);
+      updateCache(entry, false, now);
+      return;
+    }
+    if (byIp.get(old.getIPAddress()) == entry) {
+      byIp.remove(old.getIPAddress());
+    }
+    entry.device = device;
+    byIp.put(device.getIPAddress(), entry);
+    updateCache(entry, true, now);
+    fireChanged(old, device);
+  }
+
+  /**
+   * Removes the devices not seen within the time to live.
+   */
+  void evict() {
+    synchronized (this) {
+      removeExpired();
+    }
+    dispatch();
+  }
+
+  private void removeExpired() {
+    long oldest = System.nanoTime() - ttl * 1000000L;
+    for (Iterator<Entry> it = byMac.values().iterator(); it.hasNext();) {
+      Entry entry = it.next();
+      if (entry.lastSeen - oldest < 0) {
+        it.remove();
+        if (byIp.get(entry.device.getIPAddress()) == entry) {
+          byIp.remove(entry.device.getIPAddress());
+        }
+        if (null != cache) {
+          cache.removeEthernetDevice(entry.device.getMACAddress());
+        }
+        fireLost(entry.device);
+      }
+    }
+  }
+
+  private static boolean equal(String a, String b) {
+    return null == a ? null == b : a.equals(b);
+  }
+
+  private void fireAdded(EthernetDevice device) {
+    events.add(new Event(device, null));
+  }
+
+  private void fireChanged(EthernetDevice oldDevice, EthernetDevice newDevice) {
+    events.add(new Event(newDevice, oldDevice));
+  }
+
+  private void fireLost(EthernetDevice device) {
+    events.add(new Event(null, device));
+  }
+
+  /**
+   * Passes the queued events to the listeners without holding the table lock, so a listener may
+   * call back into the service. The events are passed one at a time and in order by the thread
+   * which finds the queue idle, other threads only queue their events.
+   */
+  private void dispatch() {
+    synchronized (this) {
+      if (dispatching) {
+        return;
+      }
+      dispatching = true;
+    }
+    boolean done = false;
+    try {
+      while (true) {
+        Event event;
+        synchronized (this) {
+          event = events.poll();
+          if (null == event) {
+            dispatching = false;
+            done = true;
+            return;
+          }
+        }
+        event.fire();
+      }
+    } finally {
+      if (!done) {
+        synchronized (this) {
+          dispatching = false;
+        }
+      }
+    }
+  }
+
+  private void notifyAdded(EthernetDevice device) {
+    for (DeviceEventListener listener : listeners) {
+      try {
+        listener.deviceAdded(device);
+      } catch (RuntimeException e) {
+        logger.warn("device listener failed", e);
+      }
+    }
+  }
+
+  private void notifyChanged(EthernetDevice oldDevice, EthernetDevice newDevice) {
+    for (DeviceEventListener listener : listeners) {
+      try {
+        listener.deviceChanged(oldDevice, newDevice);
+      } catch (RuntimeException e) {
+        logger.warn("device listener failed", e);
+      }
+    }
+  }
+
+  private void notifyLost(EthernetDevice device) {
+    for (DeviceEventListener listener : listeners) {
+      try {
+        listener.deviceLost(device);
+      } catch (RuntimeException e) {
+        logger.warn("device listener failed", e);
+      }
+    }
+  }
+
+  /**
+   * @param macAddress the MAC address, e.g. "00:11:22:33:44:55" (case insensitive, any separator)
+   * @return the device or null if it is not in the table
+   */
+  public synchronized EthernetDevice getDeviceByMac(String macAddress) {
+    Entry entry = byMac.get(DeviceCollector.normalizeMac(macAddress));
+    return null == entry ? null : entry.device;
+  }
+
+  /**
+   * @param ipAddress the IP address, e.g. "192.168.2.239"
+   * @return the device or null if it is not in the table
+   */
+  public synchronized EthernetDevice getDeviceByIp(String ipAddress) {
+    Entry entry = byIp.get(ipAddress);
+    return null == entry ? null : entry.device;
+  }
+
+  /**
+   * @param macAddress the MAC address of the device
+   * @return the time of the last answer of the device ({@link System#currentTimeMillis()}), 0 if
+   *         the device is not in the table
+   */
+  public synchronized long getLastSeen(String macAddress) {
+    Entry entry = byMac.get(DeviceCollector.normalizeMac(macAddress));
+    if (null == entry) {
+      return 0;
+    }
+    return System.currentTimeMillis() - (System.nanoTime() - entry.lastSeen) / 1000000;
+  }
+
+  /**
+   * @return the devices in the table, sorted
+   */
+  public synchronized List<EthernetDevice> getDevices() {
+    List<EthernetDevice> list = new ArrayList<>(byMac.size());
+    for (Entry entry : byMac.values()) {
+      list.add(entry.device);
+    }
+    Collections.sort(list);
+    return list;
+  }
+
+  /**
+   * @param listener the listener to add
+   */
+  public void addListener(DeviceEventListener listener) {
+    listeners.add(listener);
+  }
+
+  /**
+   * @param listener the listener to remove
+   */
+  public void removeListener(DeviceEventListener listener) {
+    listeners.remove(listener);
+  }
+
+  /**
+   * @return the device cache or null
+   */
+  public synchronized DeviceCache getCache() {
+    return cache;
+  }
+
+  /**
+   * Sets the cache the table is loaded from on start (if it has not been loaded yet). New and
+   * changed devices are put into the cache at once, the last seen times at most every half time to
+   * live, the file is written after a scan if the cache was modified and on stop.
+   *
+   * @param cache the device cache, null for none (default)
+   */
+  public synchronized void setCache(DeviceCache cache) {
+    this.cache = cache;
+  }
+
+  /**
+   * @return the local addresses to scan on, null for all interfaces
+   */
+  public synchronized List<InetAddress> getAddresses() {
+    return addresses;
+  }
+
+  /**
+   * @param addresses the local addresses to scan on, null for all interfaces (default)
+   */
+  public synchronized void setAddresses(List<InetAddress> addresses) {
+    this.addresses = addresses;
+  }
+
+  /**
+   * @return the time between two scans in milliseconds
+   */
+  public long getScanInterval() {
+    return scanInterval;
+  }
+
+  /**
+   * Sets the time between the end of a scan and the start of the next scan. Takes effect on the
+   * next start.
+   *
+   * @param scanInterval the time in milliseconds, 0 to listen passively only (default 30000)
+   */
+  public void setScanInterval(long scanInterval) {
+    this.scanInterval = scanInterval;
+  }
+
+  /**
+   * @return the duration of a scan in milliseconds
+   */
+  public int getScanTimeout() {
+    return scanTimeout;
+  }
+
+  /**
+   * @param scanTimeout the duration of a scan in milliseconds (default 2000)
+   */
+  public void setScanTimeout(int scanTimeout) {
+    this.scanTimeout = scanTimeout;
+  }
+
+  /**
+   * @return the time to live of a device in milliseconds
+   */
+  public long getTtl() {
+    return ttl;
+  }
+
+  /**
+   * Sets the time after which a device which has not answered is removed. It should be a multiple
+   * of the scan interval, so a single lost answer does not remove the device. It takes effect on the
+   * next eviction run, the devices are checked every quarter of the time to live set at the start.
+   *
+   * @param ttl the time to live in milliseconds (default 90000)
+   */
+  public void setTtl(long ttl) {
+    this.ttl = ttl;
+  }
+
+  /**
+   * @return true if the service listens passively for device broadcasts
+   */
+  public boolean isPassive() {
+    return passive;
+  }
+
+  /**
+   * @param passive true to listen passively for device broadcasts on port 41000 (default), takes
+   *        effect on the next start
+   */
+  public void setPassive(boolean passive) {
+    this.passive = passive;
+  }
+
+  /**
+   * A change of the table: added (no old device), changed or lost (no new device).
+   */
+  private class Event {
+    final EthernetDevice device;
+    final EthernetDevice oldDevice;
+
+    Event(EthernetDevice device, EthernetDevice oldDevice) {
+      this.device = device;
+      this.oldDevice = oldDevice;
+    }
+
+    void fire() {
+      if (null == oldDevice) {
+        notifyAdded(device);
+      } else if (null == device) {
+        notifyLost(oldDevice);
+      } else {
+        notifyChanged(oldDevice, device);
+      }
+    }
+  }
+
+  private static class Entry {
+    EthernetDevice device;
+    long lastSeen;
+    /** the time the device was last put into the cache */
+    long cachedAt;
+
+    Entry(EthernetDevice device, long lastSeen) {
+      this.device = device;
+      this.lastSeen = lastSeen;
+      this.cachedAt = lastSeen;
+    }
+  }
+
+  /**
+   * Receives the broadcasts of the devices which are not answers to our own scans, e.g. after a
+   * device has started.
+   */
+  private class PassiveListener implements Runnable {
+    private final DatagramSocket socket;
+
+    PassiveListener(DatagramSocket socket) {
+      this.socket = socket;
+    }
+
+    @Override
+    public void run() {
+      /* larger than a response, so longer packets are not truncated to a valid length */
+      byte[] recvData = new byte[64];
+      DatagramPacket packet = new DatagramPacket(recvData, recvData.length);
+      while (!socket.isClosed()) {
+        try {
+          packet.setLength(recvData.length);
+          socket.receive(packet);
+          if (!UdpConnection.isMetratecResponse(recvData, packet.getLength())) {
+            logger.trace("ignored packet of {} bytes from {}", packet.getLength(),
+                packet.getAddress());
+            continue;
+          }
+          seen(UdpConnection.parseMetratecResponse(recvData, packet.getAddress()));
+        } catch (IOException e) {
+          if (!socket.isClosed()) {
+            logger.warn("passive discovery stopped - {}", e.getMessage());
+            socket.close();
+          }
+        }
+      }
+    }
+  }
+}
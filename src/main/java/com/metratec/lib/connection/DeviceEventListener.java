@@ -0,0 +1,38 @@
+package com.metratec.lib.connection;
+
+/*******************************************************************************
+ * Copyright (c) 2023 by metraTec GmbH
+ * All rights reserved.
+ *******************************************************************************/
+
+/**
+ * Receives the changes of the device table of a {@link DeviceDiscoveryService}. The methods are
+ * called one at a time and in order by the threads of the service, without the table locked, so
+ * they may query the service. They should return quickly, the events queue up meanwhile.
+ *
+ * @author man
+ */
+public interface DeviceEventListener {
+
+  /**
+   * A device with a new MAC address has been found.
+   *
+   * @param device the device
+   */
+  void deviceAdded(EthernetDevice device);
+
+  /**
+   * A known device answered with a different IP address or device name.
+   *
+   * @param oldDevice the device before the change
+   * @param newDevice the device after the change
+   */
+  void deviceChanged(EthernetDevice oldDevice, EthernetDevice newDevice);
+
+  /**
+   * A device has not been seen within the time to live and was removed from the table.
+   *
+   * @param device the device
+   */
+  void deviceLost(EthernetDevice device);
+}
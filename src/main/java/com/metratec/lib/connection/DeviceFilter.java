@@ -0,0 +1,20 @@
+package com.metratec.lib.connection;
+
+/*******************************************************************************
+ * Copyright (c) 2023 by metraTec GmbH
+ * All rights reserved.
+ *******************************************************************************/
+
+/**
+ * A condition on a discovered device, see {@link DeviceCollector#until(DeviceFilter)}.
+ *
+ * @author man
+ */
+public interface DeviceFilter {
+
+  /**
+   * @param device the device
+   * @return true if the device matches
+   */
+  boolean accept(EthernetDevice device);
+}
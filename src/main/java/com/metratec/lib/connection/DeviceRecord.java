@@ -0,0 +1,256 @@
+package com.metratec.lib.connection;
+
+/*******************************************************************************
+ * Copyright (c) 2023 by metraTec GmbH
+ * All rights reserved.
+ *******************************************************************************/
+
+import java.net.InetAddress;
+
+/**
+ * A compact, immutable representation of an ethernet device for large device tables, see
+ * {@link DeviceRegistry}. The MAC address is stored as long (48 bits), the IPv4 address as int and
+ * the device name is interned, so many devices with the same name share one String.
+ *
+ * Devices are equal if MAC and IP address are equal, like {@link EthernetDevice}. They are ordered
+ * numerically by IP address and MAC address.
+ *
+ * @author man
+ */
+public final class DeviceRecord implements Comparable<DeviceRecord> {
+  private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+  private final long mac;
+  private final int ip;
+  private final String name;
+
+  /**
+   * @param mac the MAC address (the lower 48 bits)
+   * @param ip the IPv4 address
+   * @param name the device name, may be null
+   */
+  public DeviceRecord(long mac, int ip, String name) {
+    this.mac = mac & 0xFFFFFFFFFFFFL;
+    this.ip = ip;
+    this.name = null == name ? null : name.intern();
+  }
+
+  /**
+   * @param device the device
+   * @return the record of the device
+   * @throws IllegalArgumentException if the MAC or IPv4 address of the device is not valid
+   */
+  public static DeviceRecord of(EthernetDevice device) {
+    return new DeviceRecord(parseMac(device.getMACAddress()), parseIp(device.getIPAddress()),
+        device.getDeviceName());
+  }
+
+  /**
+   * Parses the response of a metraTec device to the discovery broadcast, like
+   * {@link UdpConnection#parseMetratecResponse(byte[], InetAddress)}, but without intermediate
+   * Strings.
+   *
+   * @param recvData the received packet data (at least 49 bytes)
+   * @param srcAddr the IPv4 address of the device
+   * @return the record
+   */
+  static DeviceRecord parseMetratecResponse(byte[] recvData, InetAddress srcAddr) {
+    int end = 49;
+    /* trim like String.trim() */
+    while (end > 17 && (recvData[end - 1] & 0xFF) <= ' ') {
+      end--;
+    }
+    int start = 17;
+    while (start < end && (recvData[start] & 0xFF) <= ' ') {
+      start++;
+    }
+    char[] chars = new char[end - start];
+    for (int i = start; i < end; i++) {
+      /* ISO-8859-1 */
+      chars[i - start] = (char) (recvData[i] & 0xFF);
+    }
+    return new DeviceRecord(readMac(recvData, 10), toInt(srcAddr), new String(chars));
+  }
+
+  /**
+   * @param b the buffer
+   * @param off the offset of the 6 MAC address bytes
+   * @return the MAC address
+   */
+  static long readMac(byte[] b, int off) {
+    long mac = 0;
+    for (int i = off; i < off + 6; i++) {
+      mac = (mac << 8) | (b[i] & 0xFF);
+    }
+    return mac;
+  }
+
+  /**
+   * @param mac the MAC address
+   * @return the MAC address in the format of {@link EthernetDevice#getMACAddress()}, e.g.
+   *         "00:11:22:33:44:55"
+   */
+  public static String formatMac(long mac) {
+    char[] chars = new char[17];
+    for (int i = 0, shift = 40; i < 17; i += 3, shift -= 8) {
+      int b = (int) (mac >>> shift) & 0xFF;
+      chars[i] = HEX[b >>> 4];
+      chars[i + 1] = HEX[b & 0x0F];
+      if (i < 15) {
+        chars[i + 2] = ':';
+      }
+    }
+    return new String(chars);
+  }
+
+  /**
+   * @param mac the MAC address with any separator, e.g. "00:11:22:33:44:55" or "00-11-22-33-44-55"
+   * @return the MAC address
+   * @throws IllegalArgumentException if the MAC address is not valid
+   */
+  public static long parseMac(String mac) {
+    if (null == mac) {
+      throw new IllegalArgumentException("no MAC address");
+    }
+    long value = 0;
+    int digits = 0;
+    for (int i = 0; i < mac.length(); i++) {
+      int digit = Character.digit(mac.charAt(i), 16);
+      if (digit >= 0) {
+        value = (value << 4) | digit;
+        digits++;
+      }
+    }
+    if (digits != 12) {
+      throw new IllegalArgumentException("invalid MAC address " + mac);
+    }
+    return value;
+  }
+
+  /**
+   * @param ip the IPv4 address
+   * @return the address in dotted notation
+   */
+  public static String formatIp(int ip) {
+    StringBuilder sb = new StringBuilder(15);
+    sb.append(ip >>> 24).append('.').append((ip >>> 16) & 0xFF).append('.')
+        .append((ip >>> 8) & 0xFF).append('.').append(ip & 0xFF);
+    return sb.toString();
+  }
+
+  /**
+   * @param ip the IPv4 address in dotted notation, e.g. "192.168.2.239"
+   * @return the address
+   * @throws IllegalArgumentException if the address is not valid
+   */
+  public static int parseIp(String ip) {
+    if (null == ip) {
+      throw new IllegalArgumentException("no IP address");
+    }
+    int value = 0;
+    int part = -1;
+    int parts = 0;
+    for (int i = 0; i <= ip.length(); i++) {
+      char c = i < ip.length() ? ip.charAt(i) : '.';
+      if (c == '.') {
+        if (part < 0 || ++parts > 4) {
+          throw new IllegalArgumentException("invalid IP address " + ip);
+        }
+        value = (value << 8) | part;
+        part = -1;
+      } else if (c >= '0' && c <= '9') {
+        part = (part < 0 ? 0 : part * 10) + (c - '0');
+        if (part > 255) {
+          throw new IllegalArgumentException("invalid IP address " + ip);
+        }
+      } else {
+        throw new IllegalArgumentException("invalid IP address " + ip);
+      }
+    }
+    if (parts != 4) {
+      throw new IllegalArgumentException("invalid IP address " + ip);
+    }
+    return value;
+  }
+
+  /**
+   * @param address an IPv4 address
+   * @return the address as int
+   * @throws IllegalArgumentException if the address is no IPv4 address
+   */
+  public static int toInt(InetAddress address) {
+    byte[] b = address.getAddress();
+    if (b.length != 4) {
+      throw new IllegalArgumentException("no IPv4 address " + address);
+    }
+    return (b[0] & 0xFF) << 24 | (b[1] & 0xFF) << 16 | (b[2] & 0xFF) << 8 | (b[3] & 0xFF);
+  }
+
+  /**
+   * @return the MAC address (the lower 48 bits)
+   */
+  public long getMac() {
+    return mac;
+  }
+
+  /**
+   * @return the IPv4 address
+   */
+  public int getIp() {
+    return ip;
+  }
+
+  /**
+   * @return the device name (interned) or null
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * @return the MAC address, e.g. "00:11:22:33:44:55"
+   */
+  public String getMacString() {
+    return formatMac(mac);
+  }
+
+  /**
+   * @return the IP address in dotted notation
+   */
+  public String getIpString() {
+    return formatIp(ip);
+  }
+
+  /**
+   * @return a new EthernetDevice with the data of this record (not reachable)
+   */
+  public EthernetDevice toEthernetDevice() {
+    return new EthernetDevice(getIpString(), getMacString(), name, false);
+  }
+
+  @Override
+  public int compareTo(DeviceRecord o) {
+    /* unsigned order of the addresses */
+    int cmp = Integer.compare(ip ^ Integer.MIN_VALUE, o.ip ^ Integer.MIN_VALUE);
+    return cmp == 0 ? Long.compare(mac, o.mac) : cmp;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (!(obj instanceof DeviceRecord)) {
+      return false;
+    }
+    DeviceRecord o = (DeviceRecord) obj;
+    return mac == o.mac && ip == o.ip;
+  }
+
+  @Override
+  public int hashCode() {
+    return (int) (mac ^ (mac >>> 32)) * 31 + ip;
+  }
+
+  @Override
+  public String toString() {
+    return getIpString() + " " + getMacString() + " " + name;
+  }
+}
@@ -0,0 +1,398 @@
+package com.metratec.lib.connection;
+
+/*******************************************************************************
+ * Copyright (c) 2023 by metraTec GmbH
+ * All rights reserved.
+ *******************************************************************************/
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A table of {@link DeviceRecord}s for large device fleets, indexed by MAC address and IP address
+ * and ordered by IP address for subnet queries. A MAC address is unique in the registry, a record
+ * replaces the record with the same MAC address. Several devices may have the same IP address (e.g.
+ * after an address conflict), they are all kept.
+ *
+ * The indexes are open addressing hash tables of the records themselves, keyed by the primitive
+ * MAC and IP address, so a record costs a few array slots and lookups do not box the keys. The
+ * ordered view for subnet queries is a sorted array, which is rebuilt on the first query after a
+ * change.
+ *
+ * The registry can be filled by a scan with
+ * {@link UdpConnection#discoverMetratecDeviceRecords(int, List, DeviceRegistry)} or, as
+ * {@link DeviceDiscoveryListener}, by any streaming discovery.
+ *
+ * @author man
+ */
+public class DeviceRegistry implements DeviceDiscoveryListener {
+  private static final DeviceRecord[] NO_RECORDS = new DeviceRecord[0];
+
+  private final RecordIndex byMac = new RecordIndex(false);
+  /** the record put last for each IP address and the number of records with the address */
+  private final RecordIndex byIp = new RecordIndex(true);
+  /** all records ordered by IP and MAC address, see {@link DeviceRecord#compareTo(DeviceRecord)} */
+  private DeviceRecord[] ordered = NO_RECORDS;
+  private boolean orderedValid = true;
+
+  /**
+   * Adds a record, replacing the record with the same MAC address.
+   *
+   * @param record the record
+   * @return the replaced record or null
+   */
+  public synchronized DeviceRecord put(DeviceRecord record) {
+    DeviceRecord old = byMac.put(record);
+    if (null != old) {
+      removeIp(old);
+    }
+    byIp.add(record);
+    orderedValid = false;
+    return old;
+  }
+
+  /**
+   * Adds the device (see {@link #put(DeviceRecord)}), devices without valid MAC or IPv4 address are
+   * ignored.
+   *
+   * @param device the device
+   * @return always true, the scan continues
+   */
+  @Override
+  public boolean deviceFound(EthernetDevice device) {
+    try {
+      put(DeviceRecord.of(device));
+    } catch (IllegalArgumentException e) {
+      /* not an IPv4 device */
+    }
+    return true;
+  }
+
+  /**
+   * @param mac the MAC address
+   * @return the removed record or null
+   */
+  public synchronized DeviceRecord remove(long mac) {
+    DeviceRecord old = byMac.remove(mac);
+    if (null != old) {
+      removeIp(old);
+      orderedValid = false;
+    }
+    return old;
+  }
+
+  private void removeIp(DeviceRecord record) {
+    DeviceRecord other = null;
+    if (byIp.count(record.getIp()) > 1 && byIp.get(record.getIp()) == record) {
+      /* an address conflict, another record of the address takes its place */
+      other = byMac.findOtherByIp(record);
+    }
+    byIp.release(record.getIp(), other);
+  }
+
+  /**
+   * Removes all records.
+   */
+  public synchronized void clear() {
+    byMac.clear();
+    byIp.clear();
+    ordered = NO_RECORDS;
+    orderedValid = true;
+  }
+
+  /**
+   * @param mac the MAC address
+   * @return the record or null
+   */
+  public synchronized DeviceRecord get(long mac) {
+    return byMac.get(mac);
+  }
+
+  /**
+   * @param mac the MAC address, e.g. "00:11:22:33:44:55"
+   * @return the record or null
+   * @throws IllegalArgumentException if the MAC address is not valid
+   */
+  public DeviceRecord get(String mac) {
+    return get(DeviceRecord.parseMac(mac));
+  }
+
+  /**
+   * @param ip the IPv4 address
+   * @return the record put last with this address (another record of the address if that one has
+   *         been removed) or null
+   */
+  public synchronized DeviceRecord getByIp(int ip) {
+    return byIp.get(ip);
+  }
+
+  /**
+   * @param ip the IPv4 address
+   * @return all records with this address, ordered by MAC address
+   */
+  public synchronized List<DeviceRecord> getAllByIp(int ip) {
+    int count = byIp.count(ip);
+    if (count <= 1) {
+      List<DeviceRecord> list = new ArrayList<>(count);
+      if (count == 1) {
+        list.add(byIp.get(ip));
+      }
+      return list;
+    }
+    return range(ip, ip);
+  }
+
+  /**
+   * @param ip the IPv4 address in dotted notation
+   * @return the record put last with this address or null
+   * @throws IllegalArgumentException if the address is not valid
+   */
+  public DeviceRecord getByIp(String ip) {
+    return getByIp(DeviceRecord.parseIp(ip));
+  }
+
+  /**
+   * @param network an address in the subnet
+   * @param prefixLength the length of the network prefix (0-32)
+   * @return all records in the subnet, ordered by IP address and MAC address
+   */
+  public synchronized List<DeviceRecord> getBySubnet(int network, int prefixLength) {
+    int mask = prefixLength <= 0 ? 0 : -1 << (32 - Math.min(prefixLength, 32));
+    int first = network & mask;
+    return range(first, first | ~mask);
+  }
+
+  /**
+   * @return the records with an IP address from first to last (unsigned, inclusive)
+   */
+  private List<DeviceRecord> range(int first, int last) {
+    DeviceRecord[] records = getOrdered();
+    int index = Arrays.binarySearch(records, new DeviceRecord(0, first, null));
+    if (index < 0) {
+      index = -index - 1;
+    }
+    List<DeviceRecord> list = new ArrayList<>();
+    for (; index < records.length; index++) {
+      /* unsigned comparison of the addresses */
+      if ((records[index].getIp() ^ Integer.MIN_VALUE) > (last ^ Integer.MIN_VALUE)) {
+        break;
+      }
+      list.add(records[index]);
+    }
+    return list;
+  }
+
+  private DeviceRecord[] getOrdered() {
+    if (!orderedValid) {
+      ordered = byMac.toArray();
+      Arrays.sort(ordered);
+      orderedValid = true;
+    }
+    return ordered;
+  }
+
+  /**
+   * @return the number of records
+   */
+  public synchronized int size() {
+    return byMac.size;
+  }
+
+  /**
+   * @return all records, ordered by IP address and MAC address
+   */
+  public synchronized List<DeviceRecord> getAll() {
+    return new ArrayList<>(Arrays.asList(getOrdered()));
+  }
+
+  /**
+   * An open addressing hash table with linear probing of records, keyed by their MAC or IP
+   * address. The IP index counts the records of each address and holds one of them.
+   */
+  private static class RecordIndex {
+    private final boolean byIp;
+    private DeviceRecord[] table = new DeviceRecord[16];
+    /** number of records per slot, only used by the IP index */
+    private int[] counts;
+    private int size = 0;
+
+    RecordIndex(boolean byIp) {
+      this.byIp = byIp;
+      counts = byIp ? new int[table.length] : null;
+    }
+
+    private long key(DeviceRecord record) {
+      return byIp ? record.getIp() : record.getMac();
+    }
+
+    private static int slot(long key, int mask) {
+      long h = key * 0x9E3779B97F4A7C15L;
+      return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    /**
+     * @return the slot of the key or -1 - the free slot where it belongs
+     */
+    private int find(long key) {
+      int mask = table.length - 1;
+      int i = slot(key, mask);
+      DeviceRecord record;
+      while (null != (record = table[i])) {
+        if (key(record) == key) {
+          return i;
+        }
+        i = (i + 1) & mask;
+      }
+      return -1 - i;
+    }
+
+    DeviceRecord get(long key) {
+      int i = find(key);
+      return i < 0 ? null : table[i];
+    }
+
+    int count(int ip) {
+      int i = find(ip);
+      return i < 0 ? 0 : counts[i];
+    }
+
+    /**
+     * Adds or replaces the record with the same key (MAC index).
+     *
+     * @return the replaced record or null
+     */
+    DeviceRecord put(DeviceRecord record) {
+      int i = find(key(record));
+      if (i >= 0) {
+        DeviceRecord old = table[i];
+        table[i] = record;
+        return old;
+      }
+      insert(-1 - i, record, 1);
+      return null;
+    }
+
+    /**
+     * Adds a record and counts it (IP index), it becomes the record of its address.
+     */
+    void add(DeviceRecord record) {
+      int i = find(key(record));
+      if (i >= 0) {
+        table[i] = record;
+        counts[i]++;
+      } else {
+        insert(-1 - i, record, 1);
+      }
+    }
+
+    private void insert(int i, DeviceRecord record, int count) {
+      table[i] = record;
+      if (null != counts) {
+        counts[i] = count;
+      }
+      if (++size * 2 > table.length) {
+        resize(table.length * 2);
+      }
+    }
+
+    /**
+     * Removes the record with the key (MAC index).
+     *
+     * @return the removed record or null
+     */
+    DeviceRecord remove(long key) {
+      int i = find(key);
+      if (i < 0) {
+        return null;
+      }
+      DeviceRecord old = table[i];
+      delete(i);
+      return old;
+    }
+
+    /**
+     * Uncounts a record of the address (IP index).
+     *
+     * @param other the record which takes the place of the removed one, null to keep the current
+     */
+    void release(int ip, DeviceRecord other) {
+      int i = find(ip);
+      if (i < 0) {
+        return;
+      }
+      if (--counts[i] == 0) {
+        delete(i);
+      } else if (null != other) {
+        table[i] = other;
+      }
+    }
+
+    /**
+     * @return another record with the IP address of the given record (MAC index)
+     */
+    DeviceRecord findOtherByIp(DeviceRecord record) {
+      for (DeviceRecord r : table) {
+        if (null != r && r != record && r.getIp() == record.getIp()) {
+          return r;
+        }
+      }
+      return null;
+    }
+
+    /**
+     * Frees a slot and moves the following records of the probe sequence back, so lookups need no
+     * deleted markers.
+     */
+    private void delete(int gap) {
+      int mask = table.length - 1;
+      int j = gap;
+      DeviceRecord record;
+      while (null != (record = table[j = (j + 1) & mask])) {
+        int home = slot(key(record), mask);
+        if (((j - home) & mask) >= ((j - gap) & mask)) {
+          table[gap] = record;
+          if (null != counts) {
+            counts[gap] = counts[j];
+          }
+          gap = j;
+        }
+      }
+      table[gap] = null;
+      size--;
+    }
+
+    private void resize(int capacity) {
+      DeviceRecord[] oldTable = table;
+      int[] oldCounts = counts;
+      table = new DeviceRecord[capacity];
+      counts = null == oldCounts ? null : new int[capacity];
+      for (int i = 0; i < oldTable.length; i++) {
+        if (null != oldTable[i]) {
+          int j = -1 - find(key(oldTable[i]));
+          table[j] = oldTable[i];
+          if (null != counts) {
+            counts[j] = oldCounts[i];
+          }
+        }
+      }
+    }
+
+    DeviceRecord[] toArray() {
+      DeviceRecord[] records = new DeviceRecord[size];
+      int n = 0;
+      for (DeviceRecord record : table) {
+        if (null != record) {
+          records[n++] = record;
+        }
+      }
+      return records;
+    }
+
+    void clear() {
+      table = new DeviceRecord[16];
+      counts = byIp ? new int[table.length] : null;
+      size = 0;
+    }
+  }
+}
@@ -7,6 +7,8 @@ import java.io.OutputStream;
 import java.io.FileOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 import java.util.Hashtable;
 
@@ -21,6 +23,8 @@ import java.util.Hashtable;
 public class FileConnection extends ICommConnection {
   protected OutputStream outputstream = null;
   protected InputStream inputstream = null;
+  private FileChannel inputChannel = null;
+  private FileChannel outputChannel = null;
 
   private String portName;
 
@@ -36,8 +40,12 @@ public class FileConnection extends ICommConnection {
   public void connect() throws CommConnectionException {
     File file = new File(portName);
     try {
-      outputstream = new FileOutputStream(file);
-      inputstream = new FileInputStream(file);
+      FileOutputStream fileOutputStream = new FileOutputStream(file);
+      FileInputStream fileInputStream = new FileInputStream(file);
+      outputChannel = fileOutputStream.getChannel();
+      inputChannel = fileInputStream.getChannel();
+      outputstream = new PooledOutputStream(fileOutputStream, STREAM_BUFFER_SIZE);
+      inputstream = fileInputStream;
     } catch (FileNotFoundException e) {
       throw new CommConnectionException(SERIAL_PORT_NOT_EXIST,
           "Specified serial port " + portName + " could not be opened: " + e.getMessage());
@@ -55,18 +63,74 @@ public class FileConnection extends ICommConnection {
         outputstream.close();
         outputstream = null;
       }
+      inputChannel = null;
+      outputChannel = null;
     } catch (IOException e) {
       throw new CommConnectionException(SERIAL_NO_ACCESS,
           "No access to Output-/InputStream " + e.getMessage());
     }
   }
 
-  @SuppressWarnings("PMD.EmptyCatchBlock")
   @Override
   public void send(byte[] senddata) throws CommConnectionException {
+    if (null == senddata) {
+      throw new CommConnectionException(WRONG_PARAMETER, "data is null");
+    }
+    send(senddata, 0, senddata.length);
+  }
+
+  @SuppressWarnings("PMD.EmptyCatchBlock")
+  @Override
+  public void send(ByteBuffer src) throws CommConnectionException {
+    if (null == src) {
+      throw new CommConnectionException(WRONG_PARAMETER, "data is null");
+    }
     try {
-      outputstream.write(senddata);
+      // data written by the output stream must be sent first
       outputstream.flush();
+      flushed();
+      while (src.hasRemaining()) {
+        outputChannel.write(src);
+      }
+    } catch (NullPointerException e) {
+      throw new CommConnectionException(NOT_INITIALISED, "not initialized");
+    } catch (IOException e) {
+      try {
+        disconnect();
+      } catch (CommConnectionException e2) {}
+      throw new CommConnectionException(CONNECTION_LOST, e.getMessage());
+    }
+  }
+
+  @SuppressWarnings("PMD.EmptyCatchBlock")
+  @Override
+  public void send(byte[] senddata, int off, int len) throws CommConnectionException {
+    write(senddata, off, len, true);
+  }
+
+  @Override
+  public void send(ByteBuffer... parts) throws CommConnectionException {
+    sendBuffered(parts);
+  }
+
+  @Override
+  public void sendNoFlush(byte[] senddata, int off, int len) throws CommConnectionException {
+    write(senddata, off, len, false);
+  }
+
+  @Override
+  public void flush() throws CommConnectionException {
+    write(NO_DATA, 0, 0, true);
+  }
+
+  private void write(byte[] senddata, int off, int len, boolean flush)
+      throws CommConnectionException {
+    try {
+      outputstream.write(senddata, off, len);
+      if (flush || unflushed(len)) {
+        outputstream.flush();
+        flushed();
+      }
     } catch (NullPointerException e) {
       if (senddata == null) {
         throw new CommConnectionException(WRONG_PARAMETER, "data is null");
@@ -108,6 +172,72 @@ public class FileConnection extends ICommConnection {
     }
   }
 
+  @SuppressWarnings("PMD.EmptyCatchBlock")
+  @Override
+  public int recvAvailable(byte[] b, int off, int len) throws CommConnectionException {
+    if (len <= 0) {
+      return 0;
+    }
+    try {
+      long maxTimeMillis = System.currentTimeMillis() + recvTimeout;
+      int count;
+      while(0 >= (count = inputstream.read(b, off, len))
+          && System.currentTimeMillis() < maxTimeMillis){
+        try {
+          Thread.sleep(1);
+        } catch (InterruptedException e) {
+        }
+      }
+      if (count < 0) {
+        try {
+          disconnect();
+        } catch (CommConnectionException e) {}
+        throw new CommConnectionException(CONNECTION_LOST, "device closed");
+      }
+      return count > 0 ? count : -1;
+    } catch (NullPointerException e) {
+      throw new CommConnectionException(NOT_INITIALISED, "not initialized");
+    } catch (IOException e) {
+      try {
+        disconnect();
+      } catch (CommConnectionException e2) {}
+      throw new CommConnectionException(CONNECTION_LOST, e.getMessage());
+    }
+  }
+
+  @SuppressWarnings("PMD.EmptyCatchBlock")
+  @Override
+  public int read(ByteBuffer dst) throws CommConnectionException {
+    if (!dst.hasRemaining()) {
+      return 0;
+    }
+    try {
+      long maxTimeMillis = System.currentTimeMillis() + recvTimeout;
+      int count;
+      while(0 >= (count = inputChannel.read(dst))
+          && System.currentTimeMillis() < maxTimeMillis){
+        try {
+          Thread.sleep(1);
+        } catch (InterruptedException e) {
+        }
+      }
+      if (count < 0) {
+        try {
+          disconnect();
+        } catch (CommConnectionException e) {}
+        throw new CommConnectionException(CONNECTION_LOST, "device closed");
+      }
+      return count > 0 ? count : -1;
+    } catch (NullPointerException e) {
+      throw new CommConnectionException(NOT_INITIALISED, "not initialized");
+    } catch (IOException e) {
+      try {
+        disconnect();
+      } catch (CommConnectionException e2) {}
+      throw new CommConnectionException(CONNECTION_LOST, e.getMessage());
+    }
+  }
+
   @Override
   public boolean isConnected() {
     return inputstream != null;
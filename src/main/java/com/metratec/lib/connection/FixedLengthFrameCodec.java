@@ -0,0 +1,54 @@
+package com.metratec.lib.connection;
+
+/*******************************************************************************
+ * Copyright (c) 2023 by metraTec GmbH
+ * All rights reserved.
+ *******************************************************************************/
+
+/**
+ * Frames of a fixed length without header or trailer.
+ */
+public class FixedLengthFrameCodec implements FrameCodec {
+  private final int length;
+
+  /**
+   * @param length the frame length
+   */
+  public FixedLengthFrameCodec(int length) {
+    if (length <= 0) {
+      throw new IllegalArgumentException("Frame length must be greater than 0");
+    }
+    this.length = length;
+  }
+
+  @Override
+  public int frameLength(byte[] b, int off, int len, int scanned) {
+    return len >= length ? length : -1;
+  }
+
+  @Override
+  public int headerLength(byte[] b, int off, int frameLength) {
+    return 0;
+  }
+
+  @Override
+  public int trailerLength(byte[] b, int off, int frameLength) {
+    return 0;
+  }
+
+  @Override
+  public int encodedLength(int payloadLength) {
+    return length;
+  }
+
+  @Override
+  public int encode(byte[] payload, int off, int len, byte[] dst, int dstOff)
+      throws CommConnectionException {
+    if (len != length) {
+      throw new CommConnectionException(ICommConnection.WRONG_PARAMETER,
+          "Payload length must be " + length);
+    }
+    System.arraycopy(payload, off, dst, dstOff, len);
+    return len;
+  }
+}
@@ -0,0 +1,85 @@
+package com.metratec.lib.connection;
+
+/*******************************************************************************
+ * Copyright (c) 2023 by metraTec GmbH
+ * All rights reserved.
+ *******************************************************************************/
+
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Automatic flushing of data written with {@link ICommConnection#sendNoFlush(byte[], int, int)}:
+ * the output is flushed as soon as a number of bytes is pending, or a time after the first pending
+ * write at the latest. The delayed flushes of all connections are run by one shared daemon thread.
+ *
+ * The policy is immutable and can be shared by several connections.
+ *
+ * @author man
+ * @see ICommConnection#setFlushPolicy(FlushPolicy)
+ */
+public class FlushPolicy {
+  private static ScheduledThreadPoolExecutor flusher = null;
+
+  private final int maxBytes;
+  private final long maxDelay;
+
+  /**
+   * @param maxBytes flush when at least this number of bytes is pending
+   * @param maxDelay flush at the latest this number of microseconds after the first pending write
+   */
+  public FlushPolicy(int maxBytes, long maxDelay) {
+    if (maxBytes <= 0 || maxDelay <= 0) {
+      throw new IllegalArgumentException("maxBytes and maxDelay must be positive");
+    }
+    this.maxBytes = maxBytes;
+    this.maxDelay = maxDelay;
+  }
+
+  /**
+   * @return the number of pending bytes triggering a flush
+   */
+  public int getMaxBytes() {
+    return maxBytes;
+  }
+
+  /**
+   * @return the maximum time data is pending, in microseconds
+   */
+  public long getMaxDelay() {
+    return maxDelay;
+  }
+
+  /**
+   * Schedules a delayed flush of a connection.
+   */
+  void schedule(final ICommConnection connection) {
+    getFlusher().schedule(new Runnable() {
+      @Override
+      public void run() {
+        connection.delayedFlush();
+      }
+    }, maxDelay, TimeUnit.MICROSECONDS);
+  }
+
+  private static synchronized ScheduledThreadPoolExecutor getFlusher() {
+    if (null == flusher) {
+      flusher = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "ICommConnection-flusher");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      flusher.setRemoveOnCancelPolicy(true);
+    }
+    return flusher;
+  }
+
+  @Override
+  public String toString() {
+    return "FlushPolicy[" + maxBytes + " bytes, " + maxDelay + " us]";
+  }
+}
@@ -0,0 +1,70 @@
+package com.metratec.lib.connection;
+
+/*******************************************************************************
+ * Copyright (c) 2023 by metraTec GmbH
+ * All rights reserved.
+ *******************************************************************************/
+
+/**
+ * Defines how frames are delimited on a connection. Used by {@link FramedConnection}.
+ *
+ * A frame consists of an optional header, the payload and an optional trailer. Implementations
+ * must be stateless, so a codec can be shared by several connections.
+ *
+ * @see DelimiterFrameCodec
+ * @see TerminatorFrameCodec
+ * @see LengthPrefixedFrameCodec
+ * @see FixedLengthFrameCodec
+ */
+public interface FrameCodec {
+
+  /**
+   * Searches the received data for the end of the first frame.
+   *
+   * @param b buffer with the received data
+   * @param off offset of the frame start in the buffer
+   * @param len number of received bytes
+   * @param scanned number of bytes that were already checked by a previous call for the same frame
+   *        (the data did not contain a complete frame at that time)
+   * @return the length of the frame including header and trailer or -1 if the frame is incomplete
+   * @throws CommConnectionException if the data is not a valid frame
+   */
+  int frameLength(byte[] b, int off, int len, int scanned) throws CommConnectionException;
+
+  /**
+   * @param b buffer with the frame
+   * @param off offset of the frame start in the buffer
+   * @param frameLength the length returned by {@link #frameLength(byte[], int, int, int)}
+   * @return the number of bytes in front of the payload
+   */
+  int headerLength(byte[] b, int off, int frameLength);
+
+  /**
+   * @param b buffer with the frame
+   * @param off offset of the frame start in the buffer
+   * @param frameLength the length returned by {@link #frameLength(byte[], int, int, int)}
+   * @return the number of bytes behind the payload
+   */
+  int trailerLength(byte[] b, int off, int frameLength);
+
+  /**
+   * @param payloadLength length of the payload
+   * @return the length of the encoded frame
+   */
+  int encodedLength(int payloadLength);
+
+  /**
+   * Encodes a frame. The destination must provide {@link #encodedLength(int)} bytes.
+   *
+   * @param payload the payload
+   * @param off offset of the payload
+   * @param len length of the payload
+   * @param dst the destination buffer
+   * @param dstOff offset in the destination buffer
+   * @return the length of the encoded frame
+   * @throws CommConnectionException with error code WRONG_PARAMETER if the payload can not be
+   *         encoded
+   */
+  int encode(byte[] payload, int off, int len, byte[] dst, int dstOff)
+      throws CommConnectionException;
+}
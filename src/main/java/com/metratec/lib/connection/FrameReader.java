@@ -0,0 +1,46 @@
+package com.metratec.lib.connection;
+
+/*******************************************************************************
+ * Copyright (c) 2023 by metraTec GmbH
+ * All rights reserved.
+ *******************************************************************************/
+
+/**
+ * Reads terminated frames (e.g. CR-terminated reader responses) from a connection.
+ *
+ * In contrast to {@link ICommConnection#receive(int...)}, the terminators are compiled into a
+ * lookup table once, the connection is read in blocks with
+ * {@link ICommConnection#recvAvailable(byte[], int, int)} and frames are returned as offset and
+ * length into a reusable buffer. Reading a frame does not allocate any objects. The returned frames
+ * include the termination sign.
+ *
+ * The reader may receive more bytes than the current frame, these are kept for the next call. So
+ * once a connection is read through a FrameReader, it should not be read directly any more.
+ *
+ * @author man
+ * @see TerminatorFrameCodec
+ */
+public class FrameReader extends FramedConnection {
+
+  /**
+   * Construct a new frame reader.
+   *
+   * @param connection the connection to read from
+   * @param terminators A list of terminator signs. Note that this may be a list of parameters or an
+   *        array.
+   */
+  public FrameReader(ICommConnection connection, int... terminators) {
+    super(connection, new TerminatorFrameCodec(terminators));
+  }
+
+  /**
+   * Construct a new frame reader.
+   *
+   * @param connection the connection to read from
+   * @param terminators the terminator signs
+   * @param bufferSize initial size of the receive buffer, it grows if a frame does not fit
+   */
+  public FrameReader(ICommConnection connection, int[] terminators, int bufferSize) {
+    super(connection, new TerminatorFrameCodec(terminators), bufferSize);
+  }
+}
@@ -0,0 +1,273 @@
+package com.metratec.lib.connection;
+
+/*******************************************************************************
+ * Copyright (c) 2023 by metraTec GmbH
+ * All rights reserved.
+ *******************************************************************************/
+
+import java.nio.ByteBuffer;
+
+/**
+ * A frame based view of a connection. The framing is defined by a {@link FrameCodec}.
+ *
+ * The connection is read in blocks with {@link ICommConnection#recvAvailable(byte[], int, int)}
+ * into a reusable buffer and the received frames are returned as offset and length into this
+ * buffer. Outgoing frames are encoded into a reusable buffer as well, so neither reading nor sending
+ * a frame allocates objects.
+ *
+ * The view may receive more bytes than the current frame, these are kept for the next call. So once
+ * a connection is read through a FramedConnection, it should not be read directly any more.
+ *
+ * @author man
+ */
+public class FramedConnection {
+  private static final int DEFAULT_BUFFER_SIZE = 1024;
+  /** default of {@link #setMaxFrameSize(int)} */
+  public static final int DEFAULT_MAX_FRAME_SIZE = 1024 * 1024;
+
+  private final ICommConnection connection;
+  private final FrameCodec codec;
+  private byte[] buffer;
+  private ByteBuffer frameView;
+  private final AsciiCharSequence frameText = new AsciiCharSequence();
+  private byte[] sendBuffer = new byte[0];
+  /** start of the data not yet returned as frame */
+  private int start = 0;
+  /** end of the received data */
+  private int end = 0;
+  /** number of bytes at start that have been checked for a complete frame */
+  private int scanned = 0;
+  private int frameOffset = 0;
+  private int frameLength = 0;
+  private int maxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+
+  /**
+   * Construct a new framed connection view.
+   *
+   * @param connection the connection to use
+   * @param codec the framing
+   */
+  public FramedConnection(ICommConnection connection, FrameCodec codec) {
+    this(connection, codec, DEFAULT_BUFFER_SIZE);
+  }
+
+  /**
+   * Construct a new framed connection view.
+   *
+   * @param connection the connection to use
+   * @param codec the framing
+   * @param bufferSize initial size of the receive buffer, it grows if a frame does not fit
+   */
+  public FramedConnection(ICommConnection connection, FrameCodec codec, int bufferSize) {
+    this.connection = connection;
+    this.codec = codec;
+    buffer = new byte[Math.max(bufferSize, 16)];
+    frameView = ByteBuffer.wrap(buffer);
+  }
+
+  /**
+   * Receives the next frame. The payload of the frame is available with {@link #getBuffer()},
+   * {@link #getFrameOffset()} and {@link #getFrameLength()} or as {@link #getFrame()} until the
+   * next call.
+   *
+   * @return the length of the payload
+   * @throws CommConnectionException possible Errorcodes:
+   *         <ul>
+   *         <li>RECV_TIMEOUT - the data received so far is kept for the next call</li>
+   *         <li>CONNECTION_LOST</li>
+   *         <li>UNHANDLED_ERROR - also if the codec rejects the received data or a frame exceeds
+   *         the {@link #setMaxFrameSize(int) maximum frame size}, the received data is discarded
+   *         then</li>
+   *         <li>NOT_INITIALISE</li>
+   *         </ul>
+   */
+  public int readFrame() throws CommConnectionException {
+    int length = tryReadFrame();
+    if (length < 0) {
+      throw CommConnectionException.recvTimeout();
+    }
+    return length;
+  }
+
+  /**
+   * Receives the next frame like {@link #readFrame()}, but returns -1 instead of throwing an
+   * exception on a receive timeout. The data received so far is kept for the next call.
+   *
+   * @return the length of the payload or -1 on a receive timeout
+   * @throws CommConnectionException possible Errorcodes: see {@link #readFrame()} except
+   *         RECV_TIMEOUT
+   */
+  public int tryReadFrame() throws CommConnectionException {
+    while (true) {
+      if (end > start) {
+        int length;
+        try {
+          length = codec.frameLength(buffer, start, end - start, scanned);
+        } catch (CommConnectionException e) {
+          /* the same bytes would be rejected again by every later call */
+          discard();
+          throw e;
+        }
+        if (length > 0) {
+          int header = codec.headerLength(buffer, start, length);
+          frameOffset = start + header;
+          frameLength = length - header - codec.trailerLength(buffer, start, length);
+          start += length;
+          scanned = 0;
+          return frameLength;
+        }
+        scanned = end - start;
+      }
+      int free = prepareBuffer();
+      int count = connection.recvAvailable(buffer, end, free);
+      if (count <= 0) {
+        return -1;
+      }
+      end += count;
+    }
+  }
+
+  /**
+   * Makes room at the end of the buffer.
+   *
+   * @return number of free bytes at the end of the buffer
+   * @throws CommConnectionException UNHANDLED_ERROR if the incomplete frame has reached the maximum
+   *         frame size
+   */
+  private int prepareBuffer() throws CommConnectionException {
+    if (start == end) {
+      start = end = 0;
+    } else if (end == buffer.length) {
+      int length = end - start;
+      if (start > 0) {
+        System.arraycopy(buffer, start, buffer, 0, length);
+      } else {
+        if (length >= maxFrameSize) {
+          discard();
+          throw new CommConnectionException(ICommConnection.UNHANDLED_ERROR,
+              "Frame exceeds the maximum size of " + maxFrameSize + " bytes");
+        }
+        byte[] newBuffer = new byte[(int) Math.min(buffer.length * 2L, maxFrameSize)];
+        System.arraycopy(buffer, 0, newBuffer, 0, length);
+        buffer = newBuffer;
+        frameView = ByteBuffer.wrap(buffer);
+      }
+      start = 0;
+      end = length;
+    }
+    return buffer.length - end;
+  }
+
+  /**
+   * Discards the received data.
+   */
+  private void discard() {
+    start = end = scanned = 0;
+  }
+
+  /**
+   * Sends a frame.
+   *
+   * @param payload the payload of the frame
+   * @param off offset of the payload
+   * @param len length of the payload
+   * @throws CommConnectionException possible Errorcodes: see {@link ICommConnection#send(byte[])}
+   */
+  public void sendFrame(byte[] payload, int off, int len) throws CommConnectionException {
+    int length = codec.encodedLength(len);
+    if (sendBuffer.length < length) {
+      sendBuffer = new byte[Math.max(length, 2 * sendBuffer.length)];
+    }
+    length = codec.encode(payload, off, len, sendBuffer, 0);
+    connection.send(sendBuffer, 0, length);
+  }
+
+  /**
+   * Sends a frame.
+   *
+   * @param payload the payload of the frame
+   * @throws CommConnectionException possible Errorcodes: see {@link ICommConnection#send(byte[])}
+   */
+  public void sendFrame(byte[] payload) throws CommConnectionException {
+    sendFrame(payload, 0, payload.length);
+  }
+
+  /**
+   * @return the buffer holding the last frame, it may change if the buffer has to grow
+   */
+  public byte[] getBuffer() {
+    return buffer;
+  }
+
+  /**
+   * @return the offset of the last frame's payload in {@link #getBuffer()}
+   */
+  public int getFrameOffset() {
+    return frameOffset;
+  }
+
+  /**
+   * @return the length of the last frame's payload
+   */
+  public int getFrameLength() {
+    return frameLength;
+  }
+
+  /**
+   * @return a view of the last frame's payload, the position is the payload start and the limit the
+   *         payload end. The view is reused, so it is only valid until the next call of
+   *         {@link #readFrame()}.
+   */
+  public ByteBuffer getFrame() {
+    frameView.limit(frameOffset + frameLength);
+    frameView.position(frameOffset);
+    return frameView;
+  }
+
+  /**
+   * @return a text view of the last frame's payload, one ISO-8859-1 character per byte. The view is
+   *         reused, so it is only valid until the next call of {@link #readFrame()}.
+   */
+  public AsciiCharSequence getFrameText() {
+    return frameText.set(buffer, frameOffset, frameLength);
+  }
+
+  /**
+   * @return the maximum frame size in bytes
+   */
+  public int getMaxFrameSize() {
+    return maxFrameSize;
+  }
+
+  /**
+   * Sets the maximum size of a received frame including header and trailer, e.g. to stop a peer
+   * which never sends the delimiter from growing the receive buffer without limit. A larger frame
+   * fails with UNHANDLED_ERROR.
+   *
+   * @param maxFrameSize the maximum frame size in bytes (default {@value #DEFAULT_MAX_FRAME_SIZE})
+   */
+  public void setMaxFrameSize(int maxFrameSize) {
+    this.maxFrameSize = Math.max(maxFrameSize, 16);
+  }
+
+  /**
+   * @return number of bytes already received but not yet returned as frame
+   */
+  public int available() {
+    return end - start;
+  }
+
+  /**
+   * @return the connection
+   */
+  public ICommConnection getConnection() {
+    return connection;
+  }
+
+  /**
+   * @return the framing
+   */
+  public FrameCodec getCodec() {
+    return codec;
+  }
+}
@@ -7,6 +7,7 @@ package com.metratec.lib.connection;
 
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.Arrays;
 import java.util.Hashtable;
@@ -137,6 +138,37 @@ public abstract class ICommConnection {
    */
   public static final int NOT_AVAILABLE = 0x0000000A;
 
+  /**
+   * Charset of the String based methods
+   */
+  protected static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+  /**
+   * Size of the intermediate array used for buffers without accessible array
+   */
+  private static final int TRANSFER_CHUNK_SIZE = 8192;
+  /**
+   * Size of the stream buffers borrowed from the {@link BufferPool}
+   */
+  static final int STREAM_BUFFER_SIZE = 8192;
+
+  static final byte[] NO_DATA = new byte[0];
+  /** guards the unflushed byte count */
+  private final Object flushLock = new Object();
+  private volatile FlushPolicy flushPolicy = null;
+  /** bytes written by sendNoFlush() since the last flush */
+  private int unflushedBytes = 0;
+  private boolean flushScheduled = false;
+  /** guards the text send buffer */
+  private final Object textSendLock = new Object();
+  /** reusable buffer of {@link #send(CharSequence)}, allocated on first use */
+  private byte[] textSendBuffer;
+  /** reusable buffer of {@link #receiveText(int...)}, allocated on first use */
+  private byte[] textRecvBuffer;
+  /** length of the text received by {@link #tryReceiveText(int...)} so far */
+  private int textRecvLength;
+  private AsciiCharSequence textRecvView;
+
   /**
    * This method opens a connection. Parameters are passed through the constructor
    *
@@ -225,7 +257,186 @@ public abstract class ICommConnection {
    *         </ul>
    */
   public void send(String senddata) throws CommConnectionException {
-    send(senddata.getBytes(Charset.forName("ISO-8859-1")));
+    send((CharSequence) senddata);
+  }
+
+  /**
+   * Sends text to the connected device. The characters are encoded as ISO-8859-1 into a reusable
+   * buffer of the connection, characters outside of ISO-8859-1 are sent as '?'. So unlike
+   * {@link String#getBytes()}, sending a {@link StringBuilder} or a String of up to 8 KB does not
+   * allocate anything, longer texts are encoded into a temporary array. The text is always passed
+   * to {@link #send(byte[], int, int)} in one piece, so connections without output buffer do not
+   * split it into several transfers.
+   *
+   * @param senddata data/command send to the connected device
+   * @throws CommConnectionException possible Errorcodes: see {@link #send(byte[])}
+   */
+  public void send(CharSequence senddata) throws CommConnectionException {
+    sendText(senddata, true);
+  }
+
+  private void sendText(CharSequence senddata, boolean flush) throws CommConnectionException {
+    if (null == senddata) {
+      throw new CommConnectionException(WRONG_PARAMETER, "data are null");
+    }
+    synchronized (textSendLock) {
+      int length = senddata.length();
+      byte[] buffer;
+      if (length > TRANSFER_CHUNK_SIZE) {
+        /* not kept, so a single long text does not pin a large buffer */
+        buffer = new byte[length];
+      } else {
+        if (null == textSendBuffer || textSendBuffer.length < length) {
+          textSendBuffer = new byte[Math.max(length, 64)];
+        }
+        buffer = textSendBuffer;
+      }
+      for (int i = 0; i < length; i++) {
+        char c = senddata.charAt(i);
+        buffer[i] = (byte) (c <= 0xFF ? c : '?');
+      }
+      if (flush) {
+        send(buffer, 0, length);
+      } else {
+        sendNoFlush(buffer, 0, length);
+      }
+    }
+  }
+
+  /**
+   * Writes data without flushing the output, so several commands can be sent in one transfer (one
+   * TCP segment, one USB transfer). The data is sent with the next {@link #flush()} or
+   * {@link #send(byte[])}, or according to the {@link FlushPolicy} of the connection. Connections
+   * without an output buffer send the data immediately.
+   *
+   * @param senddata the data
+   * @param off the offset of the data
+   * @param len the length of the data
+   * @throws CommConnectionException possible Errorcodes: see {@link #send(byte[])}
+   */
+  public void sendNoFlush(byte[] senddata, int off, int len) throws CommConnectionException {
+    send(senddata, off, len);
+  }
+
+  /**
+   * Writes data without flushing the output, see {@link #sendNoFlush(byte[], int, int)}.
+   *
+   * @param senddata the data
+   * @throws CommConnectionException possible Errorcodes: see {@link #send(byte[])}
+   */
+  public void sendNoFlush(byte[] senddata) throws CommConnectionException {
+    if (null == senddata) {
+      throw new CommConnectionException(WRONG_PARAMETER, "data are null");
+    }
+    sendNoFlush(senddata, 0, senddata.length);
+  }
+
+  /**
+   * Writes text without flushing the output, see {@link #sendNoFlush(byte[], int, int)} and
+   * {@link #send(CharSequence)}.
+   *
+   * @param senddata the text
+   * @throws CommConnectionException possible Errorcodes: see {@link #send(byte[])}
+   */
+  public void sendNoFlush(CharSequence senddata) throws CommConnectionException {
+    sendText(senddata, false);
+  }
+
+  /**
+   * Sends all data written by {@link #sendNoFlush(byte[], int, int)}.
+   *
+   * @throws CommConnectionException possible Errorcodes: see {@link #send(byte[])}
+   */
+  public void flush() throws CommConnectionException {
+    // nothing buffered by default
+  }
+
+  /**
+   * Sets the automatic flushing of data written by {@link #sendNoFlush(byte[], int, int)}.
+   *
+   * @param flushPolicy the policy or null (default) to send the data only with {@link #flush()} or
+   *        the next {@link #send(byte[])}
+   */
+  public void setFlushPolicy(FlushPolicy flushPolicy) {
+    this.flushPolicy = flushPolicy;
+  }
+
+  /**
+   * @return the automatic flushing policy or null
+   */
+  public FlushPolicy getFlushPolicy() {
+    return flushPolicy;
+  }
+
+  /**
+   * Returns the buffers of pooled streams to the {@link BufferPool}. The device must be closed
+   * first, so blocked reads return.
+   *
+   * @param in the input stream of the connection or null
+   * @param out the output stream of the connection or null
+   */
+  static void releaseStreams(InputStream in, OutputStream out) {
+    if (in instanceof PooledInputStream) {
+      ((PooledInputStream) in).release();
+    }
+    if (out instanceof PooledOutputStream) {
+      ((PooledOutputStream) out).release();
+    }
+  }
+
+  /**
+   * Counts data written without flush, for implementations of
+   * {@link #sendNoFlush(byte[], int, int)}. Schedules a delayed flush according to the
+   * {@link FlushPolicy}.
+   *
+   * @param len the number of bytes written
+   * @return true if the output must be flushed now
+   */
+  protected boolean unflushed(int len) {
+    FlushPolicy policy = flushPolicy;
+    synchronized (flushLock) {
+      unflushedBytes += len;
+      if (null == policy) {
+        return false;
+      }
+      if (unflushedBytes >= policy.getMaxBytes()) {
+        unflushedBytes = 0;
+        return true;
+      }
+      if (!flushScheduled) {
+        flushScheduled = true;
+        policy.schedule(this);
+      }
+      return false;
+    }
+  }
+
+  /**
+   * Tells that the output has been flushed, for implementations of {@link #flush()} and
+   * {@link #send(byte[])}.
+   */
+  protected void flushed() {
+    synchronized (flushLock) {
+      unflushedBytes = 0;
+    }
+  }
+
+  /**
+   * Called by the flusher of the {@link FlushPolicy}.
+   */
+  void delayedFlush() {
+    synchronized (flushLock) {
+      flushScheduled = false;
+      if (unflushedBytes == 0) {
+        return;
+      }
+      unflushedBytes = 0;
+    }
+    try {
+      flush();
+    } catch (CommConnectionException e) {
+      // reported by the next send
+    }
   }
 
   /**
@@ -260,6 +471,145 @@ public abstract class ICommConnection {
    */
   public abstract void send(byte[] senddata) throws CommConnectionException;
 
+  /**
+   * Sends a part of a byte array to the connected device.
+   *
+   * The default implementation copies the part and calls {@link #send(byte[])}, transports should
+   * override it to write the array directly.
+   *
+   * @param senddata data/command send to the connected device
+   * @param off offset of the data in the array
+   * @param len number of bytes to send
+   * @throws CommConnectionException possible Errorcodes: see {@link #send(byte[])}
+   */
+  public void send(byte[] senddata, int off, int len) throws CommConnectionException {
+    if (null == senddata) {
+      throw new CommConnectionException(WRONG_PARAMETER, "data are null");
+    }
+    if (off == 0 && len == senddata.length) {
+      send(senddata);
+    } else {
+      send(Arrays.copyOfRange(senddata, off, off + len));
+    }
+  }
+
+  /**
+   * Sends the remaining bytes of a buffer to the connected device. Afterwards the position of the
+   * buffer is equal to its limit.
+   *
+   * Buffers backed by an array are sent without copying. Connections with a channel (see
+   * {@link TcpConnection#setChannelBacked(boolean)} and {@link FileConnection}) also write direct
+   * buffers without copying, other connections copy them in chunks.
+   *
+   * @param src the buffer to send
+   * @throws CommConnectionException possible Errorcodes: see {@link #send(byte[])}
+   */
+  public void send(ByteBuffer src) throws CommConnectionException {
+    if (null == src) {
+      throw new CommConnectionException(WRONG_PARAMETER, "data are null");
+    }
+    if (src.hasArray()) {
+      send(src.array(), src.arrayOffset() + src.position(), src.remaining());
+      src.position(src.limit());
+    } else {
+      byte[] chunk = new byte[Math.min(src.remaining(), TRANSFER_CHUNK_SIZE)];
+      while (src.hasRemaining()) {
+        int len = Math.min(src.remaining(), chunk.length);
+        src.get(chunk, 0, len);
+        send(chunk, 0, len);
+      }
+    }
+  }
+
+  /**
+   * Sends several parts as one message (gathering write), for example a header, the payload and a
+   * trailer, without concatenating them first. The positions of the buffers are advanced.
+   *
+   * The default implementation copies the parts into one array and calls
+   * {@link #send(byte[], int, int)}, so the parts are one message (one datagram) on every
+   * connection. Connections with an output buffer write the parts into it and flush once, tcp
+   * connections backed by a SocketChannel use a gathering write.
+   *
+   * @param parts the parts of the message
+   * @throws CommConnectionException possible Errorcodes: see {@link #send(byte[])}
+   */
+  public void send(ByteBuffer... parts) throws CommConnectionException {
+    byte[] message = new byte[remaining(parts)];
+    int length = 0;
+    for (ByteBuffer part : parts) {
+      int count = part.remaining();
+      part.get(message, length, count);
+      length += count;
+    }
+    send(message, 0, length);
+  }
+
+  /**
+   * Sends several parts as one message (gathering write), see {@link #send(ByteBuffer...)}.
+   *
+   * @param parts the parts of the message
+   * @throws CommConnectionException possible Errorcodes: see {@link #send(byte[])}
+   */
+  public void send(byte[][] parts) throws CommConnectionException {
+    if (null == parts) {
+      throw new CommConnectionException(WRONG_PARAMETER, "data are null");
+    }
+    ByteBuffer[] buffers = new ByteBuffer[parts.length];
+    for (int i = 0; i < parts.length; i++) {
+      if (null == parts[i]) {
+        throw new CommConnectionException(WRONG_PARAMETER, "data are null");
+      }
+      buffers[i] = ByteBuffer.wrap(parts[i]);
+    }
+    send(buffers);
+  }
+
+  /**
+   * @return the number of bytes remaining in all parts
+   * @throws CommConnectionException with error code {@link #WRONG_PARAMETER} if a part is null
+   */
+  static int remaining(ByteBuffer[] parts) throws CommConnectionException {
+    if (null == parts) {
+      throw new CommConnectionException(WRONG_PARAMETER, "data are null");
+    }
+    int length = 0;
+    for (ByteBuffer part : parts) {
+      if (null == part) {
+        throw new CommConnectionException(WRONG_PARAMETER, "data are null");
+      }
+      length += part.remaining();
+    }
+    return length;
+  }
+
+  /**
+   * Gathering write for connections with an output buffer: writes the parts with
+   * {@link #sendNoFlush(byte[], int, int)} and flushes once.
+   *
+   * @param parts the parts of the message
+   * @throws CommConnectionException possible Errorcodes: see {@link #send(byte[])}
+   */
+  final void sendBuffered(ByteBuffer[] parts) throws CommConnectionException {
+    remaining(parts);
+    byte[] chunk = null;
+    for (ByteBuffer part : parts) {
+      if (part.hasArray()) {
+        sendNoFlush(part.array(), part.arrayOffset() + part.position(), part.remaining());
+        part.position(part.limit());
+      } else {
+        while (part.hasRemaining()) {
+          if (null == chunk) {
+            chunk = new byte[Math.min(part.remaining(), TRANSFER_CHUNK_SIZE)];
+          }
+          int len = Math.min(part.remaining(), chunk.length);
+          part.get(chunk, 0, len);
+          sendNoFlush(chunk, 0, len);
+        }
+      }
+    }
+    flush();
+  }
+
   /**
    * Receives data from the connected device until one of the terminator signs is found.
    *
@@ -301,7 +651,8 @@ public abstract class ICommConnection {
   /**
    * Receives data from the connected device until one of the terminator signs is found.
    *
-   * The result is returned as a StringBuilder for performance reasons.
+   * The result is returned as a StringBuilder for performance reasons. Use a {@link FrameReader}
+   * or a {@link FramedConnection} to receive frames without allocating objects.
    *
    * @param terminators A list of terminator signs. Note that this may be a list of parameters or an
    *        array.
@@ -336,18 +687,84 @@ public abstract class ICommConnection {
    */
   public StringBuilder receive(int... terminators) throws CommConnectionException {
     StringBuilder data = new StringBuilder();
-    Arrays.sort(terminators);
     while (true) {
       int c = recv();
 
       if (c < 0) {
-        throw new CommConnectionException(RECV_TIMEOUT, data.toString());
+        /* a timeout without any data is routine when polling, so no stack trace is filled in */
+        throw data.length() == 0 ? CommConnectionException.recvTimeout()
+            : new CommConnectionException(RECV_TIMEOUT, data.toString());
       }
 
       data.append((char) c);
 
-      if (Arrays.binarySearch(terminators, c) >= 0) {
-        return data;
+      /* there are only one or two terminators in practice, so a linear search is the fastest */
+      for (int terminator : terminators) {
+        if (terminator == c) {
+          return data;
+        }
+      }
+    }
+  }
+
+  /**
+   * Receives data until one of the terminators is received, like {@link #receive(int...)}, without
+   * creating a StringBuilder or String. The text is returned as a view of a reusable buffer of the
+   * connection, so it is only valid until the next call. Use {@link AsciiCharSequence#toString()}
+   * to keep it.
+   *
+   * @param terminators A list of terminator signs. Note that this may be a list of parameters or an
+   *        array.
+   * @return the received text, including the termination sign
+   * @throws CommConnectionException possible Errorcodes: see {@link #receive(int...)}
+   */
+  public AsciiCharSequence receiveText(int... terminators) throws CommConnectionException {
+    AsciiCharSequence text = tryReceiveText(terminators);
+    if (null == text) {
+      int length = textRecvLength;
+      textRecvLength = 0;
+      throw length == 0 ? CommConnectionException.recvTimeout()
+          : new CommConnectionException(RECV_TIMEOUT,
+              new String(textRecvBuffer, 0, length, ISO_8859_1));
+    }
+    return text;
+  }
+
+  /**
+   * Receives data until one of the terminators is received, like {@link #receiveText(int...)}, but
+   * returns null instead of throwing an exception on a receive timeout. The data received so far is
+   * kept and continued with the next call, so this can be used in a polling loop with short
+   * timeouts.
+   *
+   * @param terminators A list of terminator signs. Note that this may be a list of parameters or an
+   *        array.
+   * @return the received text including the termination sign, or null on a receive timeout
+   * @throws CommConnectionException possible Errorcodes: see {@link #receive(int...)} except
+   *         RECV_TIMEOUT
+   */
+  public AsciiCharSequence tryReceiveText(int... terminators) throws CommConnectionException {
+    if (null == textRecvBuffer) {
+      textRecvBuffer = new byte[64];
+      textRecvView = new AsciiCharSequence();
+    }
+    while (true) {
+      int c = recv();
+
+      if (c < 0) {
+        return null;
+      }
+
+      if (textRecvLength == textRecvBuffer.length) {
+        textRecvBuffer = Arrays.copyOf(textRecvBuffer, 2 * textRecvLength);
+      }
+      textRecvBuffer[textRecvLength++] = (byte) c;
+
+      for (int terminator : terminators) {
+        if (terminator == c) {
+          int length = textRecvLength;
+          textRecvLength = 0;
+          return textRecvView.set(textRecvBuffer, 0, length);
+        }
       }
     }
   }
@@ -419,15 +836,103 @@ public abstract class ICommConnection {
    */
   public void recv(byte[] b, int off, int len) throws CommConnectionException {
     while (len > 0) {
-      int c = recv();
+      int count = recvAvailable(b, off, len);
+
+      if (count <= 0) {
+        throw CommConnectionException.recvTimeout();
+      }
 
+      off += count;
+      len -= count;
+    }
+  }
+
+  /**
+   * Receives the bytes that are ready, but at most <code>len</code> bytes. Blocks until at least
+   * one byte is available or the receive timeout expires.
+   *
+   * This is the bulk counterpart of {@link #recv()}. The default implementation reads a single byte
+   * with {@link #recv()} and then as many bytes as {@link #dataAvailable()} reports, so transports
+   * should override it with a real block read.
+   *
+   * @param b Byte array to fill
+   * @param off Offset into array (it is filled beginning with the offset)
+   * @param len Maximum number of bytes to read.
+   * @return number of bytes read or -1 if no data arrived during the receive timeout
+   * @throws CommConnectionException possible Errorcodes:
+   *         <ul>
+   *         <li>for all connections
+   *         <ul>
+   *         <li>CONNECTION_LOST</li>
+   *         <li>UNHANDLED_ERROR</li>
+   *         <li>NOT_INITIALISE</li>
+   *         </ul>
+   *         </li>
+   *         </ul>
+   */
+  public int recvAvailable(byte[] b, int off, int len) throws CommConnectionException {
+    if (len <= 0) {
+      return 0;
+    }
+    int c = recv();
+    if (c < 0) {
+      return -1;
+    }
+    b[off] = (byte) c;
+    int count = 1;
+    int available = Math.min(dataAvailable(), len - 1);
+    while (count <= available) {
+      c = recv();
       if (c < 0) {
-        throw new CommConnectionException(RECV_TIMEOUT);
+        break;
       }
+      b[off + count++] = (byte) c;
+    }
+    return count;
+  }
 
-      b[off++] = (byte) c;
-      len--;
+  /**
+   * Creates a frame based view of this connection.
+   *
+   * @param codec the framing, e.g. {@link DelimiterFrameCodec} or {@link LengthPrefixedFrameCodec}
+   * @return a new {@link FramedConnection} reading from and sending to this connection
+   */
+  public FramedConnection createFramedConnection(FrameCodec codec) {
+    return new FramedConnection(this, codec);
+  }
+
+  /**
+   * Receives the bytes that are ready into a buffer, but at most {@link ByteBuffer#remaining()}
+   * bytes. Blocks until at least one byte is available or the receive timeout expires. The position
+   * of the buffer is advanced by the number of bytes received.
+   *
+   * Buffers backed by an array are filled without copying. Connections with a channel (see
+   * {@link TcpConnection#setChannelBacked(boolean)} and {@link FileConnection}) also fill direct
+   * buffers without copying if data is already waiting.
+   *
+   * @param dst the buffer to fill
+   * @return number of bytes read or -1 if no data arrived during the receive timeout
+   * @throws CommConnectionException possible Errorcodes: see
+   *         {@link #recvAvailable(byte[], int, int)}
+   */
+  public int read(ByteBuffer dst) throws CommConnectionException {
+    if (!dst.hasRemaining()) {
+      return 0;
+    }
+    int count;
+    if (dst.hasArray()) {
+      count = recvAvailable(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+      if (count > 0) {
+        dst.position(dst.position() + count);
+      }
+    } else {
+      byte[] chunk = new byte[Math.min(dst.remaining(), TRANSFER_CHUNK_SIZE)];
+      count = recvAvailable(chunk, 0, chunk.length);
+      if (count > 0) {
+        dst.put(chunk, 0, count);
+      }
     }
+    return count;
   }
 
   /**
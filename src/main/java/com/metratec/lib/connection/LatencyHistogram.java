@@ -0,0 +1,160 @@
+package com.metratec.lib.connection;
+
+/*******************************************************************************
+ * Copyright (c) 2023 by metraTec GmbH
+ * All rights reserved.
+ *******************************************************************************/
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of durations in nanoseconds, with log-linear buckets like an HDR histogram.
+ * Every power of two is divided into 32 buckets, so the reported values are accurate to about 3%.
+ * Recording is a single atomic increment, snapshots are taken without locking.
+ */
+public class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 5;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final StripedCounter sum = new StripedCounter();
+  private final AtomicLong max = new AtomicLong();
+
+  /**
+   * Records a duration.
+   *
+   * @param nanos the duration in nanoseconds, negative values are recorded as 0
+   */
+  public void record(long nanos) {
+    long value = Math.max(0, nanos);
+    counts.incrementAndGet(index(value));
+    sum.add(value);
+    long currentMax;
+    while (value > (currentMax = max.get())) {
+      if (max.compareAndSet(currentMax, value)) {
+        break;
+      }
+    }
+  }
+
+  private static int index(long value) {
+    if (value < 2 * SUB_BUCKETS) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+    return exponent * SUB_BUCKETS + (int) (value >>> exponent);
+  }
+
+  /**
+   * @return the highest value falling into the bucket
+   */
+  private static long highestValue(int index) {
+    if (index < 2 * SUB_BUCKETS) {
+      return index;
+    }
+    int exponent = index / SUB_BUCKETS - 1;
+    long subBucket = index - exponent * SUB_BUCKETS;
+    return ((subBucket + 1) << exponent) - 1;
+  }
+
+  /**
+   * @return a snapshot of the recorded values
+   */
+  public Snapshot getSnapshot() {
+    long[] snapshot = new long[BUCKETS];
+    long count = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      snapshot[i] = counts.get(i);
+      count += snapshot[i];
+    }
+    return new Snapshot(snapshot, count, sum.sum(), max.get());
+  }
+
+  /**
+   * The state of a histogram at one point in time. The values are in nanoseconds.
+   */
+  public static class Snapshot {
+    private final long[] counts;
+    private final long count;
+    private final long sum;
+    private final long max;
+
+    Snapshot(long[] counts, long count, long sum, long max) {
+      this.counts = counts;
+      this.count = count;
+      this.sum = sum;
+      this.max = max;
+    }
+
+    /**
+     * @return the number of recorded values
+     */
+    public long getCount() {
+      return count;
+    }
+
+    /**
+     * @return the mean value or 0 if nothing was recorded
+     */
+    public long getMean() {
+      return count > 0 ? sum / count : 0;
+    }
+
+    /**
+     * @return the highest recorded value
+     */
+    public long getMax() {
+      return max;
+    }
+
+    /**
+     * @param percentile the percentile (0 - 100)
+     * @return the value at the given percentile or 0 if nothing was recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+      if (count == 0) {
+        return 0;
+      }
+      long rank = (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * count);
+      long seen = 0;
+      for (int i = 0; i < counts.length; i++) {
+        seen += counts[i];
+        if (seen >= Math.max(1, rank)) {
+          return Math.min(highestValue(i), max);
+        }
+      }
+      return max;
+    }
+
+    /**
+     * @return the median
+     */
+    public long getP50() {
+      return getValueAtPercentile(50);
+    }
+
+    /**
+     * @return the 99th percentile
+     */
+    public long getP99() {
+      return getValueAtPercentile(99);
+    }
+
+    /**
+     * @return the 99.9th percentile
+     */
+    public long getP999() {
+      return getValueAtPercentile(99.9);
+    }
+
+    @Override
+    public String toString() {
+      return new StringBuilder().append("count=").append(count).append(" mean=")
+          .append(getMean() / 1000).append("us p50=").append(getP50() / 1000).append("us p99=")
+          .append(getP99() / 1000).append("us p999=").append(getP999() / 1000).append("us max=")
+          .append(max / 1000).append("us").toString();
+    }
+  }
+}
@@ -0,0 +1,84 @@
+package com.metratec.lib.connection;
+
+/*******************************************************************************
+ * Copyright (c) 2023 by metraTec GmbH
+ * All rights reserved.
+ *******************************************************************************/
+
+/**
+ * Frames with a big-endian, unsigned length prefix of 1, 2 or 4 bytes in front of the payload. The
+ * prefix holds the payload length.
+ */
+public class LengthPrefixedFrameCodec implements FrameCodec {
+  private final int prefixLength;
+  private final int maxPayloadLength;
+
+  /**
+   * @param prefixLength size of the length prefix in bytes (1, 2 or 4)
+   * @param maxPayloadLength largest accepted payload length, longer frames are rejected
+   */
+  public LengthPrefixedFrameCodec(int prefixLength, int maxPayloadLength) {
+    if (prefixLength != 1 && prefixLength != 2 && prefixLength != 4) {
+      throw new IllegalArgumentException("Prefix length must be 1, 2 or 4");
+    }
+    if (maxPayloadLength < 0) {
+      throw new IllegalArgumentException("Maximum payload length must not be negative");
+    }
+    this.prefixLength = prefixLength;
+    this.maxPayloadLength = prefixLength == 4 ? maxPayloadLength
+        : Math.min(maxPayloadLength, (1 << 8 * prefixLength) - 1);
+  }
+
+  /**
+   * @param prefixLength size of the length prefix in bytes (1, 2 or 4)
+   */
+  public LengthPrefixedFrameCodec(int prefixLength) {
+    this(prefixLength, 65536);
+  }
+
+  @Override
+  public int frameLength(byte[] b, int off, int len, int scanned) throws CommConnectionException {
+    if (len < prefixLength) {
+      return -1;
+    }
+    long payloadLength = 0;
+    for (int i = 0; i < prefixLength; i++) {
+      payloadLength = payloadLength << 8 | (b[off + i] & 0xFF);
+    }
+    if (payloadLength > maxPayloadLength) {
+      throw new CommConnectionException(ICommConnection.UNHANDLED_ERROR,
+          "Frame length " + payloadLength + " exceeds the maximum of " + maxPayloadLength);
+    }
+    int frameLength = prefixLength + (int) payloadLength;
+    return len >= frameLength ? frameLength : -1;
+  }
+
+  @Override
+  public int headerLength(byte[] b, int off, int frameLength) {
+    return prefixLength;
+  }
+
+  @Override
+  public int trailerLength(byte[] b, int off, int frameLength) {
+    return 0;
+  }
+
+  @Override
+  public int encodedLength(int payloadLength) {
+    return prefixLength + payloadLength;
+  }
+
+  @Override
+  public int encode(byte[] payload, int off, int len, byte[] dst, int dstOff)
+      throws CommConnectionException {
+    if (len > maxPayloadLength) {
+      throw new CommConnectionException(ICommConnection.WRONG_PARAMETER,
+          "Payload length " + len + " exceeds the maximum of " + maxPayloadLength);
+    }
+    for (int i = prefixLength - 1, value = len; i >= 0; i--, value >>>= 8) {
+      dst[dstOff + i] = (byte) value;
+    }
+    System.arraycopy(payload, off, dst, dstOff + prefixLength, len);
+    return prefixLength + len;
+  }
+}
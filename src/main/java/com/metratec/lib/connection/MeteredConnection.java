@@ -0,0 +1,450 @@
+package com.metratec.lib.connection;
+
+/*******************************************************************************
+ * Copyright (c) 2023 by metraTec GmbH
+ * All rights reserved.
+ *******************************************************************************/
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Hashtable;
+
+/**
+ * Instrumentation wrapper for any {@link ICommConnection}.
+ *
+ * Counts the bytes and frames sent and received, receive timeouts (RECV_TIMEOUT or a receive
+ * returning -1), connection losses (CONNECTION_LOST) and connects, and records the connect
+ * duration and the round trip times in {@link LatencyHistogram}s. A round trip is measured from a
+ * send to the end of the next receive call returning data. The counters are striped, so the
+ * overhead on the hot path is a few atomic increments, and {@link #getSnapshot()} reads them
+ * without locking.
+ *
+ * Data transferred through {@link #getInputStream()} and {@link #getOutputStream()} is not
+ * counted.
+ *
+ * @author man
+ */
+public class MeteredConnection extends ICommConnection {
+  private final ICommConnection connection;
+  private final StripedCounter bytesSent = new StripedCounter();
+  private final StripedCounter bytesReceived = new StripedCounter();
+  private final StripedCounter framesSent = new StripedCounter();
+  private final StripedCounter framesReceived = new StripedCounter();
+  private final StripedCounter timeouts = new StripedCounter();
+  private final StripedCounter connectionLosses = new StripedCounter();
+  private final StripedCounter connects = new StripedCounter();
+  private final LatencyHistogram connectTime = new LatencyHistogram();
+  private final LatencyHistogram roundTripTime = new LatencyHistogram();
+  /** start of the last send without a response yet, 0 if none */
+  private volatile long sendTime = 0;
+
+  /**
+   * @param connection the instrumented connection
+   */
+  public MeteredConnection(ICommConnection connection) {
+    this.connection = connection;
+  }
+
+  /**
+   * @return the instrumented connection
+   */
+  public ICommConnection getConnection() {
+    return connection;
+  }
+
+  /**
+   * @return the current metrics
+   */
+  public Snapshot getSnapshot() {
+    return new Snapshot(this);
+  }
+
+  private CommConnectionException count(CommConnectionException e) {
+    if (e.getErrorCode() == RECV_TIMEOUT) {
+      timeouts.increment();
+    } else if (e.getErrorCode() == CONNECTION_LOST) {
+      connectionLosses.increment();
+    }
+    return e;
+  }
+
+  private void sent(int bytes) {
+    bytesSent.add(bytes);
+    framesSent.increment();
+  }
+
+  private void received(int bytes) {
+    bytesReceived.add(bytes);
+    long start = sendTime;
+    if (start != 0) {
+      sendTime = 0;
+      roundTripTime.record(System.nanoTime() - start);
+    }
+  }
+
+  @Override
+  public void connect() throws CommConnectionException {
+    long start = System.nanoTime();
+    try {
+      connection.connect();
+    } catch (CommConnectionException e) {
+      throw count(e);
+    }
+    connectTime.record(System.nanoTime() - start);
+    connects.increment();
+  }
+
+  @Override
+  public void disconnect() throws CommConnectionException {
+    sendTime = 0;
+    connection.disconnect();
+  }
+
+  @Override
+  public void send(String senddata) throws CommConnectionException {
+    sendTime = System.nanoTime();
+    try {
+      connection.send(senddata);
+    } catch (CommConnectionException e) {
+      throw count(e);
+    }
+    sent(senddata.length());
+  }
+
+  @Override
+  public void send(byte[] senddata) throws CommConnectionException {
+    sendTime = System.nanoTime();
+    try {
+      connection.send(senddata);
+    } catch (CommConnectionException e) {
+      throw count(e);
+    }
+    sent(senddata.length);
+  }
+
+  @Override
+  public void send(byte[] senddata, int off, int len) throws CommConnectionException {
+    sendTime = System.nanoTime();
+    try {
+      connection.send(senddata, off, len);
+    } catch (CommConnectionException e) {
+      throw count(e);
+    }
+    sent(len);
+  }
+
+  @Override
+  public void send(ByteBuffer... parts) throws CommConnectionException {
+    int len = remaining(parts);
+    sendTime = System.nanoTime();
+    try {
+      connection.send(parts);
+    } catch (CommConnectionException e) {
+      throw count(e);
+    }
+    sent(len);
+  }
+
+  @Override
+  public void sendNoFlush(byte[] senddata, int off, int len) throws CommConnectionException {
+    sendTime = System.nanoTime();
+    try {
+      connection.sendNoFlush(senddata, off, len);
+    } catch (CommConnectionException e) {
+      throw count(e);
+    }
+    sent(len);
+  }
+
+  @Override
+  public void flush() throws CommConnectionException {
+    try {
+      connection.flush();
+    } catch (CommConnectionException e) {
+      throw count(e);
+    }
+  }
+
+  @Override
+  public void setFlushPolicy(FlushPolicy flushPolicy) {
+    connection.setFlushPolicy(flushPolicy);
+  }
+
+  @Override
+  public FlushPolicy getFlushPolicy() {
+    return connection.getFlushPolicy();
+  }
+
+  @Override
+  public void send(ByteBuffer src) throws CommConnectionException {
+    int len = src.remaining();
+    sendTime = System.nanoTime();
+    try {
+      connection.send(src);
+    } catch (CommConnectionException e) {
+      throw count(e);
+    }
+    sent(len);
+  }
+
+  @Override
+  public StringBuilder receive(int... terminators) throws CommConnectionException {
+    StringBuilder s;
+    try {
+      s = connection.receive(terminators);
+    } catch (CommConnectionException e) {
+      throw count(e);
+    }
+    received(s.length());
+    framesReceived.increment();
+    return s;
+  }
+
+  @Override
+  public AsciiCharSequence receiveText(int... terminators) throws CommConnectionException {
+    AsciiCharSequence text;
+    try {
+      text = connection.receiveText(terminators);
+    } catch (CommConnectionException e) {
+      throw count(e);
+    }
+    received(text.length());
+    framesReceived.increment();
+    return text;
+  }
+
+  @Override
+  public AsciiCharSequence tryReceiveText(int... terminators) throws CommConnectionException {
+    AsciiCharSequence text;
+    try {
+      text = connection.tryReceiveText(terminators);
+    } catch (CommConnectionException e) {
+      throw count(e);
+    }
+    if (null == text) {
+      timeouts.increment();
+    } else {
+      received(text.length());
+      framesReceived.increment();
+    }
+    return text;
+  }
+
+  @Override
+  public int recv() throws CommConnectionException {
+    int c;
+    try {
+      c = connection.recv();
+    } catch (CommConnectionException e) {
+      throw count(e);
+    }
+    if (c < 0) {
+      timeouts.increment();
+    } else {
+      received(1);
+    }
+    return c;
+  }
+
+  @Override
+  public void recv(byte[] b, int off, int len) throws CommConnectionException {
+    try {
+      connection.recv(b, off, len);
+    } catch (CommConnectionException e) {
+      throw count(e);
+    }
+    received(len);
+    framesReceived.increment();
+  }
+
+  @Override
+  public int recvAvailable(byte[] b, int off, int len) throws CommConnectionException {
+    int count;
+    try {
+      count = connection.recvAvailable(b, off, len);
+    } catch (CommConnectionException e) {
+      throw count(e);
+    }
+    if (count < 0) {
+      timeouts.increment();
+    } else if (count > 0) {
+      received(count);
+    }
+    return count;
+  }
+
+  @Override
+  public int read(ByteBuffer dst) throws CommConnectionException {
+    int count;
+    try {
+      count = connection.read(dst);
+    } catch (CommConnectionException e) {
+      throw count(e);
+    }
+    if (count < 0) {
+      timeouts.increment();
+    } else if (count > 0) {
+      received(count);
+    }
+    return count;
+  }
+
+  @Override
+  public boolean isConnected() {
+    return connection.isConnected();
+  }
+
+  @Override
+  public Hashtable<String, Object> getInfo() {
+    return connection.getInfo();
+  }
+
+  @Override
+  public void setSettings(Hashtable<String, String> settings) {
+    connection.setSettings(settings);
+  }
+
+  @Override
+  public InputStream getInputStream() {
+    return connection.getInputStream();
+  }
+
+  @Override
+  public OutputStream getOutputStream() {
+    return connection.getOutputStream();
+  }
+
+  @Override
+  public int dataAvailable() throws CommConnectionException {
+    try {
+      return connection.dataAvailable();
+    } catch (CommConnectionException e) {
+      throw count(e);
+    }
+  }
+
+  @Override
+  public void setRecvTimeout(int timeout) throws CommConnectionException {
+    connection.setRecvTimeout(timeout);
+  }
+
+  @Override
+  public int getRecvTimeout() {
+    return connection.getRecvTimeout();
+  }
+
+  @Override
+  public void setConnectionTimeout(int timeout) {
+    connection.setConnectionTimeout(timeout);
+  }
+
+  @Override
+  public int getConnectionTimeout() {
+    return connection.getConnectionTimeout();
+  }
+
+  @Override
+  public String toString() {
+    return connection.toString();
+  }
+
+  /**
+   * The metrics of a {@link MeteredConnection} at one point in time.
+   */
+  public static class Snapshot {
+    private final long bytesSent;
+    private final long bytesReceived;
+    private final long framesSent;
+    private final long framesReceived;
+    private final long timeouts;
+    private final long connectionLosses;
+    private final long connects;
+    private final LatencyHistogram.Snapshot connectTime;
+    private final LatencyHistogram.Snapshot roundTripTime;
+
+    Snapshot(MeteredConnection c) {
+      bytesSent = c.bytesSent.sum();
+      bytesReceived = c.bytesReceived.sum();
+      framesSent = c.framesSent.sum();
+      framesReceived = c.framesReceived.sum();
+      timeouts = c.timeouts.sum();
+      connectionLosses = c.connectionLosses.sum();
+      connects = c.connects.sum();
+      connectTime = c.connectTime.getSnapshot();
+      roundTripTime = c.roundTripTime.getSnapshot();
+    }
+
+    /**
+     * @return the number of bytes sent
+     */
+    public long getBytesSent() {
+      return bytesSent;
+    }
+
+    /**
+     * @return the number of bytes received
+     */
+    public long getBytesReceived() {
+      return bytesReceived;
+    }
+
+    /**
+     * @return the number of send calls
+     */
+    public long getFramesSent() {
+      return framesSent;
+    }
+
+    /**
+     * @return the number of completed frame receives (terminated or fixed length)
+     */
+    public long getFramesReceived() {
+      return framesReceived;
+    }
+
+    /**
+     * @return the number of receive timeouts
+     */
+    public long getTimeouts() {
+      return timeouts;
+    }
+
+    /**
+     * @return the number of connection losses
+     */
+    public long getConnectionLosses() {
+      return connectionLosses;
+    }
+
+    /**
+     * @return the number of successful connects
+     */
+    public long getConnects() {
+      return connects;
+    }
+
+    /**
+     * @return the connect durations
+     */
+    public LatencyHistogram.Snapshot getConnectTime() {
+      return connectTime;
+    }
+
+    /**
+     * @return the round trip times
+     */
+    public LatencyHistogram.Snapshot getRoundTripTime() {
+      return roundTripTime;
+    }
+
+    @Override
+    public String toString() {
+      return new StringBuilder().append("sent=").append(bytesSent).append("B/").append(framesSent)
+          .append(" received=").append(bytesReceived).append("B/").append(framesReceived)
+          .append(" timeouts=").append(timeouts).append(" lost=").append(connectionLosses)
+          .append(" connects=").append(connects).append(" connectTime[").append(connectTime)
+          .append("] roundTrip[").append(roundTripTime).append(']').toString();
+    }
+  }
+}
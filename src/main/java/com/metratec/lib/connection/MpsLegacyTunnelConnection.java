@@ -3,10 +3,10 @@
  *******************************************************************************/
 package com.metratec.lib.connection;
 
-import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 /**
@@ -36,6 +36,9 @@ import java.util.Arrays;
  * This can and should all be handled within the class.
  */
 public class MpsLegacyTunnelConnection extends MpsTunnelConnection {
+  private static final byte[] DAT_HEADER = {'D', 'A', 'T', ' '};
+  private static final byte[] CR = {'\r'};
+
   @Override
   protected void addDownstreamFrame(String line) throws IOException {
     if (getLogger().isTraceEnabled()) {
@@ -61,11 +64,13 @@ public class MpsLegacyTunnelConnection extends MpsTunnelConnection {
    * An OutputStream implementing MPS tunneling (serializing data into MPS frames).
    *
    * This class does NOT implement buffering and is only exposed to the outside world wrapped in a
-   * BufferedOutputStream.
+   * PooledOutputStream.
    */
   private class TunnelOutputStream extends OutputStream {
     /** Maximum length of a DAT frame in raw bytes */
     private static final int MAX_FRAME_SIZE = 96;
+    /** the slave's EID followed by a space */
+    private byte[] eidPrefix = null;
 
     private int indexOf(byte[] b, int off, int len, int c) {
       for (int i = off; i < len; i++) {
@@ -78,19 +83,16 @@ public class MpsLegacyTunnelConnection extends MpsTunnelConnection {
 
     @Override
     public void write(byte[] b, int off, int len) throws IOException {
-      /*
-       * NOTE: Using the masterConn's OutputStream instead of the ICommConnection methods simplifies
-       * error handling.
-       */
-      OutputStream masterOutStream = masterConn.getOutputStream();
-
       /*
        * The DAT command takes at most MAX_FRAME_SIZE bytes of data. We assume that each frame of
        * data is terminated by a CR. If a CR is missing then an exception is thrown.
        *
-       * TODO: The Arrays.copyOfRange could be avoided here by using repeated writes
-       * (masterOutStream should be buffered).
+       * Header, address, data and CR are sent with one gathering send, without copying the data.
        */
+      boolean addressed = slaveEID != null && !linked;
+      if (addressed && null == eidPrefix) {
+        eidPrefix = (slaveEID + " ").getBytes(ISO_8859_1);
+      }
       while (len > 0) {
         int frameLength = Math.min(len, MAX_FRAME_SIZE);
         // find the first occurence of CR
@@ -99,19 +101,21 @@ public class MpsLegacyTunnelConnection extends MpsTunnelConnection {
           // CR was not found in the current frame
           throw new IOException("CR not present in the frame");
         }
-        byte[] frame = Arrays.copyOfRange(b, off, index);
-        masterOutStream.write("DAT ".getBytes());
-        if (slaveEID != null && !linked) {
-          // addressed send
-          masterOutStream.write((slaveEID + " ").getBytes());
-        }
-        masterOutStream.write(frame);
-        masterOutStream.write('\r');
+        ByteBuffer frame = ByteBuffer.wrap(b, off, index - off);
         if (getLogger().isTraceEnabled()) {
           getLogger().trace("Tunneled {} send DAT {} {}", masterConn,
-              slaveEID != null ? slaveEID : "", new String(frame));
+              slaveEID != null ? slaveEID : "", new String(b, off, index - off));
+        }
+        try {
+          if (addressed) {
+            masterConn.send(ByteBuffer.wrap(DAT_HEADER), ByteBuffer.wrap(eidPrefix), frame,
+                ByteBuffer.wrap(CR));
+          } else {
+            masterConn.send(ByteBuffer.wrap(DAT_HEADER), frame, ByteBuffer.wrap(CR));
+          }
+        } catch (CommConnectionException e) {
+          throw new IOException(e.getMessage(), e);
         }
-        masterOutStream.flush();
 
         off += MAX_FRAME_SIZE;
         len -= MAX_FRAME_SIZE;
@@ -124,7 +128,8 @@ public class MpsLegacyTunnelConnection extends MpsTunnelConnection {
     }
   }
 
-  private OutputStream outStream = new BufferedOutputStream(new TunnelOutputStream());
+  private OutputStream outStream =
+      new PooledOutputStream(new TunnelOutputStream(), STREAM_BUFFER_SIZE);
   private InputStream inStream = new TunnelInputStream("DAT ");
   private boolean linked = false;
 
@@ -175,7 +180,7 @@ public class MpsLegacyTunnelConnection extends MpsTunnelConnection {
       if (linked) {
         super.connect();
       } else {
-        masterConn.connect();
+        connectMaster();
         unlink();
       }
     }
@@ -200,11 +205,11 @@ public class MpsLegacyTunnelConnection extends MpsTunnelConnection {
   }
 
   @Override
-  public void send(byte[] senddata) throws CommConnectionException {
-    if (senddata[senddata.length - 1] != 13) {
+  public void send(byte[] senddata, int off, int len) throws CommConnectionException {
+    if (senddata != null && (len <= 0 || senddata[off + len - 1] != 13)) {
       throw new CommConnectionException(UNHANDLED_ERROR, "Data must be carriage return terminated");
     }
-    super.send(senddata);
+    super.send(senddata, off, len);
   }
 
   @Override
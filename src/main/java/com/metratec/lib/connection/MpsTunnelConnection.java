@@ -3,12 +3,9 @@
  *******************************************************************************/
 package com.metratec.lib.connection;
 
-import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.SocketTimeoutException;
-import java.util.Arrays;
 import java.util.Hashtable;
 import javax.xml.bind.DatatypeConverter;
 import org.slf4j.Logger;
@@ -35,46 +32,94 @@ public class MpsTunnelConnection extends ICommConnection {
   private final Logger logger = LoggerFactory.getLogger(this.getClass());
   /** Connection to the master device (MPS) */
   protected ICommConnection masterConn;
+  /** Line reader on the master connection, all lines from the master must be read through it */
+  protected FrameReader masterReader;
   /** Slave EID to connect to */
   protected String slaveEID = null;
   /** Maximum BINXT frame size in bytes (ie. twice as much hexadecimal-encoded). */
   protected int maxFrameSize = 96;
 
   protected class CircularBuffer {
-    private byte[] buf;
+    /** the buffer is borrowed with this size when data arrives and grows up to the maximum size */
+    private static final int INITIAL_SIZE = 4096;
+    private final int maxSize;
+    private byte[] buf = null;
     private int writePos = 0;
     private int readPos = 0;
 
     public CircularBuffer(int maxSize) {
-      buf = new byte[maxSize];
+      this.maxSize = maxSize;
     }
 
-    public int available() {
+    public synchronized int available() {
+      if (null == buf) {
+        return 0;
+      }
       return writePos >= readPos ? writePos - readPos : buf.length - readPos + writePos;
     }
 
-    public void write(byte b) throws IOException {
+    public synchronized void write(byte b) throws IOException {
+      if (null == buf) {
+        buf = BufferPool.getDefault().acquire(Math.min(INITIAL_SIZE, maxSize));
+      } else if (available() == buf.length - 1) {
+        if (buf.length >= maxSize) {
+          throw new IOException("Buffer overflow");
+        }
+        byte[] larger = BufferPool.getDefault().acquire(buf.length * 2);
+        int count = available();
+        int first = Math.min(count, buf.length - readPos);
+        System.arraycopy(buf, readPos, larger, 0, first);
+        System.arraycopy(buf, 0, larger, first, count - first);
+        BufferPool.getDefault().release(buf);
+        buf = larger;
+        readPos = 0;
+        writePos = count;
+      }
       buf[writePos] = b;
       writePos = (writePos + 1) % buf.length;
-      if (writePos == readPos) {
-        throw new IOException("Buffer overflow");
-      }
     }
 
-    public void write(byte[] data) throws IOException {
+    public synchronized void write(byte[] data) throws IOException {
       for (byte b : data) {
         write(b);
       }
     }
 
-    public int read() {
+    public synchronized int read() {
       if (readPos == writePos) {
         return -1;
       }
       byte b = buf[readPos];
       readPos = (readPos + 1) % buf.length;
+      releaseIfEmpty();
       return b & 0xFF;
     }
+
+    public synchronized int read(byte[] b, int off, int len) {
+      int count = Math.min(len, available());
+      if (count <= 0) {
+        return 0;
+      }
+      /* copy up to the end of the array first, then the wrapped around part */
+      int first = Math.min(count, buf.length - readPos);
+      System.arraycopy(buf, readPos, b, off, first);
+      System.arraycopy(buf, 0, b, off + first, count - first);
+      readPos = (readPos + count) % buf.length;
+      releaseIfEmpty();
+      return count;
+    }
+
+    /**
+     * Returns the buffer to the pool when all data has been read, so idle tunnels hold no buffer.
+     */
+    private void releaseIfEmpty() {
+      if (readPos == writePos) {
+        BufferPool.getDefault().release(buf);
+        buf = null;
+        readPos = 0;
+        writePos = 0;
+      }
+    }
   }
 
   /**
@@ -88,46 +133,75 @@ public class MpsTunnelConnection extends ICommConnection {
    */
   protected CircularBuffer downstreamBuf = new CircularBuffer(100 * 1024);
 
+  private static final CommandTemplate LINK = CommandTemplate.compile("LNK {}\r");
+  private static final CommandTemplate LINK_OK = CommandTemplate.compile("LNK {} OK\r");
+  private static final byte[] UNLINK = {'U', 'L', 'K', '\r'};
+  private static final CommandTemplate BINXT = CommandTemplate.compile("BINXT {}\r");
+  private static final ResponseMatcher LINK_RESPONSE = new ResponseMatcher("LNK ");
+  private static final ResponseMatcher UNLINK_RESPONSE =
+      new ResponseMatcher("ULK OK\r", "ULK ERR\r", "ULK ");
+  private static final int UNLINK_RESPONSE_OTHER = 2;
+
   /**
    * Read a CR-terminated line from the underlying transport.
    *
    * @returns The line including CR or null in case of read timeouts.
    */
   protected String masterConnRecvLine() throws IOException {
-    InputStream masterInStream = masterConn.getInputStream();
-    StringBuilder data = new StringBuilder();
-    int c;
-
-    do {
-      try {
-        c = masterInStream.read();
-      } catch (SocketTimeoutException e) {
-        /*
-         * If masterConn is TcpConnection, masterInStream will
-         * be a Socket.getInputStream() which throws this exception
-         * in case of timeouts instead of returning -1.
-         * See also AbstractTcpConnection.recv().
-         */
-        getLogger().trace("{} recv - TimeoutException {}", toString(), e.getMessage());
-        return null;
-      }
-      if (c < 0) {
-        if (getLogger().isTraceEnabled()) {
-          getLogger().trace("{} recv - no data (null)", toString());
-        }
-        return null;
+    int length;
+    try {
+      length = masterReader.tryReadFrame();
+    } catch (CommConnectionException e) {
+      throw new IOException(e.getMessage(), e);
+    }
+    if (length < 0) {
+      if (getLogger().isTraceEnabled()) {
+        getLogger().trace("{} recv - no data (null)", toString());
       }
-      data.append((char) c);
-    } while (c != '\r');
+      return null;
+    }
+    traceFrame(length);
+    return new String(masterReader.getBuffer(), masterReader.getFrameOffset(), length, ISO_8859_1);
+  }
+
+  /**
+   * Read a CR-terminated line from the underlying transport.
+   *
+   * @return The line including CR.
+   * @throws CommConnectionException see {@link FrameReader#readFrame()}
+   */
+  protected String masterConnRecvResponse() throws CommConnectionException {
+    int length = masterConnRecvFrame();
+    return new String(masterReader.getBuffer(), masterReader.getFrameOffset(), length, ISO_8859_1);
+  }
+
+  /**
+   * Read a CR-terminated line from the underlying transport without creating a String. The line is
+   * available in the buffer of the {@link #masterReader} until the next call.
+   *
+   * @return The length of the line including CR.
+   * @throws CommConnectionException see {@link FrameReader#readFrame()}
+   */
+  protected int masterConnRecvFrame() throws CommConnectionException {
+    int length = masterReader.readFrame();
+    traceFrame(length);
+    return length;
+  }
+
+  private void traceFrame(int length) {
     if (getLogger().isTraceEnabled()) {
-      String recv = data.toString();
-      try {
-        getLogger().trace("{} recv {}", toString(), recv.substring(0, recv.length() - 1));
-      } catch (IndexOutOfBoundsException e) {
-        getLogger().trace("{} recv {}", toString(), recv);
-      }
+      getLogger().trace("{} recv {}", toString(), new String(masterReader.getBuffer(),
+          masterReader.getFrameOffset(), length - 1, ISO_8859_1));
     }
-    return data.toString();
+  }
+
+  /**
+   * @return the text of the last line read by {@link #masterConnRecvFrame()} between the given
+   *         offsets, for error messages
+   */
+  private String masterFrameText(int from, int to) {
+    return new String(masterReader.getBuffer(), masterReader.getFrameOffset() + from, to - from,
+        ISO_8859_1);
   }
 
   protected void addDownstreamFrame(String line) throws IOException {
@@ -139,9 +213,12 @@ public class MpsTunnelConnection extends ICommConnection {
    * An OutputStream implementing MPS tunneling (serializing data into MPS binary frames).
    *
    * This class does NOT implement buffering and is only exposed to the outside world wrapped in a
-   * BufferedOutputStream.
+   * PooledOutputStream.
    */
   private class TunnelOutputStream extends OutputStream {
+    /** the frame being sent, only used by the (synchronized) PooledOutputStream */
+    private final PreparedCommand binxt = BINXT.prepare();
+
     @Override
     public void write(byte[] b, int off, int len) throws IOException {
       /*
@@ -152,19 +229,15 @@ public class MpsTunnelConnection extends ICommConnection {
 
       /*
        * The BINXT command takes at most maxFrameSize bytes of data
-       * (ie. twice as much hexadecimal-encoded).
-       *
-       * TODO: The Arrays.copyOfRange could be avoided here by using repeated writes
-       * (masterOutStream should be buffered).
+       * (ie. twice as much hexadecimal-encoded). The data is encoded directly into the prepared
+       * frame, so it is written with a single write.
        */
       while (len > 0) {
-        byte[] frame = Arrays.copyOfRange(b, off, off+Math.min(len, maxFrameSize));
+        binxt.setHex(0, b, off, Math.min(len, maxFrameSize));
         if (getLogger().isTraceEnabled()) {
-          getLogger().trace("Tunneled {} send BINXT {}", masterConn, DatatypeConverter.printHexBinary(frame));
+          getLogger().trace("Tunneled {} send {}", masterConn, binxt.toString().trim());
         }
-        masterOutStream.write("BINXT ".getBytes());
-        masterOutStream.write(DatatypeConverter.printHexBinary(frame).getBytes());
-        masterOutStream.write('\r');
+        masterOutStream.write(binxt.getBuffer(), 0, binxt.getLength());
         masterOutStream.flush();
 
         long timeStamp = System.nanoTime();
@@ -237,6 +310,20 @@ public class MpsTunnelConnection extends ICommConnection {
 
     @Override
     public int read() throws IOException {
+      fill();
+      return downstreamBuf.read();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len <= 0) {
+        return 0;
+      }
+      fill();
+      return downstreamBuf.read(b, off, len);
+    }
+
+    private void fill() throws IOException {
       if (downstreamBuf.available() == 0) {
         /*
          * Read or wait for the next downstream frame. All lines except BINXR and TOE are ignored.
@@ -263,12 +350,11 @@ public class MpsTunnelConnection extends ICommConnection {
 
         addDownstreamFrame(line);
       }
-
-      return downstreamBuf.read();
     }
   }
 
-  private OutputStream outStream = new BufferedOutputStream(new TunnelOutputStream());
+  private OutputStream outStream =
+      new PooledOutputStream(new TunnelOutputStream(), STREAM_BUFFER_SIZE);
   private InputStream inStream = new TunnelInputStream("BINXR ");
 
   /**
@@ -277,6 +363,11 @@ public class MpsTunnelConnection extends ICommConnection {
    */
   private int linkTimeout = 61000;
 
+  /** the link command and its expected response, prepared for {@link #preparedEID} */
+  private final PreparedCommand link = LINK.prepare();
+  private final PreparedCommand linkOk = LINK_OK.prepare();
+  private String preparedEID = null;
+
   /**
    * Construct a MPS Tunneling Connection.
    *
@@ -288,8 +379,21 @@ public class MpsTunnelConnection extends ICommConnection {
   public MpsTunnelConnection(ICommConnection connection, String slaveEID) {
     assert connection != null;
     masterConn = connection;
+    masterReader = new FrameReader(masterConn, '\r');
     assert slaveEID == null || slaveEID.length() == 16;
     this.slaveEID = slaveEID;
+    prepareLink();
+  }
+
+  /**
+   * Sets the slave EID into the prepared link commands, so linking does not allocate anything.
+   */
+  private void prepareLink() {
+    if (null != slaveEID) {
+      link.set(0, slaveEID);
+      linkOk.set(0, slaveEID);
+    }
+    preparedEID = slaveEID;
   }
 
   /**
@@ -340,7 +444,7 @@ public class MpsTunnelConnection extends ICommConnection {
 
   @Override
   public void connect() throws CommConnectionException {
-    masterConn.connect();
+    connectMaster();
     if (slaveEID == null) {
       return;
     }
@@ -348,48 +452,66 @@ public class MpsTunnelConnection extends ICommConnection {
     link();
   }
 
+  /**
+   * Connects the master connection and discards any lines still buffered from a previous
+   * connection.
+   *
+   * @throws CommConnectionException see {@link ICommConnection#connect()}
+   */
+  protected void connectMaster() throws CommConnectionException {
+    masterConn.connect();
+    masterReader = new FrameReader(masterConn, '\r');
+  }
+
   protected void unlink() throws CommConnectionException {
     long timeStamp = System.nanoTime();
-    String response;
+    int length;
+    int match;
     /*
      * There might already be a connection, so try to unlink first. If there was no connection, ULK
      * ERR will be returned.
      */
-    masterConn.send("ULK\r");
+    masterConn.send(UNLINK);
     getLogger().trace("{} send ULK", toString());
     do {
-      response = masterConn.recv('\r');
+      length = masterConnRecvFrame();
       if ((System.nanoTime() - timeStamp)/1000000 >= linkTimeout) {
         throw new CommConnectionException(UNHANDLED_ERROR,
             "Timeout during unlinking");
       }
-    } while (!response.startsWith("ULK "));
-    if (!response.equals("ULK OK\r") && !response.equals("ULK ERR\r")) {
+      match = UNLINK_RESPONSE.match(masterReader.getBuffer(), masterReader.getFrameOffset(), length);
+    } while (match < 0);
+    if (match == UNLINK_RESPONSE_OTHER) {
       throw new CommConnectionException(UNHANDLED_ERROR,
-          "Unexpected ULK response: " + response.substring(4, response.length() - 1));
+          "Unexpected ULK response: " + masterFrameText(4, length - 1));
     }
   }
 
   protected void link() throws CommConnectionException {
     long timeStamp = System.nanoTime();
-    String response;
+    int length;
 
     if (slaveEID == null) {
       return;
     }
 
-    masterConn.send("LNK " + slaveEID + "\r");
+    if (slaveEID != preparedEID) {
+      /* the protected field was changed by a subclass */
+      prepareLink();
+    }
+    link.send(masterConn);
     getLogger().trace("{} send LNK {}", toString(), slaveEID);
     do {
-      response = masterConn.recv('\r');
+      length = masterConnRecvFrame();
       if ((System.nanoTime() - timeStamp)/1000000 >= linkTimeout) {
         throw new CommConnectionException(UNHANDLED_ERROR,
             "Timeout during linking to slave device");
       }
-    } while (!response.startsWith("LNK "));
-    if (!response.equals("LNK " + slaveEID + " OK\r")) {
+    } while (!LINK_RESPONSE.matches(masterReader.getBuffer(), masterReader.getFrameOffset(),
+        length));
+    if (!linkOk.matches(masterReader.getBuffer(), masterReader.getFrameOffset(), length)) {
       throw new CommConnectionException(UNHANDLED_ERROR,
-          "Unexpected LNK response: " + response.substring(4, response.length() - 1));
+          "Unexpected LNK response: " + masterFrameText(4, length - 1));
     }
   }
 
@@ -467,13 +589,35 @@ public class MpsTunnelConnection extends ICommConnection {
     }
   }
 
+  @Override
+  public int recvAvailable(byte[] b, int off, int len) throws CommConnectionException {
+    try {
+      int count = getInputStream().read(b, off, len);
+      return count > 0 || len <= 0 ? count : -1;
+    } catch (IOException e) {
+      if (e.getMessage() == null) {
+        throw new CommConnectionException(CONNECTION_LOST, "Input/output error");
+      }
+
+      throw new CommConnectionException(UNHANDLED_ERROR, e.getMessage());
+    }
+  }
+
   @Override
   public void send(byte[] senddata) throws CommConnectionException {
-    if (getLogger().isTraceEnabled()) {
-      getLogger().trace("{} send {}", toString(), new String(senddata));
+    if (senddata == null) {
+      throw new CommConnectionException(WRONG_PARAMETER, "senddata is null");
+    }
+    send(senddata, 0, senddata.length);
+  }
+
+  @Override
+  public void send(byte[] senddata, int off, int len) throws CommConnectionException {
+    if (getLogger().isTraceEnabled() && senddata != null) {
+      getLogger().trace("{} send {}", toString(), new String(senddata, off, len));
     }
     try {
-      getOutputStream().write(senddata);
+      getOutputStream().write(senddata, off, len);
       getOutputStream().flush();
     } catch (NullPointerException e) {
       if (senddata == null) {
@@ -0,0 +1,30 @@
+package com.metratec.lib.connection;
+
+/*******************************************************************************
+ * Copyright (c) 2023 by metraTec GmbH
+ * All rights reserved.
+ *******************************************************************************/
+
+/**
+ * Listener for events of a {@link NioTcpConnection}. The methods are called on the event loop
+ * thread, so they must not block. Receiving the available data with
+ * {@link ICommConnection#recvAvailable(byte[], int, int)} does not block.
+ *
+ * @author man
+ */
+public interface NioConnectionListener {
+  /**
+   * Called if new data has been received.
+   *
+   * @param connection the connection
+   */
+  void dataReceived(NioTcpConnection connection);
+
+  /**
+   * Called if the connection was closed by the remote side or failed. Data received before is
+   * still available.
+   *
+   * @param connection the connection
+   */
+  void connectionLost(NioTcpConnection connection);
+}
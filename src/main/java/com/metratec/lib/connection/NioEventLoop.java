@@ -0,0 +1,274 @@
+package com.metratec.lib.connection;
+
+/*******************************************************************************
+ * Copyright (c) 2023 by metraTec GmbH
+ * All rights reserved.
+ *******************************************************************************/
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A single thread serving many non-blocking channels with one {@link Selector}.
+ *
+ * All selection key operations and the channel handlers run on the loop thread. Other threads hand
+ * work to the loop with {@link #execute(Runnable)}. The loop also runs timers, which are used for
+ * timeouts like the connection timeout of a {@link NioTcpConnection}.
+ *
+ * A few shared loops are available with {@link #getDefault()}.
+ *
+ * @author man
+ */
+public class NioEventLoop implements Runnable {
+
+  /**
+   * Handles the ready operations of a channel registered with the loop.
+   */
+  public interface Handler {
+    /**
+     * Called on the loop thread if the channel is ready for one of its interest operations.
+     *
+     * @param key the selection key of the channel
+     */
+    void handle(SelectionKey key);
+  }
+
+  /**
+   * A timer scheduled with {@link NioEventLoop#schedule(Runnable, long)}.
+   */
+  public static final class Timeout {
+    private final Runnable task;
+    private final long deadline;
+    private volatile boolean cancelled = false;
+
+    private Timeout(Runnable task, long deadline) {
+      this.task = task;
+      this.deadline = deadline;
+    }
+
+    /**
+     * Cancels the timer. The task is not run if it has not started yet.
+     */
+    public void cancel() {
+      cancelled = true;
+    }
+  }
+
+  private static final Logger logger = LoggerFactory.getLogger(NioEventLoop.class);
+  private static NioEventLoop[] defaultLoops = null;
+  private static int nextDefaultLoop = 0;
+
+  private final Selector selector;
+  private final Thread thread;
+  private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+  /** timers, only accessed by the loop thread */
+  private final PriorityQueue<Timeout> timers =
+      new PriorityQueue<Timeout>(16, new Comparator<Timeout>() {
+        @Override
+        public int compare(Timeout t1, Timeout t2) {
+          long diff = t1.deadline - t2.deadline;
+          return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+        }
+      });
+  private volatile boolean running = true;
+
+  /**
+   * Creates and starts a new event loop.
+   *
+   * @param name the name of the loop thread
+   * @throws IOException if the selector could not be opened
+   */
+  public NioEventLoop(String name) throws IOException {
+    selector = Selector.open();
+    thread = new Thread(this, name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Returns one of the shared event loops. The number of shared loops depends on the number of
+   * processors (at most 4), the connections are distributed round robin.
+   *
+   * @return a shared event loop
+   * @throws CommConnectionException UNHANDLED_ERROR if the loops could not be created
+   */
+  public static synchronized NioEventLoop getDefault() throws CommConnectionException {
+    if (null == defaultLoops) {
+      int count = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+      NioEventLoop[] loops = new NioEventLoop[count];
+      try {
+        for (int i = 0; i < count; i++) {
+          loops[i] = new NioEventLoop("NioEventLoop-" + (i + 1));
+        }
+      } catch (IOException e) {
+        for (NioEventLoop loop : loops) {
+          if (null != loop) {
+            loop.shutdown();
+          }
+        }
+        throw new CommConnectionException(ICommConnection.UNHANDLED_ERROR, e.getMessage());
+      }
+      defaultLoops = loops;
+    }
+    NioEventLoop loop = defaultLoops[nextDefaultLoop];
+    nextDefaultLoop = (nextDefaultLoop + 1) % defaultLoops.length;
+    return loop;
+  }
+
+  /**
+   * @return true if the current thread is the loop thread
+   */
+  public boolean inEventLoop() {
+    return Thread.currentThread() == thread;
+  }
+
+  /**
+   * Runs a task on the loop thread.
+   *
+   * @param task the task
+   */
+  public void execute(Runnable task) {
+    tasks.add(task);
+    if (!inEventLoop()) {
+      selector.wakeup();
+    }
+  }
+
+  /**
+   * Wakes up the loop, e.g. to let it release closed channels.
+   */
+  public void wakeup() {
+    selector.wakeup();
+  }
+
+  /**
+   * Runs a task on the loop thread after a delay.
+   *
+   * @param task the task
+   * @param delay the delay in milliseconds
+   * @return the timer, which can be cancelled
+   */
+  public Timeout schedule(Runnable task, long delay) {
+    final Timeout timeout = new Timeout(task, System.nanoTime() + delay * 1000000L);
+    execute(new Runnable() {
+      @Override
+      public void run() {
+        timers.add(timeout);
+      }
+    });
+    return timeout;
+  }
+
+  /**
+   * Registers a channel with the loop. This method must be called on the loop thread, use
+   * {@link #execute(Runnable)} otherwise.
+   *
+   * @param channel the non-blocking channel
+   * @param ops the interest operations
+   * @param handler the handler of the ready operations
+   * @return the selection key
+   * @throws IOException if the channel is closed
+   */
+  public SelectionKey register(SelectableChannel channel, int ops, Handler handler)
+      throws IOException {
+    if (!inEventLoop()) {
+      throw new IllegalStateException("Not called on the event loop thread");
+    }
+    return channel.register(selector, ops, handler);
+  }
+
+  /**
+   * Stops the loop. The registered channels are not closed.
+   */
+  public void shutdown() {
+    running = false;
+    selector.wakeup();
+  }
+
+  /**
+   * @return true if the loop is running
+   */
+  public boolean isRunning() {
+    return running && thread.isAlive();
+  }
+
+  @Override
+  public void run() {
+    try {
+      while (running) {
+        runTasks();
+        long wait = runTimers();
+        if (!tasks.isEmpty()) {
+          selector.selectNow();
+        } else {
+          selector.select(wait);
+        }
+        Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+          SelectionKey key = it.next();
+          it.remove();
+          try {
+            ((Handler) key.attachment()).handle(key);
+          } catch (RuntimeException e) {
+            logger.warn("{} handler error - {}", thread.getName(), e.toString(), e);
+          }
+        }
+      }
+    } catch (IOException | ClosedSelectorException e) {
+      logger.error("{} stopped - {}", thread.getName(), e.getMessage());
+    } finally {
+      running = false;
+      try {
+        selector.close();
+      } catch (IOException e) {
+        logger.debug("{} close warning - {}", thread.getName(), e.getMessage());
+      }
+    }
+  }
+
+  private void runTasks() {
+    Runnable task;
+    while (null != (task = tasks.poll())) {
+      try {
+        task.run();
+      } catch (RuntimeException e) {
+        logger.warn("{} task error - {}", thread.getName(), e.toString(), e);
+      }
+    }
+  }
+
+  /**
+   * Runs the expired timers.
+   *
+   * @return the time until the next timer in milliseconds or 0 if there is no timer
+   */
+  private long runTimers() {
+    Timeout timeout;
+    while (null != (timeout = timers.peek())) {
+      long remaining = timeout.deadline - System.nanoTime();
+      if (timeout.cancelled) {
+        timers.poll();
+      } else if (remaining <= 0) {
+        timers.poll();
+        try {
+          timeout.task.run();
+        } catch (RuntimeException e) {
+          logger.warn("{} timer error - {}", thread.getName(), e.toString(), e);
+        }
+      } else {
+        return Math.max(1, (remaining + 999999) / 1000000);
+      }
+    }
+    return 0;
+  }
+}
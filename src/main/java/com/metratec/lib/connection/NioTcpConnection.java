@@ -0,0 +1,761 @@
+package com.metratec.lib.connection;
+
+/*******************************************************************************
+ * Copyright (c) 2023 by metraTec GmbH
+ * All rights reserved.
+ *******************************************************************************/
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Hashtable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A tcp connection served by a {@link NioEventLoop}.
+ *
+ * In contrast to {@link TcpConnection}, no thread is blocked while no data is received. The event
+ * loop reads the incoming data into a per-connection buffer and writes outgoing data, which could
+ * not be sent at once, from a per-connection buffer. The connection timeout is driven by the loop.
+ * So one loop thread serves thousands of connections, if they are used with a
+ * {@link NioConnectionListener}. The blocking receive methods (also used by an
+ * {@link AsyncConnection}) still block the calling thread until data or the receive timeout.
+ *
+ * The blocking {@link ICommConnection} methods work as usual. {@link #send(byte[])} returns as
+ * soon as the data is written to the socket or queued in the write buffer, it only waits (up to
+ * the receive timeout) if the write buffer is full.
+ *
+ * @author man
+ */
+public class NioTcpConnection extends ICommConnection {
+  private static final int STATE_DISCONNECTED = 0;
+  private static final int STATE_CONNECTING = 1;
+  private static final int STATE_CONNECTED = 2;
+
+  private final Logger logger = LoggerFactory.getLogger(NioTcpConnection.class);
+  private final NioEventLoop loop;
+  private final Object lock = new Object();
+  private String ipAddress = null;
+  private int port = 0;
+  private int recvTimeout = 2000;
+  private int connectTimeout = 1000;
+  private boolean isServerConnection = false;
+  private int maxWriteBufferSize = 1024 * 1024;
+  private volatile NioConnectionListener listener = null;
+
+  /* the following fields are guarded by lock */
+  private SocketChannel channel = null;
+  private SelectionKey key = null;
+  private int state = STATE_DISCONNECTED;
+  /** reason of a failed connect or a lost connection, thrown by the next call */
+  private CommConnectionException error = null;
+  /** received data, in write mode, the unread data starts at readIndex */
+  private ByteBuffer readBuffer = ByteBuffer.allocate(16 * 1024);
+  private int readIndex = 0;
+  /** data to send, in write mode */
+  private ByteBuffer writeBuffer = ByteBuffer.allocate(0);
+  private boolean readPaused = false;
+  private boolean writeRequested = false;
+  private NioEventLoop.Timeout connectTimer = null;
+
+  private final InputStream inputStream = new NioInputStream();
+  private final OutputStream outputStream = new NioOutputStream();
+
+  /**
+   * Construct a new instance served by a shared event loop.
+   *
+   * @param ip Device IP address
+   * @param port Device port
+   * @throws CommConnectionException UNHANDLED_ERROR if the shared event loop could not be started
+   */
+  public NioTcpConnection(String ip, int port) throws CommConnectionException {
+    this(ip, port, NioEventLoop.getDefault());
+  }
+
+  /**
+   * Construct a new instance.
+   *
+   * @param ip Device IP address
+   * @param port Device port
+   * @param loop the event loop serving the connection
+   */
+  public NioTcpConnection(String ip, int port, NioEventLoop loop) {
+    this.ipAddress = ip;
+    this.port = port;
+    this.loop = loop;
+  }
+
+  /**
+   * Construct a new instance for an accepted client channel. No reconnect is available.
+   *
+   * @param channel the connected channel
+   * @param loop the event loop serving the connection
+   * @throws CommConnectionException throwed with error code {@link ICommConnection#NOT_INITIALISED}
+   *         if the given channel is not connected
+   */
+  public NioTcpConnection(SocketChannel channel, NioEventLoop loop)
+      throws CommConnectionException {
+    if (!channel.isConnected()) {
+      throw new CommConnectionException(NOT_INITIALISED, "Socket is not connected");
+    }
+    this.loop = loop;
+    isServerConnection = true;
+    ipAddress = channel.socket().getInetAddress().getHostAddress();
+    port = channel.socket().getPort();
+    try {
+      channel.configureBlocking(false);
+    } catch (IOException e) {
+      throw new CommConnectionException(NOT_INITIALISED, e.getMessage());
+    }
+    synchronized (lock) {
+      this.channel = channel;
+      state = STATE_CONNECTED;
+    }
+    register(channel, SelectionKey.OP_READ);
+  }
+
+  /**
+   * @return the isServerConnection
+   */
+  public boolean isServerConnection() {
+    return isServerConnection;
+  }
+
+  /**
+   * @return the event loop serving the connection
+   */
+  public NioEventLoop getEventLoop() {
+    return loop;
+  }
+
+  /**
+   * @param listener the listener notified on the event loop thread, or null
+   */
+  public void setListener(NioConnectionListener listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * @return the listener or null
+   */
+  public NioConnectionListener getListener() {
+    return listener;
+  }
+
+  /**
+   * @param size the maximum number of bytes queued for sending, before {@link #send(byte[])} waits
+   */
+  public void setMaxWriteBufferSize(int size) {
+    maxWriteBufferSize = size;
+  }
+
+  /**
+   * @return the maximum number of bytes queued for sending
+   */
+  public int getMaxWriteBufferSize() {
+    return maxWriteBufferSize;
+  }
+
+  @Override
+  public void connect() throws CommConnectionException {
+    if (isConnected()) {
+      return;
+    }
+    if (isServerConnection) {
+      throw new CommConnectionException(ICommConnection.NOT_AVAILABLE,
+          "Connection was inialized by the client");
+    }
+    if (port == 0 || ipAddress == null) {
+      throw new CommConnectionException(WRONG_PARAMETER, "ip-address and/or port is not set");
+    }
+    InetSocketAddress address = new InetSocketAddress(ipAddress, port);
+    if (address.isUnresolved()) {
+      throw new CommConnectionException(ETHERNET_UNKNOWN_HOST, ipAddress);
+    }
+    final SocketChannel newChannel;
+    boolean connected;
+    try {
+      newChannel = SocketChannel.open();
+      newChannel.configureBlocking(false);
+      connected = newChannel.connect(address);
+    } catch (IOException e) {
+      throw new CommConnectionException(ETHERNET_TIMEOUT, e.getMessage());
+    }
+    synchronized (lock) {
+      channel = newChannel;
+      readBuffer.clear();
+      readIndex = 0;
+      writeBuffer.clear();
+      error = null;
+      readPaused = false;
+      writeRequested = false;
+      state = connected ? STATE_CONNECTED : STATE_CONNECTING;
+      if (!connected && connectTimeout > 0) {
+        connectTimer = loop.schedule(new Runnable() {
+          @Override
+          public void run() {
+            synchronized (lock) {
+              if (newChannel == channel && state == STATE_CONNECTING) {
+                fail(ETHERNET_TIMEOUT, "connect timed out");
+              }
+            }
+          }
+        }, connectTimeout);
+      }
+    }
+    register(newChannel, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT);
+    if (connected) {
+      return;
+    }
+    synchronized (lock) {
+      while (newChannel == channel && state == STATE_CONNECTING) {
+        if (!loop.isRunning()) {
+          fail(UNHANDLED_ERROR, "event loop stopped");
+          break;
+        }
+        waitLock(1000);
+      }
+      if (newChannel == channel && state == STATE_CONNECTED) {
+        return;
+      }
+      throw takeError(ETHERNET_TIMEOUT, "connect failed");
+    }
+  }
+
+  private void register(final SocketChannel newChannel, final int ops) {
+    loop.execute(new Runnable() {
+      @Override
+      public void run() {
+        synchronized (lock) {
+          if (newChannel != channel) {
+            return;
+          }
+          try {
+            key = loop.register(newChannel, ops, new ChannelHandler(newChannel));
+            if (state == STATE_CONNECTED && writeBuffer.position() > 0) {
+              key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+          } catch (IOException e) {
+            fail(state == STATE_CONNECTING ? ETHERNET_TIMEOUT : CONNECTION_LOST, e.getMessage());
+          }
+        }
+      }
+    });
+  }
+
+  @Override
+  public void disconnect() throws CommConnectionException {
+    synchronized (lock) {
+      if (null == channel) {
+        return;
+      }
+      state = STATE_DISCONNECTED;
+      error = null;
+      try {
+        closeChannel();
+      } catch (IOException e) {
+        throw new CommConnectionException(UNHANDLED_ERROR, e.getMessage());
+      } finally {
+        lock.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Closes the channel, must be called with the lock held.
+   */
+  private void closeChannel() throws IOException {
+    SocketChannel oldChannel = channel;
+    channel = null;
+    key = null;
+    if (null != connectTimer) {
+      connectTimer.cancel();
+      connectTimer = null;
+    }
+    try {
+      oldChannel.close();
+    } finally {
+      /* let the selector release the channel */
+      loop.wakeup();
+    }
+  }
+
+  /**
+   * Marks the connection as failed, must be called with the lock held.
+   */
+  private void fail(int errorCode, String message) {
+    boolean wasConnected = state == STATE_CONNECTED;
+    state = STATE_DISCONNECTED;
+    error = new CommConnectionException(errorCode, message);
+    if (null != channel) {
+      try {
+        closeChannel();
+      } catch (IOException e) {
+        logger.trace("{} close warning - {}", this.toString(), e.getMessage());
+      }
+    }
+    lock.notifyAll();
+    if (wasConnected) {
+      logger.debug("{} connection lost - {}", this.toString(), message);
+    }
+  }
+
+  /**
+   * Returns the stored error (and clears it) or a new one, must be called with the lock held.
+   */
+  private CommConnectionException takeError(int errorCode, String message) {
+    CommConnectionException e = error;
+    error = null;
+    return null != e ? e : new CommConnectionException(errorCode, message);
+  }
+
+  private void waitLock(long timeout) throws CommConnectionException {
+    try {
+      lock.wait(timeout);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new CommConnectionException(UNHANDLED_ERROR, "interrupted");
+    }
+  }
+
+  @Override
+  public boolean isConnected() {
+    synchronized (lock) {
+      return state == STATE_CONNECTED;
+    }
+  }
+
+  /**
+   * Waits for received data, must be called with the lock held.
+   *
+   * @return number of bytes available or -1 if the receive timeout has expired
+   */
+  private int awaitData() throws CommConnectionException {
+    long deadline = System.nanoTime() + recvTimeout * 1000000L;
+    while (unread() == 0) {
+      if (state != STATE_CONNECTED) {
+        throw takeError(NOT_INITIALISED, "not initialize");
+      }
+      long remaining = 0;
+      if (recvTimeout > 0) {
+        remaining = (deadline - System.nanoTime() + 999999) / 1000000;
+        if (remaining <= 0) {
+          return -1;
+        }
+      }
+      waitLock(remaining);
+    }
+    return unread();
+  }
+
+  /**
+   * @return the number of unread bytes in the read buffer, must be called with the lock held
+   */
+  private int unread() {
+    return readBuffer.position() - readIndex;
+  }
+
+  /**
+   * Takes received data out of the read buffer, must be called with the lock held. The data is not
+   * moved, the buffer is only reset when all data is read or compacted by the loop when it needs
+   * space.
+   */
+  private int consume(byte[] b, int off, int len) {
+    int count = Math.min(len, unread());
+    System.arraycopy(readBuffer.array(), readIndex, b, off, count);
+    readIndex += count;
+    if (readIndex == readBuffer.position()) {
+      readBuffer.clear();
+      readIndex = 0;
+    }
+    resumeRead();
+    return count;
+  }
+
+  /**
+   * Moves the unread data to the start of the read buffer, must be called with the lock held.
+   */
+  private void compactReadBuffer() {
+    readBuffer.limit(readBuffer.position());
+    readBuffer.position(readIndex);
+    readBuffer.compact();
+    readIndex = 0;
+  }
+
+  /**
+   * Lets the loop read again after the read buffer was full, must be called with the lock held.
+   */
+  private void resumeRead() {
+    if (readPaused) {
+      readPaused = false;
+      final SocketChannel current = channel;
+      loop.execute(new Runnable() {
+        @Override
+        public void run() {
+          synchronized (lock) {
+            if (current == channel && null != key && key.isValid()) {
+              key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            }
+          }
+        }
+      });
+    }
+  }
+
+  @Override
+  public int recv() throws CommConnectionException {
+    synchronized (lock) {
+      if (awaitData() < 0) {
+        return -1;
+      }
+      int c = readBuffer.get(readIndex++) & 0xFF;
+      if (readIndex == readBuffer.position()) {
+        readBuffer.clear();
+        readIndex = 0;
+      }
+      resumeRead();
+      return c;
+    }
+  }
+
+  @Override
+  public int recvAvailable(byte[] b, int off, int len) throws CommConnectionException {
+    if (len <= 0) {
+      return 0;
+    }
+    synchronized (lock) {
+      if (awaitData() < 0) {
+        return -1;
+      }
+      return consume(b, off, len);
+    }
+  }
+
+  @Override
+  public int dataAvailable() throws CommConnectionException {
+    synchronized (lock) {
+      if (unread() == 0 && state != STATE_CONNECTED) {
+        throw new CommConnectionException(NOT_INITIALISED, "not initialize");
+      }
+      return unread();
+    }
+  }
+
+  @Override
+  public void send(byte[] senddata) throws CommConnectionException {
+    if (senddata == null) {
+      throw new CommConnectionException(WRONG_PARAMETER, "senddata is null");
+    }
+    send(senddata, 0, senddata.length);
+  }
+
+  @Override
+  public void send(byte[] senddata, int off, int len) throws CommConnectionException {
+    if (senddata == null) {
+      throw new CommConnectionException(WRONG_PARAMETER, "senddata is null");
+    }
+    ByteBuffer src = ByteBuffer.wrap(senddata, off, len);
+    synchronized (lock) {
+      if (state != STATE_CONNECTED) {
+        throw takeError(NOT_INITIALISED, "not initialize");
+      }
+      if (writeBuffer.position() == 0) {
+        /* nothing queued, so try to write directly */
+        try {
+          channel.write(src);
+        } catch (IOException e) {
+          fail(CONNECTION_LOST, e.getMessage());
+          throw takeError(CONNECTION_LOST, e.getMessage());
+        }
+      }
+      long deadline = System.nanoTime() + recvTimeout * 1000000L;
+      while (src.hasRemaining()) {
+        int free = maxWriteBufferSize - writeBuffer.position();
+        if (free <= 0) {
+          long remaining = (deadline - System.nanoTime() + 999999) / 1000000;
+          if (recvTimeout > 0 && remaining <= 0) {
+            throw new CommConnectionException(ETHERNET_TIMEOUT, "send timed out");
+          }
+          waitLock(recvTimeout > 0 ? remaining : 0);
+          if (state != STATE_CONNECTED) {
+            throw takeError(CONNECTION_LOST, "socket closed");
+          }
+          continue;
+        }
+        int count = Math.min(free, src.remaining());
+        ensureWriteCapacity(writeBuffer.position() + count);
+        int limit = src.limit();
+        src.limit(src.position() + count);
+        writeBuffer.put(src);
+        src.limit(limit);
+        requestWrite();
+      }
+    }
+  }
+
+  private void ensureWriteCapacity(int capacity) {
+    if (writeBuffer.capacity() < capacity) {
+      ByteBuffer newBuffer = ByteBuffer.allocate(
+          Math.min(maxWriteBufferSize, Math.max(capacity, 2 * writeBuffer.capacity())));
+      writeBuffer.flip();
+      newBuffer.put(writeBuffer);
+      writeBuffer = newBuffer;
+    }
+  }
+
+  /**
+   * Lets the loop write the write buffer, must be called with the lock held.
+   */
+  private void requestWrite() {
+    if (writeRequested) {
+      return;
+    }
+    writeRequested = true;
+    final SocketChannel current = channel;
+    loop.execute(new Runnable() {
+      @Override
+      public void run() {
+        synchronized (lock) {
+          if (current == channel && null != key && key.isValid()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * Handles the ready operations of one channel, on the loop thread.
+   */
+  private class ChannelHandler implements NioEventLoop.Handler {
+    private final SocketChannel handledChannel;
+
+    ChannelHandler(SocketChannel channel) {
+      handledChannel = channel;
+    }
+
+    @Override
+    public void handle(SelectionKey selectionKey) {
+      boolean received = false;
+      boolean lost = false;
+      synchronized (lock) {
+        if (handledChannel != channel) {
+          selectionKey.cancel();
+          return;
+        }
+        try {
+          if (selectionKey.isConnectable()) {
+            handledChannel.finishConnect();
+            state = STATE_CONNECTED;
+            if (null != connectTimer) {
+              connectTimer.cancel();
+              connectTimer = null;
+            }
+            selectionKey.interestOps(SelectionKey.OP_READ);
+            lock.notifyAll();
+          }
+          if (selectionKey.isValid() && selectionKey.isReadable()) {
+            if (!readBuffer.hasRemaining()) {
+              compactReadBuffer();
+            }
+            int count = handledChannel.read(readBuffer);
+            if (count < 0) {
+              fail(CONNECTION_LOST, "socket closed");
+              lost = true;
+            } else {
+              received = count > 0;
+              if (!readBuffer.hasRemaining() && readIndex == 0) {
+                /* wait until the data is consumed */
+                readPaused = true;
+                selectionKey.interestOps(selectionKey.interestOps() & ~SelectionKey.OP_READ);
+              }
+              lock.notifyAll();
+            }
+          }
+          if (!lost && selectionKey.isValid() && selectionKey.isWritable()) {
+            writeBuffer.flip();
+            handledChannel.write(writeBuffer);
+            writeBuffer.compact();
+            if (writeBuffer.position() == 0) {
+              writeRequested = false;
+              selectionKey.interestOps(selectionKey.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+            lock.notifyAll();
+          }
+        } catch (IOException e) {
+          lost = state == STATE_CONNECTED;
+          fail(lost ? CONNECTION_LOST : ETHERNET_TIMEOUT, e.getMessage());
+        }
+      }
+      NioConnectionListener currentListener = listener;
+      if (null != currentListener) {
+        if (received) {
+          currentListener.dataReceived(NioTcpConnection.this);
+        }
+        if (lost) {
+          currentListener.connectionLost(NioTcpConnection.this);
+        }
+      }
+    }
+  }
+
+  /**
+   * Input stream view, a receive timeout throws a {@link SocketTimeoutException} like the socket
+   * stream of a {@link TcpConnection}.
+   */
+  private class NioInputStream extends InputStream {
+    @Override
+    public int read() throws IOException {
+      try {
+        int c = recv();
+        if (c < 0) {
+          throw new SocketTimeoutException("Read timed out");
+        }
+        return c;
+      } catch (CommConnectionException e) {
+        return handle(e);
+      }
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      try {
+        int count = recvAvailable(b, off, len);
+        if (count < 0) {
+          throw new SocketTimeoutException("Read timed out");
+        }
+        return count;
+      } catch (CommConnectionException e) {
+        return handle(e);
+      }
+    }
+
+    @Override
+    public int available() throws IOException {
+      synchronized (lock) {
+        return unread();
+      }
+    }
+
+    private int handle(CommConnectionException e) throws IOException {
+      if (e.getErrorCode() == CONNECTION_LOST) {
+        return -1;
+      }
+      throw new IOException(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Output stream view, every write is passed to {@link NioTcpConnection#send(byte[], int, int)}.
+   */
+  private class NioOutputStream extends OutputStream {
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      try {
+        send(b, off, len);
+      } catch (CommConnectionException e) {
+        throw new IOException(e.getMessage(), e);
+      }
+    }
+  }
+
+  @Override
+  public InputStream getInputStream() {
+    return inputStream;
+  }
+
+  @Override
+  public OutputStream getOutputStream() {
+    return outputStream;
+  }
+
+  /**
+   * @param ipaddress the new ip address
+   */
+  public void setIPAddress(String ipaddress) {
+    this.ipAddress = ipaddress;
+  }
+
+  /**
+   * @return the ip address
+   */
+  public String getIPAddress() {
+    return ipAddress;
+  }
+
+  /**
+   * @param port the new port
+   */
+  public void setPort(int port) {
+    this.port = port;
+  }
+
+  /**
+   * @return the port
+   */
+  public int getPort() {
+    return port;
+  }
+
+  @Override
+  public Hashtable<String, Object> getInfo() {
+    Hashtable<String, Object> info = new Hashtable<>();
+    info.put("type", "ethernet");
+    info.put("ip", ipAddress);
+    info.put("port", port);
+    return info;
+  }
+
+  @Override
+  public void setSettings(Hashtable<String, String> settings) throws IllegalArgumentException {
+    String port = settings.get("port");
+    if (null != port) {
+      try {
+        this.port = Integer.parseInt(port);
+      } catch (NumberFormatException e) {
+        throw new NumberFormatException("Port should be a number");
+      }
+    }
+    String ip = settings.get("ip");
+    if (null != ip) {
+      this.ipAddress = ip;
+    }
+  }
+
+  @Override
+  public void setRecvTimeout(int timeout) {
+    recvTimeout = timeout;
+  }
+
+  @Override
+  public int getRecvTimeout() {
+    return recvTimeout;
+  }
+
+  @Override
+  public void setConnectionTimeout(int time) {
+    connectTimeout = time;
+  }
+
+  @Override
+  public int getConnectionTimeout() {
+    return connectTimeout;
+  }
+
+  @Override
+  public String toString() {
+    return new StringBuilder().append(ipAddress).append(':').append(port).toString();
+  }
+}
@@ -0,0 +1,207 @@
+package com.metratec.lib.connection;
+
+/*******************************************************************************
+ * Copyright (c) 2023 by metraTec GmbH
+ * All rights reserved.
+ *******************************************************************************/
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A buffered input stream like {@link java.io.BufferedInputStream}, but the buffer is borrowed from
+ * the {@link BufferPool} only while it holds data. Mark and reset are not supported.
+ *
+ * @author man
+ */
+class PooledInputStream extends FilterInputStream {
+  private final BufferPool pool;
+  private final int size;
+  /** the buffer, null while empty */
+  private byte[] buf = null;
+  private int pos = 0;
+  private int count = 0;
+  private volatile boolean closed = false;
+
+  /**
+   * @param in the underlying stream
+   * @param size the buffer size
+   */
+  PooledInputStream(InputStream in, int size) {
+    this(in, BufferPool.getDefault(), size);
+  }
+
+  /**
+   * @param in the underlying stream
+   * @param pool the pool to borrow the buffer from
+   * @param size the buffer size
+   */
+  PooledInputStream(InputStream in, BufferPool pool, int size) {
+    super(in);
+    this.pool = pool;
+    this.size = size;
+  }
+
+  private void ensureOpen() throws IOException {
+    if (closed) {
+      throw new IOException("Stream closed");
+    }
+  }
+
+  private void fill() throws IOException {
+    if (null == buf) {
+      buf = pool.acquire(size);
+    }
+    pos = 0;
+    count = 0;
+    int n = in.read(buf, 0, size);
+    if (n > 0) {
+      count = n;
+    }
+  }
+
+  /**
+   * Returns the buffer to the pool if all data has been read.
+   */
+  private void releaseIfEmpty() {
+    if (null != buf && pos >= count) {
+      pool.release(buf);
+      buf = null;
+      pos = 0;
+      count = 0;
+    }
+  }
+
+  /**
+   * @return the number of buffered bytes
+   */
+  synchronized int buffered() {
+    return count - pos;
+  }
+
+  @Override
+  public synchronized int read() throws IOException {
+    ensureOpen();
+    try {
+      if (pos >= count) {
+        fill();
+        if (pos >= count) {
+          return -1;
+        }
+      }
+      return buf[pos++] & 0xFF;
+    } finally {
+      releaseIfEmpty();
+    }
+  }
+
+  private int read1(byte[] b, int off, int len) throws IOException {
+    int avail = count - pos;
+    if (avail <= 0) {
+      if (len >= size) {
+        /* large reads bypass the buffer */
+        return in.read(b, off, len);
+      }
+      fill();
+      avail = count - pos;
+      if (avail <= 0) {
+        return -1;
+      }
+    }
+    int cnt = Math.min(avail, len);
+    System.arraycopy(buf, pos, b, off, cnt);
+    pos += cnt;
+    return cnt;
+  }
+
+  @Override
+  public synchronized int read(byte[] b, int off, int len) throws IOException {
+    ensureOpen();
+    if ((off | len | (off + len) | (b.length - (off + len))) < 0) {
+      throw new IndexOutOfBoundsException();
+    } else if (len == 0) {
+      return 0;
+    }
+    try {
+      int n = 0;
+      for (;;) {
+        int nread = read1(b, off + n, len - n);
+        if (nread <= 0) {
+          return (n == 0) ? nread : n;
+        }
+        n += nread;
+        if (n >= len || in.available() <= 0) {
+          return n;
+        }
+      }
+    } finally {
+      releaseIfEmpty();
+    }
+  }
+
+  @Override
+  public synchronized long skip(long n) throws IOException {
+    ensureOpen();
+    if (n <= 0) {
+      return 0;
+    }
+    int avail = count - pos;
+    if (avail <= 0) {
+      return in.skip(n);
+    }
+    int skipped = (int) Math.min(avail, n);
+    pos += skipped;
+    releaseIfEmpty();
+    return skipped;
+  }
+
+  @Override
+  public synchronized int available() throws IOException {
+    ensureOpen();
+    int n = count - pos;
+    int avail = in.available();
+    return n > (Integer.MAX_VALUE - avail) ? Integer.MAX_VALUE : n + avail;
+  }
+
+  @Override
+  public boolean markSupported() {
+    return false;
+  }
+
+  @Override
+  public synchronized void mark(int readlimit) {
+    // not supported
+  }
+
+  @Override
+  public synchronized void reset() throws IOException {
+    throw new IOException("mark/reset not supported");
+  }
+
+  /**
+   * Closes the stream and returns the buffer to the pool without closing the underlying stream,
+   * for connections which close their device themselves. The device must be closed first, so a
+   * blocked read returns.
+   */
+  void release() {
+    closed = true;
+    synchronized (this) {
+      pool.release(buf);
+      buf = null;
+      pos = 0;
+      count = 0;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    /* not synchronized, so a blocked read returns */
+    in.close();
+    release();
+  }
+}
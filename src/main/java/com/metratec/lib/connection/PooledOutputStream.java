@@ -0,0 +1,124 @@
+package com.metratec.lib.connection;
+
+/*******************************************************************************
+ * Copyright (c) 2023 by metraTec GmbH
+ * All rights reserved.
+ *******************************************************************************/
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A buffered output stream like {@link java.io.BufferedOutputStream}, but the buffer is borrowed
+ * from the {@link BufferPool} only while it holds unflushed data.
+ *
+ * @author man
+ */
+class PooledOutputStream extends FilterOutputStream {
+  private final BufferPool pool;
+  private final int size;
+  /** the buffer, null while empty */
+  private byte[] buf = null;
+  private int count = 0;
+  private boolean closed = false;
+
+  /**
+   * @param out the underlying stream
+   * @param size the buffer size
+   */
+  PooledOutputStream(OutputStream out, int size) {
+    this(out, BufferPool.getDefault(), size);
+  }
+
+  /**
+   * @param out the underlying stream
+   * @param pool the pool to borrow the buffer from
+   * @param size the buffer size
+   */
+  PooledOutputStream(OutputStream out, BufferPool pool, int size) {
+    super(out);
+    this.pool = pool;
+    this.size = size;
+  }
+
+  private void ensureOpen() throws IOException {
+    if (closed) {
+      throw new IOException("Stream closed");
+    }
+  }
+
+  private void flushBuffer() throws IOException {
+    if (count > 0) {
+      out.write(buf, 0, count);
+      count = 0;
+    }
+  }
+
+  @Override
+  public synchronized void write(int b) throws IOException {
+    ensureOpen();
+    if (null == buf) {
+      buf = pool.acquire(size);
+    }
+    if (count >= size) {
+      flushBuffer();
+    }
+    buf[count++] = (byte) b;
+  }
+
+  @Override
+  public synchronized void write(byte[] b, int off, int len) throws IOException {
+    ensureOpen();
+    if ((off | len | (off + len) | (b.length - (off + len))) < 0) {
+      throw new IndexOutOfBoundsException();
+    }
+    if (len >= size) {
+      /* large writes bypass the buffer */
+      flushBuffer();
+      out.write(b, off, len);
+      return;
+    }
+    if (len > size - count) {
+      flushBuffer();
+    }
+    if (null == buf) {
+      buf = pool.acquire(size);
+    }
+    System.arraycopy(b, off, buf, count, len);
+    count += len;
+  }
+
+  @Override
+  public synchronized void flush() throws IOException {
+    ensureOpen();
+    flushBuffer();
+    pool.release(buf);
+    buf = null;
+    out.flush();
+  }
+
+  /**
+   * Closes the stream and returns the buffer to the pool without flushing or closing the underlying
+   * stream, for connections which close their device themselves. Unflushed data is discarded.
+   */
+  synchronized void release() {
+    closed = true;
+    pool.release(buf);
+    buf = null;
+    count = 0;
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    try {
+      flush();
+    } finally {
+      release();
+      out.close();
+    }
+  }
+}
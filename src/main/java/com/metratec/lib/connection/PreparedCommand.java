@@ -0,0 +1,229 @@
+package com.metratec.lib.connection;
+
+/*******************************************************************************
+ * Copyright (c) 2023 by metraTec GmbH
+ * All rights reserved.
+ *******************************************************************************/
+
+/**
+ * A {@link CommandTemplate} with parameter values. The parameters are encoded into reusable slot
+ * buffers and the command is assembled in a reusable buffer only when a parameter has changed, so
+ * sending the same or a slightly changed command again does not allocate anything.
+ *
+ * Not thread safe, use one prepared command per thread or connection.
+ *
+ * @author man
+ */
+public class PreparedCommand {
+  private static final byte[] HEX_DIGITS = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A',
+      'B', 'C', 'D', 'E', 'F'};
+
+  private final CommandTemplate template;
+  private final byte[][] slots;
+  private final int[] slotLengths;
+  private byte[] buffer = new byte[32];
+  private int length = 0;
+  private boolean changed = true;
+
+  PreparedCommand(CommandTemplate template) {
+    this.template = template;
+    slots = new byte[template.getSlotCount()][];
+    slotLengths = new int[slots.length];
+    for (int i = 0; i < slots.length; i++) {
+      slots[i] = new byte[16];
+    }
+  }
+
+  /**
+   * @return the template
+   */
+  public CommandTemplate getTemplate() {
+    return template;
+  }
+
+  private byte[] slot(int slot, int length) {
+    if (slots[slot].length < length) {
+      slots[slot] = new byte[Math.max(length, 2 * slots[slot].length)];
+    }
+    slotLengths[slot] = length;
+    changed = true;
+    return slots[slot];
+  }
+
+  /**
+   * Sets a text parameter, characters outside of ISO-8859-1 are replaced by '?'.
+   *
+   * @param slot the slot index
+   * @param value the value
+   * @return this command
+   */
+  public PreparedCommand set(int slot, CharSequence value) {
+    int len = value.length();
+    byte[] b = slot(slot, len);
+    for (int i = 0; i < len; i++) {
+      char c = value.charAt(i);
+      b[i] = (byte) (c <= 0xFF ? c : '?');
+    }
+    return this;
+  }
+
+  /**
+   * Sets a decimal number parameter.
+   *
+   * @param slot the slot index
+   * @param value the value
+   * @return this command
+   */
+  public PreparedCommand set(int slot, long value) {
+    if (value == Long.MIN_VALUE) {
+      return set(slot, Long.toString(value));
+    }
+    int digits = 1;
+    for (long v = Math.abs(value); v >= 10; v /= 10) {
+      digits++;
+    }
+    int len = value < 0 ? digits + 1 : digits;
+    byte[] b = slot(slot, len);
+    long v = Math.abs(value);
+    for (int i = len - 1; i >= len - digits; i--) {
+      b[i] = (byte) ('0' + v % 10);
+      v /= 10;
+    }
+    if (value < 0) {
+      b[0] = '-';
+    }
+    return this;
+  }
+
+  /**
+   * Sets a hexadecimal number parameter with upper case digits.
+   *
+   * @param slot the slot index
+   * @param value the value
+   * @param digits the number of digits, leading zeros are added, higher digits are cut off
+   * @return this command
+   */
+  public PreparedCommand setHex(int slot, long value, int digits) {
+    byte[] b = slot(slot, digits);
+    for (int i = digits - 1; i >= 0; i--) {
+      b[i] = HEX_DIGITS[(int) (value & 0xF)];
+      value >>>= 4;
+    }
+    return this;
+  }
+
+  /**
+   * Sets a parameter of binary data, encoded as upper case hexadecimal string.
+   *
+   * @param slot the slot index
+   * @param data the data
+   * @param off the offset of the data
+   * @param len the length of the data
+   * @return this command
+   */
+  public PreparedCommand setHex(int slot, byte[] data, int off, int len) {
+    byte[] b = slot(slot, 2 * len);
+    for (int i = 0; i < len; i++) {
+      b[2 * i] = HEX_DIGITS[(data[off + i] >> 4) & 0xF];
+      b[2 * i + 1] = HEX_DIGITS[data[off + i] & 0xF];
+    }
+    return this;
+  }
+
+  /**
+   * Assembles the command if a parameter has changed.
+   */
+  private void assemble() {
+    if (!changed) {
+      return;
+    }
+    int len = template.getLiteral(0).length;
+    for (int i = 0; i < slots.length; i++) {
+      len += slotLengths[i] + template.getLiteral(i + 1).length;
+    }
+    if (buffer.length < len) {
+      buffer = new byte[Math.max(len, 2 * buffer.length)];
+    }
+    int pos = append(template.getLiteral(0), template.getLiteral(0).length, 0);
+    for (int i = 0; i < slots.length; i++) {
+      pos = append(slots[i], slotLengths[i], pos);
+      pos = append(template.getLiteral(i + 1), template.getLiteral(i + 1).length, pos);
+    }
+    length = len;
+    changed = false;
+  }
+
+  private int append(byte[] b, int len, int pos) {
+    System.arraycopy(b, 0, buffer, pos, len);
+    return pos + len;
+  }
+
+  /**
+   * @return the buffer holding the command, valid until a parameter is changed
+   */
+  public byte[] getBuffer() {
+    assemble();
+    return buffer;
+  }
+
+  /**
+   * @return the length of the command in {@link #getBuffer()}
+   */
+  public int getLength() {
+    assemble();
+    return length;
+  }
+
+  /**
+   * Sends the command.
+   *
+   * @param connection the connection
+   * @throws CommConnectionException possible Errorcodes: see {@link ICommConnection#send(byte[])}
+   */
+  public void send(ICommConnection connection) throws CommConnectionException {
+    assemble();
+    connection.send(buffer, 0, length);
+  }
+
+  /**
+   * Checks if a received response equals this command, e.g. the expected reply of a template
+   * <code>LNK {} OK\r</code>.
+   *
+   * @param b the buffer holding the response
+   * @param off the offset of the response
+   * @param len the length of the response
+   * @return true if the response is equal
+   */
+  public boolean matches(byte[] b, int off, int len) {
+    assemble();
+    return len == length && regionMatches(b, off, len);
+  }
+
+  /**
+   * Checks if a received response starts with this command.
+   *
+   * @param b the buffer holding the response
+   * @param off the offset of the response
+   * @param len the length of the response
+   * @return true if the response starts with this command
+   */
+  public boolean isPrefixOf(byte[] b, int off, int len) {
+    assemble();
+    return len >= length && regionMatches(b, off, length);
+  }
+
+  private boolean regionMatches(byte[] b, int off, int len) {
+    for (int i = 0; i < len; i++) {
+      if (b[off + i] != buffer[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public String toString() {
+    assemble();
+    return new String(buffer, 0, length, ICommConnection.ISO_8859_1);
+  }
+}
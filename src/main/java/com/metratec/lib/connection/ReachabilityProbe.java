@@ -0,0 +1,86 @@
+package com.metratec.lib.connection;
+
+/*******************************************************************************
+ * Copyright (c) 2023 by metraTec GmbH
+ * All rights reserved.
+ *******************************************************************************/
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NoRouteToHostException;
+import java.net.Socket;
+
+/**
+ * Checks whether a discovered device is reachable, see
+ * {@link UdpConnection#setReachabilityProbe(ReachabilityProbe)}. The discovery runs the probes in
+ * parallel with the receiving of further responses.
+ *
+ * @author man
+ */
+public abstract class ReachabilityProbe {
+
+  /**
+   * Probes with {@link InetAddress#isReachable(int)}, i.e. ICMP echo if the process is privileged,
+   * otherwise a TCP connect to the echo port. This is the default.
+   */
+  public static final ReachabilityProbe ICMP = new ReachabilityProbe() {
+    @Override
+    public boolean isReachable(InetAddress address, int timeout) throws IOException {
+      return address.isReachable(timeout);
+    }
+
+    @Override
+    public String toString() {
+      return "ICMP";
+    }
+  };
+
+  /**
+   * Creates a probe connecting to a TCP port of the device, e.g. the port of the
+   * {@link TcpConnection}. A refused connection also counts as reachable, since the device has
+   * answered. Java reports a refusal and an unreachable network (ENETUNREACH) with the same
+   * {@link ConnectException}, so the refusal is recognized by its message ("Connection refused");
+   * any other connect failure, e.g. {@link NoRouteToHostException}, counts as unreachable.
+   *
+   * @param port the TCP port
+   * @return the probe
+   */
+  public static ReachabilityProbe tcp(final int port) {
+    return new ReachabilityProbe() {
+      @Override
+      public boolean isReachable(InetAddress address, int timeout) throws IOException {
+        try (Socket socket = new Socket()) {
+          socket.connect(new InetSocketAddress(address, port), timeout);
+          return true;
+        } catch (NoRouteToHostException e) {
+          return false;
+        } catch (ConnectException e) {
+          /* connection refused, but the device answered */
+          return isRefused(e);
+        } catch (IOException e) {
+          return false;
+        }
+      }
+
+      @Override
+      public String toString() {
+        return "TCP:" + port;
+      }
+    };
+  }
+
+  private static boolean isRefused(ConnectException e) {
+    String message = e.getMessage();
+    return null != message && message.toLowerCase().contains("refused");
+  }
+
+  /**
+   * @param address the address of the device
+   * @param timeout the time to wait for an answer in milliseconds
+   * @return true if the device is reachable
+   * @throws IOException if the probe can not be sent
+   */
+  public abstract boolean isReachable(InetAddress address, int timeout) throws IOException;
+}
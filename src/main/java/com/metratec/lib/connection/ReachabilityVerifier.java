@@ -0,0 +1,119 @@
+package com.metratec.lib.connection;
+
+/*******************************************************************************
+ * Copyright (c) 2023 by metraTec GmbH
+ * All rights reserved.
+ *******************************************************************************/
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the reachability probes of one discovery on a shared, bounded thread pool, so the receive
+ * loop is not blocked by unreachable devices.
+ *
+ * @author man
+ */
+final class ReachabilityVerifier {
+  /** maximum number of probes running at the same time (for all discoveries) */
+  static final int MAX_PROBES = 16;
+  private static final Logger logger = LoggerFactory.getLogger(ReachabilityVerifier.class);
+  private static ExecutorService executor = null;
+
+  private final ReachabilityProbe probe;
+  private final int timeout;
+  private final List<Future<?>> pending = new ArrayList<>();
+
+  /**
+   * @param probe the probe, null to skip the verification (the devices are not reachable)
+   * @param timeout the timeout of a probe in milliseconds
+   */
+  ReachabilityVerifier(ReachabilityProbe probe, int timeout) {
+    this.probe = probe;
+    this.timeout = timeout;
+  }
+
+  private static synchronized ExecutorService getExecutor() {
+    if (null == executor) {
+      ThreadPoolExecutor pool = new ThreadPoolExecutor(MAX_PROBES, MAX_PROBES, 60,
+          TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+              Thread thread = new Thread(r, "ReachabilityProbe-" + count.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            }
+          });
+      pool.allowCoreThreadTimeOut(true);
+      executor = pool;
+    }
+    return executor;
+  }
+
+  /**
+   * Starts the verification of a device.
+   *
+   * @param dev the device, its reachable flag is set when the probe completes
+   */
+  void verify(final EthernetDevice dev) {
+    if (null == probe) {
+      return;
+    }
+    pending.add(getExecutor().submit(new Runnable() {
+      @Override
+      public void run() {
+        boolean reachable = false;
+        try {
+          /* a literal address, no name lookup */
+          InetAddress address = InetAddress.getByName(dev.getIPAddress());
+          reachable = probe.isReachable(address, timeout);
+        } catch (IOException e) {
+          logger.trace("{} probe of {} failed - {}", probe, dev.getIPAddress(), e.getMessage());
+        }
+        dev.setReachable(reachable);
+      }
+    }));
+  }
+
+  /**
+   * Waits for all started probes.
+   *
+   * @throws InterruptedIOException if the thread is interrupted, the remaining probes are cancelled
+   */
+  void await() throws InterruptedIOException {
+    try {
+      for (Future<?> future : pending) {
+        try {
+          future.get();
+        } catch (ExecutionException e) {
+          /* the probe tasks catch their exceptions */
+          logger.debug("reachability probe failed", e.getCause());
+        }
+      }
+    } catch (InterruptedException e) {
+      for (Future<?> future : pending) {
+        future.cancel(true);
+      }
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("reachability verification interrupted");
+    } finally {
+      pending.clear();
+    }
+  }
+}
@@ -0,0 +1,354 @@
+package com.metratec.lib.connection;
+
+/*******************************************************************************
+ * Copyright (c) 2023 by metraTec GmbH
+ * All rights reserved.
+ *******************************************************************************/
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Hashtable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Recording wrapper for any {@link ICommConnection}.
+ *
+ * Appends the sent and received data with timestamps to a {@link CaptureFile}, which can be played
+ * back with a {@link ReplayConnection}. The records are copied into a memory-mapped file on the I/O
+ * thread, without formatting or system calls, so unlike trace logging the recording can stay
+ * enabled in production. If the capture file can not be written, recording stops and the
+ * connection keeps working.
+ *
+ * Data transferred through {@link #getInputStream()} and {@link #getOutputStream()} is not
+ * recorded.
+ *
+ * @author man
+ */
+public class RecordingConnection extends ICommConnection implements Closeable {
+  /** default size of a memory-mapped region of the capture file */
+  public static final int DEFAULT_REGION_SIZE = 1024 * 1024;
+
+  private final Logger logger = LoggerFactory.getLogger(RecordingConnection.class);
+  private final ICommConnection connection;
+  private final CaptureFile.Writer writer;
+  private volatile boolean recording = true;
+
+  /**
+   * @param connection the recorded connection
+   * @param captureFile the capture file, an existing file is overwritten
+   * @throws IOException if the capture file can not be created
+   */
+  public RecordingConnection(ICommConnection connection, File captureFile) throws IOException {
+    this(connection, captureFile, DEFAULT_REGION_SIZE);
+  }
+
+  /**
+   * @param connection the recorded connection
+   * @param captureFile the capture file, an existing file is overwritten
+   * @param regionSize the size of a memory-mapped region of the capture file
+   * @throws IOException if the capture file can not be created
+   */
+  public RecordingConnection(ICommConnection connection, File captureFile, int regionSize)
+      throws IOException {
+    this.connection = connection;
+    this.writer = new CaptureFile.Writer(captureFile, regionSize);
+  }
+
+  /**
+   * @return the recorded connection
+   */
+  public ICommConnection getConnection() {
+    return connection;
+  }
+
+  /**
+   * @return true until the capture is closed or could not be written
+   */
+  public boolean isRecording() {
+    return recording;
+  }
+
+  /**
+   * Closes the capture file. The connection is not disconnected.
+   *
+   * @throws IOException if the capture file can not be closed
+   */
+  @Override
+  public void close() throws IOException {
+    recording = false;
+    writer.close();
+  }
+
+  private void failed(IOException e) {
+    recording = false;
+    logger.warn("{} recording stopped - {}", connection, e.getMessage());
+  }
+
+  private void record(byte type, byte[] b, int off, int len) {
+    if (recording) {
+      try {
+        writer.write(type, b, off, len);
+      } catch (IOException e) {
+        failed(e);
+      }
+    }
+  }
+
+  @Override
+  public void connect() throws CommConnectionException {
+    connection.connect();
+    record(CaptureFile.CONNECT, NO_DATA, 0, 0);
+  }
+
+  @Override
+  public void disconnect() throws CommConnectionException {
+    connection.disconnect();
+    record(CaptureFile.DISCONNECT, NO_DATA, 0, 0);
+  }
+
+  @Override
+  public void send(String senddata) throws CommConnectionException {
+    connection.send(senddata);
+    if (recording) {
+      try {
+        writer.write(CaptureFile.SEND, senddata);
+      } catch (IOException e) {
+        failed(e);
+      }
+    }
+  }
+
+  @Override
+  public void send(byte[] senddata) throws CommConnectionException {
+    connection.send(senddata);
+    record(CaptureFile.SEND, senddata, 0, senddata.length);
+  }
+
+  @Override
+  public void send(byte[] senddata, int off, int len) throws CommConnectionException {
+    connection.send(senddata, off, len);
+    record(CaptureFile.SEND, senddata, off, len);
+  }
+
+  @Override
+  public void send(ByteBuffer... parts) throws CommConnectionException {
+    remaining(parts);
+    ByteBuffer[] data = new ByteBuffer[parts.length];
+    for (int i = 0; i < parts.length; i++) {
+      data[i] = parts[i].duplicate();
+    }
+    connection.send(parts);
+    if (recording) {
+      // one send is one record, so a replay sees the same number of sends
+      int length = 0;
+      for (int i = 0; i < parts.length; i++) {
+        data[i].limit(parts[i].position());
+        length += data[i].remaining();
+      }
+      ByteBuffer message = ByteBuffer.allocate(length);
+      for (ByteBuffer part : data) {
+        message.put(part);
+      }
+      message.flip();
+      try {
+        writer.write(CaptureFile.SEND, message);
+      } catch (IOException e) {
+        failed(e);
+      }
+    }
+  }
+
+  @Override
+  public void sendNoFlush(byte[] senddata, int off, int len) throws CommConnectionException {
+    connection.sendNoFlush(senddata, off, len);
+    record(CaptureFile.SEND, senddata, off, len);
+  }
+
+  @Override
+  public void flush() throws CommConnectionException {
+    connection.flush();
+  }
+
+  @Override
+  public void setFlushPolicy(FlushPolicy flushPolicy) {
+    connection.setFlushPolicy(flushPolicy);
+  }
+
+  @Override
+  public FlushPolicy getFlushPolicy() {
+    return connection.getFlushPolicy();
+  }
+
+  @Override
+  public void send(ByteBuffer src) throws CommConnectionException {
+    ByteBuffer data = src.duplicate();
+    connection.send(src);
+    data.limit(src.position());
+    if (recording) {
+      try {
+        writer.write(CaptureFile.SEND, data);
+      } catch (IOException e) {
+        failed(e);
+      }
+    }
+  }
+
+  @Override
+  public StringBuilder receive(int... terminators) throws CommConnectionException {
+    StringBuilder s;
+    try {
+      s = connection.receive(terminators);
+    } catch (CommConnectionException e) {
+      throw recordPartial(e);
+    }
+    recordText(s);
+    return s;
+  }
+
+  /**
+   * Records the data received before a receive timeout, which is the message of the exception, so
+   * the replay returns the same bytes.
+   */
+  private CommConnectionException recordPartial(CommConnectionException e) {
+    String data = e.getMessage();
+    if (e.getErrorCode() == RECV_TIMEOUT && null != data && !data.isEmpty()) {
+      recordText(data);
+    }
+    return e;
+  }
+
+  @Override
+  public AsciiCharSequence receiveText(int... terminators) throws CommConnectionException {
+    AsciiCharSequence text;
+    try {
+      text = connection.receiveText(terminators);
+    } catch (CommConnectionException e) {
+      throw recordPartial(e);
+    }
+    recordText(text);
+    return text;
+  }
+
+  @Override
+  public AsciiCharSequence tryReceiveText(int... terminators) throws CommConnectionException {
+    AsciiCharSequence text = connection.tryReceiveText(terminators);
+    if (null != text) {
+      recordText(text);
+    }
+    return text;
+  }
+
+  private void recordText(CharSequence text) {
+    if (recording) {
+      try {
+        writer.write(CaptureFile.RECEIVE, text);
+      } catch (IOException e) {
+        failed(e);
+      }
+    }
+  }
+
+  @Override
+  public int recv() throws CommConnectionException {
+    int c = connection.recv();
+    if (c >= 0 && recording) {
+      try {
+        writer.write(CaptureFile.RECEIVE, c);
+      } catch (IOException e) {
+        failed(e);
+      }
+    }
+    return c;
+  }
+
+  @Override
+  public void recv(byte[] b, int off, int len) throws CommConnectionException {
+    connection.recv(b, off, len);
+    record(CaptureFile.RECEIVE, b, off, len);
+  }
+
+  @Override
+  public int recvAvailable(byte[] b, int off, int len) throws CommConnectionException {
+    int count = connection.recvAvailable(b, off, len);
+    if (count > 0) {
+      record(CaptureFile.RECEIVE, b, off, count);
+    }
+    return count;
+  }
+
+  @Override
+  public int read(ByteBuffer dst) throws CommConnectionException {
+    ByteBuffer data = dst.duplicate();
+    int count = connection.read(dst);
+    if (count > 0 && recording) {
+      data.limit(dst.position());
+      try {
+        writer.write(CaptureFile.RECEIVE, data);
+      } catch (IOException e) {
+        failed(e);
+      }
+    }
+    return count;
+  }
+
+  @Override
+  public boolean isConnected() {
+    return connection.isConnected();
+  }
+
+  @Override
+  public Hashtable<String, Object> getInfo() {
+    return connection.getInfo();
+  }
+
+  @Override
+  public void setSettings(Hashtable<String, String> settings) {
+    connection.setSettings(settings);
+  }
+
+  @Override
+  public InputStream getInputStream() {
+    return connection.getInputStream();
+  }
+
+  @Override
+  public OutputStream getOutputStream() {
+    return connection.getOutputStream();
+  }
+
+  @Override
+  public int dataAvailable() throws CommConnectionException {
+    return connection.dataAvailable();
+  }
+
+  @Override
+  public void setRecvTimeout(int timeout) throws CommConnectionException {
+    connection.setRecvTimeout(timeout);
+  }
+
+  @Override
+  public int getRecvTimeout() {
+    return connection.getRecvTimeout();
+  }
+
+  @Override
+  public void setConnectionTimeout(int timeout) {
+    connection.setConnectionTimeout(timeout);
+  }
+
+  @Override
+  public int getConnectionTimeout() {
+    return connection.getConnectionTimeout();
+  }
+
+  @Override
+  public String toString() {
+    return connection.toString();
+  }
+}
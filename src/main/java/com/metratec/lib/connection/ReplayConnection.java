@@ -0,0 +1,337 @@
+package com.metratec.lib.connection;
+
+/*******************************************************************************
+ * Copyright (c) 2023 by metraTec GmbH
+ * All rights reserved.
+ *******************************************************************************/
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Hashtable;
+import java.util.List;
+
+/**
+ * Plays back a {@link CaptureFile} recorded by a {@link RecordingConnection}.
+ *
+ * The recorded received data is returned by the receive methods. Data received after a send in the
+ * recording is only returned after the application has sent as well, so request/response sequences
+ * are reproduced regardless of the timing of the application. The sent data itself is not checked.
+ *
+ * With original timing, the received data is delayed like in the recording, measured from the
+ * corresponding send of the application (or from the connect). Otherwise it is returned as fast as
+ * possible, which is useful to benchmark the processing of a recorded session.
+ *
+ * Every connect starts the playback from the beginning.
+ *
+ * @author man
+ */
+public class ReplayConnection extends ICommConnection {
+  private final List<CaptureFile.Record> records;
+  private final Object lock = new Object();
+  /** send times of the application not yet matched with a recorded send */
+  private final ArrayDeque<Long> sendTimes = new ArrayDeque<Long>();
+  private boolean originalTiming = false;
+  private boolean followSends = true;
+  private boolean connected = false;
+  private int next = 0;
+  /** read position in the current receive record */
+  private int dataPosition = 0;
+  /** time of the last matched send or the connect, in nanoseconds */
+  private long anchorTime;
+  /** recorded timestamp belonging to the anchor time */
+  private long anchorTimestamp;
+  private int recvTimeout = 1000;
+  private int connectionTimeout = 1000;
+
+  private final InputStream inputStream = new InputStream() {
+    @Override
+    public int read() throws IOException {
+      try {
+        return recv();
+      } catch (CommConnectionException e) {
+        throw new IOException(e.getMessage(), e);
+      }
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      try {
+        return recvAvailable(b, off, len);
+      } catch (CommConnectionException e) {
+        throw new IOException(e.getMessage(), e);
+      }
+    }
+  };
+
+  private final OutputStream outputStream = new OutputStream() {
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      try {
+        send(b, off, len);
+      } catch (CommConnectionException e) {
+        throw new IOException(e.getMessage(), e);
+      }
+    }
+  };
+
+  /**
+   * @param capture the capture to play back
+   */
+  public ReplayConnection(CaptureFile capture) {
+    this.records = capture.getRecords();
+  }
+
+  /**
+   * @param captureFile the capture file to play back
+   * @throws IOException if the capture file can not be read
+   */
+  public ReplayConnection(File captureFile) throws IOException {
+    this(CaptureFile.read(captureFile));
+  }
+
+  /**
+   * @return true if the received data is delayed like in the recording
+   */
+  public boolean isOriginalTiming() {
+    return originalTiming;
+  }
+
+  /**
+   * @param originalTiming true to delay the received data like in the recording, false to return it
+   *        as fast as possible (default)
+   */
+  public void setOriginalTiming(boolean originalTiming) {
+    this.originalTiming = originalTiming;
+  }
+
+  /**
+   * @return true if received data recorded after a send waits for a send of the application
+   */
+  public boolean isFollowSends() {
+    return followSends;
+  }
+
+  /**
+   * @param followSends true (default) if received data recorded after a send waits for a send of
+   *        the application, false to play back the received data as a stream
+   */
+  public void setFollowSends(boolean followSends) {
+    this.followSends = followSends;
+  }
+
+  /**
+   * @return true if all recorded data has been received
+   */
+  public boolean isFinished() {
+    synchronized (lock) {
+      for (int i = next; i < records.size(); i++) {
+        CaptureFile.Record record = records.get(i);
+        if (record.getType() == CaptureFile.RECEIVE
+            && (i > next ? 0 : dataPosition) < record.getData().length) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  @Override
+  public void connect() throws CommConnectionException {
+    synchronized (lock) {
+      connected = true;
+      next = 0;
+      dataPosition = 0;
+      sendTimes.clear();
+      anchorTime = System.nanoTime();
+      anchorTimestamp = records.isEmpty() ? 0 : records.get(0).getTimestamp();
+    }
+  }
+
+  @Override
+  public void disconnect() throws CommConnectionException {
+    synchronized (lock) {
+      connected = false;
+      lock.notifyAll();
+    }
+  }
+
+  @Override
+  public void send(byte[] senddata) throws CommConnectionException {
+    if (null == senddata) {
+      throw new CommConnectionException(WRONG_PARAMETER, "data are null");
+    }
+    send(senddata, 0, senddata.length);
+  }
+
+  @Override
+  public void send(byte[] senddata, int off, int len) throws CommConnectionException {
+    if (null == senddata) {
+      throw new CommConnectionException(WRONG_PARAMETER, "data are null");
+    }
+    synchronized (lock) {
+      if (!connected) {
+        throw new CommConnectionException(NOT_INITIALISED, "not initialize");
+      }
+      sendTimes.add(System.nanoTime());
+      lock.notifyAll();
+    }
+  }
+
+  /**
+   * Waits until received data is due, the lock must be held.
+   *
+   * @return the current receive record or null on timeout or at the end of the capture
+   */
+  private CaptureFile.Record awaitData() throws CommConnectionException {
+    long deadline = System.nanoTime() + recvTimeout * 1000000L;
+    while (true) {
+      if (!connected) {
+        throw new CommConnectionException(NOT_INITIALISED, "not initialize");
+      }
+      long wait = 0;
+      while (next < records.size()) {
+        CaptureFile.Record record = records.get(next);
+        if (record.getType() == CaptureFile.RECEIVE && dataPosition < record.getData().length) {
+          wait = originalTiming
+              ? anchorTime + record.getTimestamp() - anchorTimestamp - System.nanoTime() : 0;
+          break;
+        }
+        if (record.getType() == CaptureFile.SEND && followSends) {
+          Long sendTime = sendTimes.poll();
+          if (null == sendTime) {
+            /* the device has not been asked yet */
+            wait = Long.MAX_VALUE;
+            break;
+          }
+          anchorTime = sendTime;
+          anchorTimestamp = record.getTimestamp();
+        }
+        next++;
+        dataPosition = 0;
+      }
+      if (next >= records.size()) {
+        return null;
+      }
+      if (wait <= 0) {
+        return records.get(next);
+      }
+      /* a receive timeout of 0 waits forever, like the other connections */
+      long remaining = recvTimeout > 0 ? deadline - System.nanoTime() : Long.MAX_VALUE;
+      if (remaining <= 0) {
+        return null;
+      }
+      long millis = Math.max(1, Math.min(wait, remaining) / 1000000L);
+      try {
+        lock.wait(millis);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new CommConnectionException(UNHANDLED_ERROR, "interrupted");
+      }
+    }
+  }
+
+  @Override
+  public int recv() throws CommConnectionException {
+    synchronized (lock) {
+      CaptureFile.Record record = awaitData();
+      if (null == record) {
+        return -1;
+      }
+      return record.getData()[dataPosition++] & 0xFF;
+    }
+  }
+
+  @Override
+  public int recvAvailable(byte[] b, int off, int len) throws CommConnectionException {
+    if (len <= 0) {
+      return 0;
+    }
+    synchronized (lock) {
+      CaptureFile.Record record = awaitData();
+      if (null == record) {
+        return -1;
+      }
+      int count = Math.min(len, record.getData().length - dataPosition);
+      System.arraycopy(record.getData(), dataPosition, b, off, count);
+      dataPosition += count;
+      return count;
+    }
+  }
+
+  @Override
+  public int dataAvailable() throws CommConnectionException {
+    synchronized (lock) {
+      if (!connected) {
+        throw new CommConnectionException(NOT_INITIALISED, "not initialize");
+      }
+      if (next < records.size() && records.get(next).getType() == CaptureFile.RECEIVE) {
+        CaptureFile.Record record = records.get(next);
+        if (!originalTiming
+            || anchorTime + record.getTimestamp() - anchorTimestamp - System.nanoTime() <= 0) {
+          return record.getData().length - dataPosition;
+        }
+      }
+      return 0;
+    }
+  }
+
+  @Override
+  public boolean isConnected() {
+    synchronized (lock) {
+      return connected;
+    }
+  }
+
+  @Override
+  public Hashtable<String, Object> getInfo() {
+    Hashtable<String, Object> info = new Hashtable<>();
+    info.put("type", "replay");
+    return info;
+  }
+
+  @Override
+  public void setSettings(Hashtable<String, String> settings) {
+    // nothing to set
+  }
+
+  @Override
+  public InputStream getInputStream() {
+    return inputStream;
+  }
+
+  @Override
+  public OutputStream getOutputStream() {
+    return outputStream;
+  }
+
+  @Override
+  public void setRecvTimeout(int timeout) throws CommConnectionException {
+    if (timeout < 0) {
+      throw new CommConnectionException(WRONG_PARAMETER, "timeout must be positive");
+    }
+    recvTimeout = timeout;
+  }
+
+  @Override
+  public int getRecvTimeout() {
+    return recvTimeout;
+  }
+
+  @Override
+  public void setConnectionTimeout(int timeout) {
+    connectionTimeout = timeout;
+  }
+
+  @Override
+  public int getConnectionTimeout() {
+    return connectionTimeout;
+  }
+}
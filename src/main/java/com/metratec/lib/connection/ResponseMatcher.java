@@ -0,0 +1,122 @@
+package com.metratec.lib.connection;
+
+/*******************************************************************************
+ * Copyright (c) 2023 by metraTec GmbH
+ * All rights reserved.
+ *******************************************************************************/
+
+/**
+ * Finds which of several known prefixes a response starts with, e.g. to dispatch the responses of
+ * a reader without creating Strings. The prefixes are indexed by their first byte, so usually only
+ * one or two prefixes are compared. Prefixes are checked in the given order, so a longer prefix
+ * must be given before a shorter one it starts with.
+ *
+ * <pre>
+ * ResponseMatcher ulk = new ResponseMatcher("ULK OK\r", "ULK ERR\r", "ULK ");
+ * int match = ulk.match(reader.getBuffer(), reader.getFrameOffset(), length);
+ * </pre>
+ *
+ * The matcher is immutable and can be shared.
+ *
+ * @author man
+ */
+public class ResponseMatcher {
+  private final byte[][] prefixes;
+  /** indexes of the prefixes for every first byte */
+  private final int[][] candidates = new int[256][];
+
+  /**
+   * @param prefixes the response prefixes
+   */
+  public ResponseMatcher(String... prefixes) {
+    this.prefixes = new byte[prefixes.length][];
+    int[] counts = new int[256];
+    for (int i = 0; i < prefixes.length; i++) {
+      if (prefixes[i].isEmpty()) {
+        throw new IllegalArgumentException("empty prefix");
+      }
+      this.prefixes[i] = prefixes[i].getBytes(ICommConnection.ISO_8859_1);
+      counts[this.prefixes[i][0] & 0xFF]++;
+    }
+    for (int i = 0; i < prefixes.length; i++) {
+      int first = this.prefixes[i][0] & 0xFF;
+      if (null == candidates[first]) {
+        candidates[first] = new int[counts[first]];
+        counts[first] = 0;
+      }
+      candidates[first][counts[first]++] = i;
+    }
+  }
+
+  /**
+   * @param b the buffer holding the response
+   * @param off the offset of the response
+   * @param len the length of the response
+   * @return the index of the first matching prefix or -1
+   */
+  public int match(byte[] b, int off, int len) {
+    if (len <= 0) {
+      return -1;
+    }
+    int[] indexes = candidates[b[off] & 0xFF];
+    if (null == indexes) {
+      return -1;
+    }
+    for (int index : indexes) {
+      byte[] prefix = prefixes[index];
+      if (prefix.length <= len && regionMatches(prefix, b, off)) {
+        return index;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @param response the response
+   * @return the index of the first matching prefix or -1
+   */
+  public int match(CharSequence response) {
+    if (response.length() == 0 || response.charAt(0) > 0xFF) {
+      return -1;
+    }
+    int[] indexes = candidates[response.charAt(0)];
+    if (null == indexes) {
+      return -1;
+    }
+    for (int index : indexes) {
+      byte[] prefix = prefixes[index];
+      if (prefix.length <= response.length() && regionMatches(prefix, response)) {
+        return index;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @param b the buffer holding the response
+   * @param off the offset of the response
+   * @param len the length of the response
+   * @return true if the response starts with any of the prefixes
+   */
+  public boolean matches(byte[] b, int off, int len) {
+    return match(b, off, len) >= 0;
+  }
+
+  private static boolean regionMatches(byte[] prefix, byte[] b, int off) {
+    for (int i = 1; i < prefix.length; i++) {
+      if (prefix[i] != b[off + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean regionMatches(byte[] prefix, CharSequence response) {
+    for (int i = 1; i < prefix.length; i++) {
+      if ((prefix[i] & 0xFF) != response.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
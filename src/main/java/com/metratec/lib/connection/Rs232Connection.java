@@ -4,11 +4,10 @@ package com.metratec.lib.connection;
  * Copyright (c) 2023 by metraTec GmbH All rights reserved.
  *******************************************************************************/
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.Enumeration;
 import java.util.Hashtable;
 import org.slf4j.Logger;
@@ -115,11 +114,11 @@ public class Rs232Connection extends SerialConnection {
 
       serialPort.enableReceiveTimeout(recvTimeout);
 
-      outputstream = new BufferedOutputStream(serialPort.getOutputStream());
+      serialPort.setSerialPortParams(getBaudrate(), getDataBit(), getStopBit(), getParity());
 
-      inputstream = new BufferedInputStream(serialPort.getInputStream());
+      outputstream = new PooledOutputStream(serialPort.getOutputStream(), STREAM_BUFFER_SIZE);
 
-      serialPort.setSerialPortParams(getBaudrate(), getDataBit(), getStopBit(), getParity());
+      inputstream = new PooledInputStream(serialPort.getInputStream(), STREAM_BUFFER_SIZE);
 
       // _init = true;
     } catch (UnsatisfiedLinkError e) {
@@ -164,6 +163,7 @@ public class Rs232Connection extends SerialConnection {
       serialPort.close();
 
     }
+    releaseStreams(inputstream, outputstream);
     serialPort = null;
     inputstream = null;
     outputstream = null;
@@ -215,26 +215,74 @@ public class Rs232Connection extends SerialConnection {
     } catch (NullPointerException e) {
       throw new CommConnectionException(NOT_INITIALISED, "not initialize");
     } catch (IOException e) {
-      if (null == e.getMessage()) {
-        throw new CommConnectionException(CONNECTION_LOST, "Input/output error");
-      } else {
-        if (e.getMessage().equals("No error in readByte")) {
-          throw new CommConnectionException(CONNECTION_LOST, "Input/output error");
-        } else {
-          throw new CommConnectionException(UNHANDLED_ERROR, e.getMessage());
-        }
-      }
+      throw ioError(e);
     }
   }
 
+  @Override
+  public int recvAvailable(byte[] b, int off, int len) throws CommConnectionException {
+    if (len <= 0) {
+      return 0;
+    }
+    try {
+      int count = inputstream.read(b, off, len);
+      // the port returns an empty read if the receive timeout expires
+      return count > 0 ? count : -1;
+    } catch (NullPointerException e) {
+      throw new CommConnectionException(NOT_INITIALISED, "not initialize");
+    } catch (IOException e) {
+      throw ioError(e);
+    }
+  }
+
+  /**
+   * Maps a read or write error. The port signals a timeout with an empty read, not with an
+   * exception, so any error means the port is gone (e.g. an unplugged USB serial adapter).
+   */
+  private CommConnectionException ioError(IOException e) {
+    return new CommConnectionException(CONNECTION_LOST,
+        null == e.getMessage() ? "Input/output error" : e.getMessage());
+  }
+
   @Override
   public void send(byte[] senddata) throws CommConnectionException {
-    if (getLogger().isTraceEnabled()) {
-      getLogger().trace("{} send {}", toString(), new String(senddata));
+    if (null == senddata) {
+      throw new CommConnectionException(WRONG_PARAMETER, "data are null");
+    }
+    send(senddata, 0, senddata.length);
+  }
+
+  @Override
+  public void send(byte[] senddata, int off, int len) throws CommConnectionException {
+    write(senddata, off, len, true);
+  }
+
+  @Override
+  public void send(ByteBuffer... parts) throws CommConnectionException {
+    sendBuffered(parts);
+  }
+
+  @Override
+  public void sendNoFlush(byte[] senddata, int off, int len) throws CommConnectionException {
+    write(senddata, off, len, false);
+  }
+
+  @Override
+  public void flush() throws CommConnectionException {
+    write(NO_DATA, 0, 0, true);
+  }
+
+  private void write(byte[] senddata, int off, int len, boolean flush)
+      throws CommConnectionException {
+    if (getLogger().isTraceEnabled() && null != senddata && len > 0) {
+      getLogger().trace("{} send {}", toString(), new String(senddata, off, len));
     }
     try {
-      outputstream.write(senddata);
-      outputstream.flush();
+      outputstream.write(senddata, off, len);
+      if (flush || unflushed(len)) {
+        outputstream.flush();
+        flushed();
+      }
     } catch (NullPointerException e) {
       if (senddata == null) {
         throw new CommConnectionException(WRONG_PARAMETER, "data are null");
@@ -242,12 +290,8 @@ public class Rs232Connection extends SerialConnection {
         throw new CommConnectionException(NOT_INITIALISED, "not initialize");
       }
     } catch (IOException e) {
-      if (e.getMessage().startsWith("Input/output error")) {
-        serialPort.close();
-        throw new CommConnectionException(CONNECTION_LOST, e.getMessage());
-      } else {
-        throw new CommConnectionException(UNHANDLED_ERROR, e.getMessage());
-      }
+      serialPort.close();
+      throw ioError(e);
     }
   }
 
@@ -102,12 +102,12 @@ public class SslTcpConnection extends AbstractTcpConnection {
   }
 
   /* (non-Javadoc)
-   * @see com.metratec.lib.connection.ICommConnection#send(java.lang.String)
+   * @see com.metratec.lib.connection.ICommConnection#send(java.lang.CharSequence)
    */
   @Override
-  public void send(String senddata) throws CommConnectionException {
+  public void send(CharSequence senddata) throws CommConnectionException {
     if (getLogger().isTraceEnabled()) {
-      getLogger().trace("{} send {}", toString(), senddata.toString());
+      getLogger().trace("{} send {}", toString(), senddata);
     }
     super.send(senddata);
   }
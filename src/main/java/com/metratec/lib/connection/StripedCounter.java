@@ -0,0 +1,54 @@
+package com.metratec.lib.connection;
+
+/*******************************************************************************
+ * Copyright (c) 2023 by metraTec GmbH
+ * All rights reserved.
+ *******************************************************************************/
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter spread over several cells, so concurrent updates from different threads rarely contend
+ * (like java.util.concurrent.atomic.LongAdder, which is not available on Java 7). Reading sums the
+ * cells without locking.
+ */
+class StripedCounter {
+  /** distance between two cells in longs, to keep them on different cache lines */
+  private static final int PADDING = 8;
+  private static final int STRIPES;
+
+  static {
+    int stripes = 1;
+    int wanted = Math.min(64, 2 * Runtime.getRuntime().availableProcessors());
+    while (stripes < wanted) {
+      stripes <<= 1;
+    }
+    STRIPES = stripes;
+  }
+
+  private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+  /**
+   * @param x the value to add
+   */
+  void add(long x) {
+    long id = Thread.currentThread().getId();
+    int stripe = (int) (id ^ (id >>> 16)) * 0x9E3779B9 >>> 16 & (STRIPES - 1);
+    cells.getAndAdd(stripe * PADDING, x);
+  }
+
+  void increment() {
+    add(1);
+  }
+
+  /**
+   * @return the current sum, concurrent updates may or may not be included
+   */
+  long sum() {
+    long sum = 0;
+    for (int i = 0; i < STRIPES; i++) {
+      sum += cells.get(i * PADDING);
+    }
+    return sum;
+  }
+}
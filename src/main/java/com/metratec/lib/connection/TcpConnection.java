@@ -8,6 +8,7 @@ package com.metratec.lib.connection;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -19,6 +20,7 @@ import org.slf4j.LoggerFactory;
 public class TcpConnection extends AbstractTcpConnection {
 
   private final Logger logger = LoggerFactory.getLogger(TcpConnection.class);
+  private boolean channelBacked = false;
 
   /**
    * Construct a new TCPIPConnection class, with the given parameters.
@@ -68,12 +70,12 @@ public class TcpConnection extends AbstractTcpConnection {
   }
 
   /* (non-Javadoc)
-   * @see com.metratec.lib.connection.ICommConnection#send(java.lang.String)
+   * @see com.metratec.lib.connection.ICommConnection#send(java.lang.CharSequence)
    */
   @Override
-  public void send(String senddata) throws CommConnectionException {
+  public void send(CharSequence senddata) throws CommConnectionException {
     if (getLogger().isTraceEnabled()) {
-      getLogger().trace("{} send {}", toString(), senddata.toString());
+      getLogger().trace("{} send {}", toString(), senddata);
     }
     super.send(senddata);
   }
@@ -93,11 +95,37 @@ public class TcpConnection extends AbstractTcpConnection {
 
   @Override
   protected Socket createNewSocket(String ipAddress, int port) throws IOException {
-    Socket socket = new Socket();
-    socket.connect(new InetSocketAddress(ipAddress, port), getConnectionTimeout());
+    Socket socket = channelBacked ? SocketChannel.open().socket() : new Socket();
+    try {
+      socket.connect(new InetSocketAddress(ipAddress, port), getConnectionTimeout());
+    } catch (IOException e) {
+      socket.close();
+      throw e;
+    }
     return socket;
   }
 
+  /**
+   * Sets whether the socket of the next {@link #connect()} is created by a {@link SocketChannel}.
+   * Channel backed connections send and receive direct {@link java.nio.ByteBuffer}s without
+   * copying.
+   *
+   * <u>Note:</u> <i>On Java versions before 13, {@link java.io.InputStream#available()} of a
+   * channel backed socket, and so {@link #dataAvailable()}, always returns 0.</i>
+   *
+   * @param channelBacked true to create the socket by a {@link SocketChannel}
+   */
+  public void setChannelBacked(boolean channelBacked) {
+    this.channelBacked = channelBacked;
+  }
+
+  /**
+   * @return true if the socket is created by a {@link SocketChannel}
+   */
+  public boolean isChannelBacked() {
+    return channelBacked;
+  }
+
   @Override
   public String toString() {
     return new StringBuilder().append(getIPAddress()).append(':').append(getPort()).toString();
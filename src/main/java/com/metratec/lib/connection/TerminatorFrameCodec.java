@@ -0,0 +1,66 @@
+package com.metratec.lib.connection;
+
+/*******************************************************************************
+ * Copyright (c) 2023 by metraTec GmbH
+ * All rights reserved.
+ *******************************************************************************/
+
+/**
+ * Frames terminated by one of several terminator signs, like the responses of metraTec readers
+ * (CR-terminated). The terminator is part of the payload, so frames look like the result of
+ * {@link ICommConnection#receive(int...)}. Outgoing frames are terminated with the first
+ * terminator.
+ */
+public class TerminatorFrameCodec implements FrameCodec {
+  private final boolean[] terminatorTable = new boolean[256];
+  private final byte terminator;
+
+  /**
+   * @param terminators A list of terminator signs. Note that this may be a list of parameters or an
+   *        array.
+   */
+  public TerminatorFrameCodec(int... terminators) {
+    if (terminators.length == 0) {
+      throw new IllegalArgumentException("No terminator given");
+    }
+    for (int t : terminators) {
+      terminatorTable[t & 0xFF] = true;
+    }
+    terminator = (byte) terminators[0];
+  }
+
+  @Override
+  public int frameLength(byte[] b, int off, int len, int scanned) {
+    for (int i = off + scanned; i < off + len; i++) {
+      if (terminatorTable[b[i] & 0xFF]) {
+        return i + 1 - off;
+      }
+    }
+    return -1;
+  }
+
+  @Override
+  public int headerLength(byte[] b, int off, int frameLength) {
+    return 0;
+  }
+
+  @Override
+  public int trailerLength(byte[] b, int off, int frameLength) {
+    return 0;
+  }
+
+  @Override
+  public int encodedLength(int payloadLength) {
+    return payloadLength + 1;
+  }
+
+  /**
+   * Appends the first terminator to the payload. The payload itself must not contain it.
+   */
+  @Override
+  public int encode(byte[] payload, int off, int len, byte[] dst, int dstOff) {
+    System.arraycopy(payload, off, dst, dstOff, len);
+    dst[dstOff + len] = terminator;
+    return len + 1;
+  }
+}
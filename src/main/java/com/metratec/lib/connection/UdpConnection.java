@@ -12,7 +12,6 @@ import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
-import java.net.SocketTimeoutException;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -36,6 +35,10 @@ public abstract class UdpConnection {
   
   private static Logger logger = LoggerFactory.getLogger(UdpConnection.class);
   private static InetAddress BROADCAST_ADDR;
+  private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+  /** the length of the discovery packet of metraTec devices and of its responses */
+  private static final int METRATEC_DISCOVERY_LENGTH = 52;
+  private static volatile ReachabilityProbe reachabilityProbe = ReachabilityProbe.ICMP;
 
   static {
     byte[] addr = {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF};
@@ -80,6 +83,24 @@ public abstract class UdpConnection {
     return ret;
   }
 
+  /**
+   * @return the probe checking the reachability of discovered devices
+   */
+  public static ReachabilityProbe getReachabilityProbe() {
+    return reachabilityProbe;
+  }
+
+  /**
+   * Sets the probe checking the reachability of discovered devices. The probes run in parallel with
+   * the receiving of further responses, the device list is returned when the scan and all probes
+   * are completed. Default is {@link ReachabilityProbe#ICMP}.
+   *
+   * @param probe the probe, null to skip the check (all devices are returned as not reachable)
+   */
+  public static void setReachabilityProbe(ReachabilityProbe probe) {
+    reachabilityProbe = probe;
+  }
+
   private static boolean isWindows() {
     return System.getProperty("os.name").toLowerCase().startsWith("win");
   }
@@ -106,7 +127,8 @@ public abstract class UdpConnection {
    * @param srcPort Source port of outbound broadcasts and used to listen for responses.
    * @param recvLength Length of response packets. This will be the length of returned packets' data
    *        buffers. If less than or equal 0, do not try to receive any packets.
-   * @param timeout Time to wait for responses in milliseconds.
+   * @param timeout Time to wait for responses in milliseconds. The packet is broadcast on all
+   *        addresses at once, so this is the duration of the whole call.
    * @param addresses Addresses to bind to when broadcasting. This effectively determines the
    *        interfaces that sendPacket will be broadcast on.
    * @param handler A functor object for handling received responses/packets.
@@ -143,60 +165,8 @@ public abstract class UdpConnection {
   public static void sendBroadcastRecvOnUnicast(DatagramPacket sendPacket, int srcPort,
       int recvLength, int timeout, List<InetAddress> addresses,
       UdpBroadcastHandlerInterface handler) throws IOException {
-    DatagramPacket recvPacket;
-    DatagramSocket socket;
-
-    if (sendPacket != null) {
-      sendPacket.setAddress(BROADCAST_ADDR);
-    }
-
-    for (InetAddress localAddr : addresses) {
-      /*
-       * We must create a new socket for each address since we cannot easily rebind an existing one.
-       */
-      socket = new DatagramSocket(srcPort, localAddr);
-      try {
-        socket.setBroadcast(true);
-        socket.setSoTimeout(timeout);
-        if (sendPacket != null) {
-          if(logger.isTraceEnabled()) {
-            logger.trace("broadcast send from "+localAddr.getHostAddress()+":"+srcPort+" - "+toHexString(sendPacket.getData()));
-          }
-          socket.send(sendPacket);
-        }
-      } catch (IOException e) {
-        /* we cannot broadcast on every interface */
-        socket.close();
-        continue;
-      }
-
-      if (recvLength <= 0) {
-        socket.close();
-        continue;
-      }
-      long waitUntil = System.currentTimeMillis() + timeout;
-      try {
-        while (waitUntil >= System.currentTimeMillis()) {
-          try {
-            recvPacket = new DatagramPacket(new byte[recvLength], recvLength);
-  
-            socket.receive(recvPacket);
-            if(logger.isTraceEnabled()) {
-              logger.trace("broadcast recv from  "+recvPacket.getAddress().getHostAddress()+":"+recvPacket.getPort()+" - "+toHexString(recvPacket.getData()));
-            }
-            if (!handler.handle(localAddr, recvPacket, socket)) {
-              return;
-            }
-          } catch (SocketTimeoutException e) {
-            /*
-             * expected when all broadcasts have been received
-             */
-          }
-        }
-      }  finally {
-        socket.close();
-      }
-    }
+    UdpDiscovery.sendRecv(UdpDiscovery.RECV_ON_UNICAST, sendPacket, BROADCAST_ADDR, srcPort,
+        recvLength, timeout, addresses, handler);
   }
 
   /*
@@ -211,76 +181,8 @@ public abstract class UdpConnection {
   private static void sendBroadcastRecvOnBroadcast(DatagramPacket sendPacket, int srcPort,
       int recvLength, int timeout, List<InetAddress> addresses,
       UdpBroadcastHandlerInterface handler) throws IOException {
-    DatagramSocket recvSocket;
-    DatagramPacket recvPacket;
-
-    DatagramSocket sendSocket;
-
-    if (sendPacket != null) {
-      sendPacket.setAddress(BROADCAST_ADDR);
-    }
-
-    /*
-     * It is assumed that devices will respond to sendPacket on the same port it was sent out
-     * (sendPacket's source port, i.e. the port that the send socket binds to). Since we must use a
-     * separate socket for receiving, we fix sendPacket's source port and the listening port to
-     * `srcPort`.
-     */
-    recvSocket = new DatagramSocket(srcPort, BROADCAST_ADDR);
-    try {
-      recvSocket.setBroadcast(true);
-      recvSocket.setReuseAddress(true);
-      recvSocket.setSoTimeout(25);
-
-      for (InetAddress localAddr : addresses) {
-        /*
-         * We must create a new socket for each address since we cannot easily rebind an existing
-         * one.
-         */
-        sendSocket = new DatagramSocket(srcPort, localAddr);
-        try {
-          sendSocket.setBroadcast(true);
-          if (sendPacket != null) {
-            if(logger.isTraceEnabled()) {
-              logger.trace("broadcast send from "+localAddr.getHostAddress()+":"+srcPort+" - "+toHexString(sendPacket.getData()));
-            }
-            sendSocket.send(sendPacket);
-          }
-        } catch (IOException e) {
-          /* we cannot broadcast on every interface */
-          sendSocket.close();
-          continue;
-        }
-
-        if (recvLength <= 0) {
-          sendSocket.close();
-          continue;
-        }
-        long waitUntil = System.currentTimeMillis() + timeout;
-        try {
-          while (waitUntil >= System.currentTimeMillis()) {
-            try{
-              recvPacket = new DatagramPacket(new byte[recvLength], recvLength);
-              recvSocket.receive(recvPacket);
-              if(logger.isTraceEnabled()) {
-                logger.trace("broadcast recv from  "+recvPacket.getAddress().getHostAddress()+":"+recvPacket.getPort()+" - "+toHexString(recvPacket.getData()));
-              }
-              if (!handler.handle(localAddr, recvPacket, sendSocket)) {
-                return;
-              }
-            } catch (SocketTimeoutException e) {
-              /*
-              * expected when all broadcasts have been received
-              */
-            }
-          }
-        }  finally {
-          sendSocket.close();
-        }
-      }
-    } finally {
-      recvSocket.close();
-    }
+    UdpDiscovery.sendRecv(UdpDiscovery.RECV_ON_BROADCAST, sendPacket, BROADCAST_ADDR, srcPort,
+        recvLength, timeout, addresses, handler);
   }
 
   /*
@@ -289,8 +191,8 @@ public abstract class UdpConnection {
    *
    * The implementation is almost identical to sendBroadcastRecvOnUnicast(). The difference is that
    * the socket is not bound to any interface. No packets are received via the socket bound to an
-   * interface. This also means this implementation will not work properly when multiple interfaces
-   * are active on the system.
+   * interface. With multiple active interfaces, responses are therefore associated with the local
+   * address in the same subnet as the sender, which fails for devices outside of the local subnets.
    *
    * NOTES:
    *
@@ -310,57 +212,8 @@ public abstract class UdpConnection {
   private static void sendBroadcastRecvOnAny(DatagramPacket sendPacket, int srcPort, int recvLength,
       int timeout, List<InetAddress> addresses, UdpBroadcastHandlerInterface handler)
       throws IOException {
-    DatagramPacket recvPacket;
-    DatagramSocket socket;
-
-    for (InetAddress localAddr : addresses) {
-      /*
-       * We must create a new socket for each address since we cannot easily rebind an existing one.
-       */
-      socket = new DatagramSocket(srcPort);
-      try {
-        socket.setBroadcast(true);
-        socket.setSoTimeout(timeout);
-        if (sendPacket != null) {
-          sendPacket.setAddress(BROADCAST_ADDR);
-          if(logger.isTraceEnabled()) {
-            logger.trace("broadcast send from "+localAddr.getHostAddress()+":"+srcPort+" - "+toHexString(sendPacket.getData()));
-          }
-          socket.send(sendPacket);
-        }
-      } catch (IOException e) {
-        /* we cannot broadcast on every interface */
-        socket.close();
-        continue;
-      }
-
-      if (recvLength <= 0) {
-        socket.close();
-        continue;
-      }
-      long waitUntil = System.currentTimeMillis() + timeout;
-      try {
-        while(waitUntil >= System.currentTimeMillis()) {
-          try{
-            recvPacket = new DatagramPacket(new byte[recvLength], recvLength);
-  
-            socket.receive(recvPacket);
-            if(logger.isTraceEnabled()) {
-              logger.trace("broadcast recv from  "+recvPacket.getAddress().getHostAddress()+":"+recvPacket.getPort()+" - "+toHexString(recvPacket.getData()));
-            }
-            if (!handler.handle(localAddr, recvPacket, socket)) {
-              return;
-            }
-          } catch (SocketTimeoutException e) {
-            /*
-             * expected when all broadcasts have been received
-             */
-          }
-        }
-      }  finally {
-        socket.close();
-      }
-    }
+    UdpDiscovery.sendRecv(UdpDiscovery.RECV_ON_ANY, sendPacket, BROADCAST_ADDR, srcPort,
+        recvLength, timeout, addresses, handler);
   }
 
   /**
@@ -484,12 +337,57 @@ public abstract class UdpConnection {
    *
    * @throws IOException if an unexpected I/O error occurs.
    */
-  public static List<EthernetDevice> getLantronixEthernetDevices(final int timeout,
+  public static List<EthernetDevice> getLantronixEthernetDevices(int timeout,
       List<InetAddress> addresses) throws IOException {
+    return getLantronixEthernetDevices(timeout, addresses, reachabilityProbe);
+  }
+
+  /**
+   * Send UDP broadcasts from a specified list of IP addresses and return all responding Lantronix
+   * devices.
+   *
+   * @param timeout Time to wait for responses in milliseconds, also the timeout of each probe.
+   * @param addresses Addresses to bind to when broadcasting. This effectively determines the
+   *        interfaces that sendPacket will be broadcast on.
+   * @param probe Probe checking the reachability of the devices, null to skip the check.
+   *
+   * @return List of Lantronix devices. It is already sorted.
+   *
+   * @throws IOException if an unexpected I/O error occurs.
+   */
+  public static List<EthernetDevice> getLantronixEthernetDevices(int timeout,
+      List<InetAddress> addresses, ReachabilityProbe probe) throws IOException {
+    final ReachabilityVerifier verifier = new ReachabilityVerifier(probe, timeout);
+    final List<EthernetDevice> devices = new ArrayList<>();
+    discoverLantronixEthernetDevices(timeout, addresses, new DeviceDiscoveryListener() {
+      @Override
+      public boolean deviceFound(EthernetDevice device) {
+        devices.add(device);
+        verifier.verify(device);
+        return true;
+      }
+    });
+    verifier.await();
+    Collections.sort(devices);
+    return devices;
+  }
+
+  /**
+   * Send UDP broadcasts from a specified list of IP addresses and pass every responding Lantronix
+   * device to the listener as soon as its response is received.
+   *
+   * @param timeout Maximum time to wait for responses in milliseconds.
+   * @param addresses Addresses to bind to when broadcasting. This effectively determines the
+   *        interfaces that sendPacket will be broadcast on.
+   * @param listener Listener receiving the devices, it can stop the scan early.
+   *
+   * @throws IOException if an unexpected I/O error occurs.
+   */
+  public static void discoverLantronixEthernetDevices(int timeout, List<InetAddress> addresses,
+      final DeviceDiscoveryListener listener) throws IOException {
     /*
      * For checking duplicate responses. This might happen if we have multiple interfaces in the
-     * same subnet. Since elements in a TreeSet have a natural order, lists constructed from this
-     * set will automatically be sorted as well.
+     * same subnet.
      */
     final Set<EthernetDevice> deviceSet = new TreeSet<>();
 
@@ -508,33 +406,14 @@ public abstract class UdpConnection {
           @Override
           public boolean handle(InetAddress localAddress, DatagramPacket recvPacket,
               DatagramSocket socket) throws IOException {
-            EthernetDevice dev = new EthernetDevice();
-
             InetAddress srcAddr = recvPacket.getAddress();
-            byte[] recvData = recvPacket.getData();
-
-            if (recvData[0] != 0x00 || recvData[1] != 0x00 || recvData[2] != 0x00
-                || recvData[3] != (byte) 0xF7) {
+            EthernetDevice dev = parseLantronixResponse(recvPacket.getData(), srcAddr);
+            if (null == dev) {
               return true; /* skip this one */
             }
-
-            // get Mac Address
-            StringBuffer mac = new StringBuffer();
-            for (int i = 24; i < 30; i++) {
-              mac.append(String.format(":%02X", recvData[i]));
-            }
-
-            dev.setMACAddress(mac.toString().substring(1));
-            dev.setIPAddress(srcAddr.getHostAddress());
-            dev.setDeviceName(srcAddr.getHostAddress());
-            dev.setReachable(srcAddr.isReachable(timeout));
-
-            deviceSet.add(dev);
-            return true;
+            return !deviceSet.add(dev) || listener.deviceFound(dev);
           }
         });
-
-    return new ArrayList<>(deviceSet);
   }
 
   /**
@@ -596,17 +475,121 @@ public abstract class UdpConnection {
    *
    * @throws IOException if an unexpected I/O error occurs.
    */
-  public static List<EthernetDevice> getMetratecEthernetDevices(final int timeout,
+  public static List<EthernetDevice> getMetratecEthernetDevices(int timeout,
       List<InetAddress> addresses) throws IOException {
+    return getMetratecEthernetDevices(timeout, addresses, reachabilityProbe);
+  }
+
+  /**
+   * Send UDP from a specified list of IP addresses and return all responding metraTec
+   * TUC devices.
+   *
+   * @param timeout Time to wait for udp responses in milliseconds, also the timeout of each probe.
+   * @param addresses Addresses to bind to when broadcasting. This effectively determines the
+   *        interfaces that sendPacket will be broadcast on.
+   * @param probe Probe checking the reachability of the devices, null to skip the check.
+   *
+   * @return List of TUC devices. It is sorted already.
+   *
+   * @throws IOException if an unexpected I/O error occurs.
+   */
+  public static List<EthernetDevice> getMetratecEthernetDevices(int timeout,
+      List<InetAddress> addresses, ReachabilityProbe probe) throws IOException {
+    final ReachabilityVerifier verifier = new ReachabilityVerifier(probe, timeout);
+    final List<EthernetDevice> devices = new ArrayList<>();
+    discoverMetratecEthernetDevices(timeout, addresses, new DeviceDiscoveryListener() {
+      @Override
+      public boolean deviceFound(EthernetDevice device) {
+        devices.add(device);
+        verifier.verify(device);
+        return true;
+      }
+    });
+    verifier.await();
+    Collections.sort(devices);
+    return devices;
+  }
+
+  /**
+   * Send UDP broadcasts on all local network interfaces and return the metraTec TUC device with the
+   * given MAC address as soon as it responds, e.g. to find a known reader after its IP address has
+   * changed.
+   *
+   * @param macAddress MAC address of the device, e.g. "00:11:22:33:44:55".
+   * @param timeout Maximum time to wait for the response in milliseconds.
+   *
+   * @return The device (not checked for reachability) or null if it did not respond.
+   *
+   * @throws IOException if an unexpected I/O error occurs.
+   */
+  public static EthernetDevice findMetratecEthernetDevice(String macAddress, int timeout)
+      throws IOException {
+    DeviceCollector collector = new DeviceCollector().untilMac(macAddress);
+    discoverMetratecEthernetDevices(timeout, getAllInterfaceInetAddresses(), collector);
+    return collector.getMatch();
+  }
+
+  /**
+   * Send UDP broadcasts from a specified list of IP addresses and pass every responding metraTec TUC
+   * device to the listener as soon as its response is received.
+   *
+   * @param timeout Maximum time to wait for responses in milliseconds.
+   * @param addresses Addresses to bind to when broadcasting. This effectively determines the
+   *        interfaces that sendPacket will be broadcast on.
+   * @param listener Listener receiving the devices, it can stop the scan early.
+   *
+   * @throws IOException if an unexpected I/O error occurs.
+   */
+  public static void discoverMetratecEthernetDevices(int timeout, List<InetAddress> addresses,
+      final DeviceDiscoveryListener listener) throws IOException {
     /*
      * For checking duplicate responses. This might happen if we have multiple interfaces in the
-     * same subnet. Since elements in a TreeSet have a natural order, lists constructed from this
-     * set will automatically be sorted as well.
+     * same subnet.
      */
     final Set<EthernetDevice> deviceSet = new TreeSet<>();
-    
-    byte[] sendData = new byte[52];
-    DatagramPacket sendPacket;
+
+    sendRecvBroadcast(createMetratecDiscoveryPacket(), 41000, 52, timeout, addresses,
+        new UdpBroadcastHandlerInterface() {
+          @Override
+          public boolean handle(InetAddress localAddr, DatagramPacket recvPacket,
+              DatagramSocket socket) throws IOException {
+            InetAddress srcAddr = recvPacket.getAddress();
+            EthernetDevice dev = parseMetratecResponse(recvPacket.getData(), srcAddr);
+            return !deviceSet.add(dev) || listener.deviceFound(dev);
+          }
+        });
+  }
+
+  /**
+   * Send UDP broadcasts from a specified list of IP addresses and put every responding metraTec TUC
+   * device into the registry. The responses are parsed into {@link DeviceRecord}s directly, without
+   * creating an {@link EthernetDevice} and its Strings, for large numbers of devices.
+   *
+   * @param timeout Time to wait for responses in milliseconds.
+   * @param addresses Addresses to bind to when broadcasting. This effectively determines the
+   *        interfaces that sendPacket will be broadcast on.
+   * @param registry Registry receiving the devices.
+   *
+   * @throws IOException if an unexpected I/O error occurs.
+   */
+  public static void discoverMetratecDeviceRecords(int timeout, List<InetAddress> addresses,
+      final DeviceRegistry registry) throws IOException {
+    sendRecvBroadcast(createMetratecDiscoveryPacket(), 41000, 52, timeout, addresses,
+        new UdpBroadcastHandlerInterface() {
+          @Override
+          public boolean handle(InetAddress localAddr, DatagramPacket recvPacket,
+              DatagramSocket socket) throws IOException {
+            InetAddress srcAddr = recvPacket.getAddress();
+            if (srcAddr instanceof Inet4Address) {
+              registry.put(DeviceRecord.parseMetratecResponse(recvPacket.getData(), srcAddr));
+            }
+            return true;
+          }
+        });
+  }
+
+  private static DatagramPacket createMetratecDiscoveryPacket() {
+    byte[] sendData = new byte[METRATEC_DISCOVERY_LENGTH];
 
     sendData[0] = 0x01;
     sendData[1] = 0x13;
@@ -620,38 +603,66 @@ public abstract class UdpConnection {
     sendData[9] = (byte) 0xFF;
     sendData[16] = 0x01;
 
-    sendPacket = new DatagramPacket(sendData, sendData.length, BROADCAST_ADDR, 42000);
-    sendRecvBroadcast(sendPacket, 41000, 52, timeout, addresses,
-        new UdpBroadcastHandlerInterface() {
-          @Override
-          public boolean handle(InetAddress localAddr, DatagramPacket recvPacket,
-              DatagramSocket socket) throws IOException {
-            EthernetDevice dev = new EthernetDevice();
+    return new DatagramPacket(sendData, sendData.length, BROADCAST_ADDR, 42000);
+  }
 
-            InetAddress srcAddr = recvPacket.getAddress();
-            byte[] recvData = recvPacket.getData();
+  /**
+   * Parses the response of a Lantronix device to the discovery broadcast.
+   *
+   * @param recvData the received packet data (at least 30 bytes)
+   * @param srcAddr the address of the device
+   * @return the device (not checked for reachability) or null if the data is no discovery response
+   */
+  static EthernetDevice parseLantronixResponse(byte[] recvData, InetAddress srcAddr) {
+    if (recvData[0] != 0x00 || recvData[1] != 0x00 || recvData[2] != 0x00
+        || recvData[3] != (byte) 0xF7) {
+      return null;
+    }
+    EthernetDevice dev = new EthernetDevice();
 
-            // get Mac Address
-            StringBuffer mac = new StringBuffer();
-            for (int i = 10; i < 16; i++) {
-              mac.append(String.format(":%02X", recvData[i]));
-            }
+    dev.setMACAddress(DeviceRecord.formatMac(DeviceRecord.readMac(recvData, 24)));
+    dev.setIPAddress(srcAddr.getHostAddress());
+    dev.setDeviceName(srcAddr.getHostAddress());
+    return dev;
+  }
 
-            dev.setMACAddress(mac.toString().substring(1));
-            dev.setIPAddress(srcAddr.getHostAddress());
-            dev.setDeviceName(
-                new String(recvData, 17, 49 - 17, Charset.forName("ISO-8859-1")).trim());
-            dev.setReachable(srcAddr.isReachable(timeout));
-            deviceSet.add(dev);
-            return true;
-          }
-        });
-    return new ArrayList<>(deviceSet);
+  /**
+   * Checks whether a packet is a discovery response of a metraTec device, for packets which are not
+   * answers to our own discovery broadcast. The response has the length of the discovery packet,
+   * starts with the same protocol header and contains a MAC address.
+   *
+   * @param recvData the received packet data
+   * @param length the length of the packet
+   * @return true if the packet can be parsed with {@link #parseMetratecResponse(byte[], InetAddress)}
+   */
+  static boolean isMetratecResponse(byte[] recvData, int length) {
+    if (length != METRATEC_DISCOVERY_LENGTH || recvData[0] != 0x01 || recvData[1] != 0x13
+        || recvData[2] != 0x37 || recvData[3] != 0x0A) {
+      return false;
+    }
+    long mac = DeviceRecord.readMac(recvData, 10);
+    return mac != 0 && mac != 0xFFFFFFFFFFFFL;
+  }
+
+  /**
+   * Parses the response of a metraTec device to the discovery broadcast.
+   *
+   * @param recvData the received packet data (at least 49 bytes)
+   * @param srcAddr the address of the device
+   * @return the device (not checked for reachability)
+   */
+  static EthernetDevice parseMetratecResponse(byte[] recvData, InetAddress srcAddr) {
+    EthernetDevice dev = new EthernetDevice();
+
+    dev.setMACAddress(DeviceRecord.formatMac(DeviceRecord.readMac(recvData, 10)));
+    dev.setIPAddress(srcAddr.getHostAddress());
+    dev.setDeviceName(new String(recvData, 17, 49 - 17, ISO_8859_1).trim());
+    return dev;
   }
 
-  private static String toHexString(byte data[]) {
-    StringBuilder strbuf = new StringBuilder(data.length * 2);
-    for (int i = 0; i < data.length; i++) {
+  static String toHexString(byte data[], int length) {
+    StringBuilder strbuf = new StringBuilder(length * 2);
+    for (int i = 0; i < length; i++) {
       if ((data[i] & 0xFF) < 0x10)
         strbuf.append('0');
       strbuf.append(Integer.toHexString(data[i] & 0xFF).toUpperCase());
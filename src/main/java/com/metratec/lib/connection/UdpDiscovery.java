@@ -0,0 +1,346 @@
+package com.metratec.lib.connection;
+
+/*******************************************************************************
+ * Copyright (c) 2023 by metraTec GmbH
+ * All rights reserved.
+ *******************************************************************************/
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.InterfaceAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends a broadcast on several local interfaces at once and collects the responses of all
+ * interfaces with one selector until a shared deadline, so a scan takes one timeout regardless of
+ * the number of interfaces. Used by {@link UdpConnection#sendRecvBroadcast}.
+ *
+ * The modes correspond to the platform specific strategies described in {@link UdpConnection}:
+ * <ul>
+ * <li>{@link #RECV_ON_UNICAST}: one channel per local address sends the broadcast and receives the
+ * responses</li>
+ * <li>{@link #RECV_ON_BROADCAST}: one channel per local address sends the broadcast, the responses
+ * are received by a channel bound to the broadcast address</li>
+ * <li>{@link #RECV_ON_ANY}: one channel bound to the wildcard address sends the broadcast for every
+ * local address and receives the responses</li>
+ * </ul>
+ * Responses received by a channel shared by all local addresses are assigned to the local address
+ * in the same subnet as the sender.
+ *
+ * @author man
+ */
+final class UdpDiscovery {
+  static final int RECV_ON_UNICAST = 0;
+  static final int RECV_ON_BROADCAST = 1;
+  static final int RECV_ON_ANY = 2;
+
+  private static final Logger logger = LoggerFactory.getLogger(UdpDiscovery.class);
+
+  private final int mode;
+  private final int srcPort;
+  private final List<Endpoint> endpoints = new ArrayList<>();
+  private Selector selector = null;
+  private DatagramChannel sharedChannel = null;
+
+  private UdpDiscovery(int mode, int srcPort) {
+    this.mode = mode;
+    this.srcPort = srcPort;
+  }
+
+  /**
+   * Sends the packet and calls the handler for every response until the timeout expires or the
+   * handler returns false.
+   *
+   * @param mode the strategy, {@link #RECV_ON_UNICAST}, {@link #RECV_ON_BROADCAST} or
+   *        {@link #RECV_ON_ANY}
+   * @param sendPacket the packet to broadcast or null
+   * @param broadcastAddr the broadcast address
+   * @param srcPort the source port of the broadcast and the port receiving the responses
+   * @param recvLength the maximum length of the responses, 0 to receive nothing
+   * @param timeout the time to wait for responses in milliseconds
+   * @param addresses the local addresses to broadcast on
+   * @param handler the handler of the responses
+   * @throws IOException if a channel can not be opened or bound
+   */
+  static void sendRecv(int mode, DatagramPacket sendPacket, InetAddress broadcastAddr, int srcPort,
+      int recvLength, int timeout, List<InetAddress> addresses,
+      UdpBroadcastHandlerInterface handler) throws IOException {
+    UdpDiscovery discovery = new UdpDiscovery(mode, srcPort);
+    try {
+      discovery.open(addresses, broadcastAddr, recvLength > 0);
+      if (null != sendPacket) {
+        sendPacket.setAddress(broadcastAddr);
+        discovery.send(sendPacket);
+      }
+      if (recvLength > 0) {
+        discovery.receive(recvLength, System.nanoTime() + timeout * 1000000L, handler);
+      }
+    } finally {
+      discovery.close();
+    }
+  }
+
+  private DatagramChannel openChannel(InetAddress bindAddr) throws IOException {
+    DatagramChannel channel = DatagramChannel.open();
+    try {
+      channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+      channel.setOption(StandardSocketOptions.SO_BROADCAST, true);
+      channel.bind(new InetSocketAddress(bindAddr, srcPort));
+      channel.configureBlocking(false);
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+    return channel;
+  }
+
+  private void open(List<InetAddress> addresses, InetAddress broadcastAddr, boolean receive)
+      throws IOException {
+    if (receive) {
+      selector = Selector.open();
+    }
+    if (mode == RECV_ON_BROADCAST && receive) {
+      sharedChannel = openChannel(broadcastAddr);
+      sharedChannel.register(selector, SelectionKey.OP_READ);
+    } else if (mode == RECV_ON_ANY) {
+      sharedChannel = openChannel(null);
+      if (receive) {
+        sharedChannel.register(selector, SelectionKey.OP_READ);
+      }
+    }
+    for (InetAddress localAddr : addresses) {
+      Endpoint endpoint = new Endpoint(localAddr);
+      if (mode == RECV_ON_ANY) {
+        endpoint.channel = sharedChannel;
+      } else {
+        endpoint.channel = openChannel(localAddr);
+        if (mode == RECV_ON_UNICAST && receive) {
+          endpoint.channel.register(selector, SelectionKey.OP_READ, endpoint);
+        }
+      }
+      endpoints.add(endpoint);
+    }
+  }
+
+  private void send(DatagramPacket sendPacket) {
+    SocketAddress target = sendPacket.getSocketAddress();
+    for (Endpoint endpoint : endpoints) {
+      ByteBuffer data = ByteBuffer.wrap(sendPacket.getData(), sendPacket.getOffset(),
+          sendPacket.getLength());
+      if (logger.isTraceEnabled()) {
+        logger.trace("broadcast send from " + endpoint.localAddr.getHostAddress() + ":" + srcPort
+            + " - " + UdpConnection.toHexString(sendPacket.getData(), sendPacket.getLength()));
+      }
+      try {
+        endpoint.channel.send(data, target);
+      } catch (IOException e) {
+        /* we cannot broadcast on every interface */
+        logger.trace("broadcast send from {} failed - {}", endpoint.localAddr, e.getMessage());
+      }
+    }
+  }
+
+  private void receive(int recvLength, long deadline, UdpBroadcastHandlerInterface handler)
+      throws IOException {
+    /* every response gets its own buffer, handlers may keep the packet data */
+    byte[] recvBuffer = new byte[recvLength];
+    ByteBuffer buffer = ByteBuffer.wrap(recvBuffer);
+    long remaining;
+    /* an interrupt wakes up the selector, the scan ends like on a timeout */
+    while ((remaining = (deadline - System.nanoTime()) / 1000000) > 0
+        && !Thread.currentThread().isInterrupted()) {
+      if (selector.select(remaining) == 0) {
+        continue;
+      }
+      Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+      while (keys.hasNext()) {
+        SelectionKey key = keys.next();
+        keys.remove();
+        DatagramChannel channel = (DatagramChannel) key.channel();
+        InetSocketAddress source;
+        while (null != (source = (InetSocketAddress) channel.receive(buffer))) {
+          int length = buffer.position();
+          DatagramPacket recvPacket = new DatagramPacket(recvBuffer, length);
+          recvPacket.setSocketAddress(source);
+          if (logger.isTraceEnabled()) {
+            logger.trace("broadcast recv from  " + source.getAddress().getHostAddress() + ":"
+                + source.getPort() + " - " + UdpConnection.toHexString(recvBuffer, length));
+          }
+          recvBuffer = new byte[recvLength];
+          buffer = ByteBuffer.wrap(recvBuffer);
+          Endpoint endpoint = null != key.attachment() ? (Endpoint) key.attachment()
+              : findEndpoint(source.getAddress());
+          if (null != endpoint
+              && !handler.handle(endpoint.localAddr, recvPacket, endpoint.getSocket())) {
+            return;
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the endpoint with the longest matching subnet, the first endpoint if no subnet matches
+   */
+  private Endpoint findEndpoint(InetAddress source) {
+    Endpoint found = endpoints.isEmpty() ? null : endpoints.get(0);
+    int foundPrefix = -1;
+    for (Endpoint endpoint : endpoints) {
+      int prefix = endpoint.getPrefixLength();
+      if (prefix > foundPrefix && sameSubnet(endpoint.localAddr, source, prefix)) {
+        found = endpoint;
+        foundPrefix = prefix;
+      }
+    }
+    return found;
+  }
+
+  private static boolean sameSubnet(InetAddress a, InetAddress b, int prefix) {
+    byte[] x = a.getAddress();
+    byte[] y = b.getAddress();
+    if (x.length != y.length) {
+      return false;
+    }
+    for (int i = 0; i < x.length && prefix > 0; i++, prefix -= 8) {
+      int mask = prefix >= 8 ? 0xFF : (0xFF << (8 - prefix)) & 0xFF;
+      if (((x[i] ^ y[i]) & mask) != 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void close() {
+    for (Endpoint endpoint : endpoints) {
+      endpoint.close();
+    }
+    closeQuietly(sharedChannel);
+    if (null != selector) {
+      try {
+        selector.close();
+      } catch (IOException e) {
+        logger.trace("error closing selector - {}", e.getMessage());
+      }
+    }
+  }
+
+  private static void closeQuietly(DatagramChannel channel) {
+    if (null != channel) {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        logger.trace("error closing channel - {}", e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * A local address with the channel broadcasting on it.
+   */
+  private class Endpoint {
+    final InetAddress localAddr;
+    DatagramChannel channel;
+    private int prefixLength = -1;
+    private DatagramSocket socket = null;
+
+    Endpoint(InetAddress localAddr) {
+      this.localAddr = localAddr;
+    }
+
+    int getPrefixLength() {
+      if (prefixLength < 0) {
+        prefixLength = 0;
+        try {
+          NetworkInterface iface = NetworkInterface.getByInetAddress(localAddr);
+          if (null != iface) {
+            for (InterfaceAddress address : iface.getInterfaceAddresses()) {
+              if (localAddr.equals(address.getAddress())) {
+                prefixLength = address.getNetworkPrefixLength();
+              }
+            }
+          }
+        } catch (SocketException e) {
+          logger.trace("no prefix length of {} - {}", localAddr, e.getMessage());
+        }
+      }
+      return prefixLength;
+    }
+
+    /**
+     * @return a socket for the handler, sending through the (non-blocking) channel
+     */
+    DatagramSocket getSocket() throws SocketException {
+      if (null == socket) {
+        socket = new ChannelSocket(channel);
+      }
+      return socket;
+    }
+
+    void close() {
+      if (null != socket) {
+        socket.close();
+      }
+      if (channel != sharedChannel) {
+        closeQuietly(channel);
+      }
+    }
+  }
+
+  /**
+   * The socket passed to the handler. The socket of a channel in non-blocking mode can not send, so
+   * this unbound socket sends with the channel instead.
+   */
+  private static class ChannelSocket extends DatagramSocket {
+    private final DatagramChannel channel;
+
+    ChannelSocket(DatagramChannel channel) throws SocketException {
+      super((SocketAddress) null);
+      this.channel = channel;
+    }
+
+    @Override
+    public void send(DatagramPacket p) throws IOException {
+      SocketAddress target = null != p.getAddress() ? p.getSocketAddress() : null;
+      if (null == target) {
+        throw new IllegalArgumentException("packet has no destination address");
+      }
+      channel.send(ByteBuffer.wrap(p.getData(), p.getOffset(), p.getLength()), target);
+    }
+
+    @Override
+    public InetAddress getLocalAddress() {
+      return channel.socket().getLocalAddress();
+    }
+
+    @Override
+    public int getLocalPort() {
+      return channel.socket().getLocalPort();
+    }
+
+    @Override
+    public SocketAddress getLocalSocketAddress() {
+      return channel.socket().getLocalSocketAddress();
+    }
+
+    @Override
+    public boolean getBroadcast() {
+      return true;
+    }
+  }
+}
@@ -6,11 +6,10 @@ package com.metratec.lib.connection;
  * All rights reserved.
  *******************************************************************************/
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Hashtable;
@@ -265,6 +264,7 @@ public class UsbConnection extends SerialConnection {
     if (inputstream != null) {
       try {
         jd.close();
+        releaseStreams(inputstream, outputstream);
         inputstream = null;
         outputstream = null;
       } catch (IOException e) {
@@ -369,8 +369,8 @@ public class UsbConnection extends SerialConnection {
       throw e;
     }
 
-    inputstream = new BufferedInputStream(new JD2XXInputStream(jd));
-    outputstream = new BufferedOutputStream(new JD2XXOutputStream(jd));
+    inputstream = new PooledInputStream(new JD2XXInputStream(jd), STREAM_BUFFER_SIZE);
+    outputstream = new PooledOutputStream(new JD2XXOutputStream(jd), STREAM_BUFFER_SIZE);
   }
 
   @Override
@@ -395,26 +395,65 @@ public class UsbConnection extends SerialConnection {
     } catch (NullPointerException e) {
       throw new CommConnectionException(NOT_INITIALISED, "not initialize");
     } catch (IOException e) {
-      if (e.getMessage().equals("io error")) {
-        // means no Data Available
-        return -1;
-      } else if (e.getMessage().equals("io error (4)")) {
-        throw new CommConnectionException(CONNECTION_LOST, e.getMessage());
-      } else {
-        throw new CommConnectionException(UNHANDLED_ERROR, e.getMessage());
-      }
+      return readError(e);
+    }
+  }
+
+  @Override
+  public int recvAvailable(byte[] b, int off, int len) throws CommConnectionException {
+    if (len <= 0) {
+      return 0;
+    }
+    try {
+      int count = inputstream.read(b, off, len);
+      // the driver returns a short (empty) read if the receive timeout expires
+      return count > 0 ? count : -1;
+    } catch (NullPointerException e) {
+      throw new CommConnectionException(NOT_INITIALISED, "not initialize");
+    } catch (IOException e) {
+      return readError(e);
     }
   }
 
   @Override
   public void send(byte[] senddata) throws CommConnectionException {
-    if (getLogger().isTraceEnabled()) {
-      getLogger().trace("{} send {}", toString(), new String(senddata));
+    if (null == senddata) {
+      throw new CommConnectionException(WRONG_PARAMETER, "data are null");
+    }
+    send(senddata, 0, senddata.length);
+  }
+
+  @Override
+  public void send(byte[] senddata, int off, int len) throws CommConnectionException {
+    write(senddata, off, len, true);
+  }
+
+  @Override
+  public void send(ByteBuffer... parts) throws CommConnectionException {
+    sendBuffered(parts);
+  }
+
+  @Override
+  public void sendNoFlush(byte[] senddata, int off, int len) throws CommConnectionException {
+    write(senddata, off, len, false);
+  }
+
+  @Override
+  public void flush() throws CommConnectionException {
+    write(NO_DATA, 0, 0, true);
+  }
+
+  private void write(byte[] senddata, int off, int len, boolean flush)
+      throws CommConnectionException {
+    if (getLogger().isTraceEnabled() && null != senddata && len > 0) {
+      getLogger().trace("{} send {}", toString(), new String(senddata, off, len));
     }
     try {
-      outputstream.write(senddata);
-      // _outputstream.write(senddata, 0, senddata.length);
-      outputstream.flush();
+      outputstream.write(senddata, off, len);
+      if (flush || unflushed(len)) {
+        outputstream.flush();
+        flushed();
+      }
     } catch (NullPointerException e) {
       if (senddata == null) {
         throw new CommConnectionException(WRONG_PARAMETER, "data are null");
@@ -422,24 +461,46 @@ public class UsbConnection extends SerialConnection {
         throw new CommConnectionException(NOT_INITIALISED, "not initialize");
       }
     } catch (IOException e) {
-      if (e.getMessage().equals("io error (4)")) {
-        throw new CommConnectionException(CONNECTION_LOST, e.getMessage());
-      } else {
-        throw new CommConnectionException(UNHANDLED_ERROR, e.getMessage());
-      }
+      throw new CommConnectionException(isDeviceResponding() ? UNHANDLED_ERROR : CONNECTION_LOST,
+          e.getMessage());
     }
   }
 
   @Override
   public int dataAvailable() throws CommConnectionException {
+    if (null == inputstream) {
+      throw new CommConnectionException(NOT_INITIALISED, "not initialize");
+    }
     try {
       return jd.getQueueStatus();
     } catch (IOException e) {
-      if (e.getMessage().startsWith("invalid handle (1)")) {
-        throw new CommConnectionException(NOT_INITIALISED, "not initialize");
-      } else {
-        throw new CommConnectionException(CONNECTION_LOST, e.getMessage());
-      }
+      throw new CommConnectionException(CONNECTION_LOST, e.getMessage());
+    }
+  }
+
+  /**
+   * Maps a driver error of a read. The driver also reports a read without data as error, so if
+   * the device still responds, there was just no data.
+   *
+   * @return -1 (no data)
+   * @throws CommConnectionException CONNECTION_LOST if the device does not respond any more
+   */
+  private int readError(IOException e) throws CommConnectionException {
+    if (isDeviceResponding()) {
+      return -1;
+    }
+    throw new CommConnectionException(CONNECTION_LOST, e.getMessage());
+  }
+
+  /**
+   * @return true if the device answers a status request
+   */
+  private boolean isDeviceResponding() {
+    try {
+      jd.getQueueStatus();
+      return true;
+    } catch (IOException e) {
+      return false;
     }
   }
 
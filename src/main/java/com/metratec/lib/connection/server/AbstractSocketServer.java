@@ -10,6 +10,8 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -24,6 +26,7 @@ import com.metratec.lib.connection.ICommConnection;
 public abstract class AbstractSocketServer {
   private AcceptNewConnectionsThread acceptNewConnectionsThread;
   private final Logger logger = LoggerFactory.getLogger(AbstractSocketServer.class);
+  private volatile Executor dispatchExecutor = ClientDispatchers.threadPerClient();
 
   /**
    * 
@@ -75,6 +78,28 @@ public abstract class AbstractSocketServer {
     acceptNewConnectionsThread.start();
   }
 
+  /**
+   * Sets the strategy for calling the {@link ClientConnectionListener} of new clients. By default a
+   * new thread is started per client, see {@link ClientDispatchers} for bounded pools and virtual
+   * threads. If the executor rejects a client, the client is disconnected. The executor is not shut
+   * down by the server.
+   *
+   * @param executor the dispatch executor
+   */
+  public void setDispatchExecutor(Executor executor) {
+    if (null == executor) {
+      throw new IllegalArgumentException("executor is null");
+    }
+    dispatchExecutor = executor;
+  }
+
+  /**
+   * @return the strategy for calling the {@link ClientConnectionListener} of new clients
+   */
+  public Executor getDispatchExecutor() {
+    return dispatchExecutor;
+  }
+
   /**
    * Called to create the new {@link ServerSocket}
    * 
@@ -120,14 +145,17 @@ public abstract class AbstractSocketServer {
   }
 
   private void waitForShutDown() {
-    if (null != acceptNewConnectionsThread && acceptNewConnectionsThread.isAlive()) {
-      while (acceptNewConnectionsThread.isAlive()) {
-        try {
-          Thread.sleep(10);
-        } catch (InterruptedException e) {
-        }
+    boolean interrupted = false;
+    while (null != acceptNewConnectionsThread && acceptNewConnectionsThread.isAlive()) {
+      try {
+        acceptNewConnectionsThread.join();
+      } catch (InterruptedException e) {
+        interrupted = true;
       }
     }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
   }
 
   /**
@@ -147,7 +175,6 @@ public abstract class AbstractSocketServer {
    *
    */
   private class AcceptNewConnectionsThread extends Thread {
-    private int port;
     private ClientConnectionListener listener;
     private boolean isRunning;
     private ServerSocket serverSocket;
@@ -206,7 +233,7 @@ public abstract class AbstractSocketServer {
     }
 
     private void callListener(final ICommConnection connection) {
-      new Thread(new Runnable() {
+      Runnable call = new Runnable() {
         @Override
         public void run() {
           try {
@@ -223,14 +250,27 @@ public abstract class AbstractSocketServer {
             }
           }
         }
-      }).start();
+      };
+      try {
+        dispatchExecutor.execute(call);
+      } catch (RejectedExecutionException e) {
+        // dispatcher exhausted - disconnect the client
+        if (logger.isDebugEnabled()) {
+          logger.debug("{} client rejected {}", serverSocket, connection);
+        }
+        try {
+          connection.disconnect();
+        } catch (CommConnectionException e1) {
+          logger.trace("{} error disconnect client {}", serverSocket, e1.getMessage());
+        }
+      }
     }
 
     /**
      * @return the current server port
      */
     public int getPort() {
-      return port;
+      return serverSocket.getLocalPort();
     }
 
     /**
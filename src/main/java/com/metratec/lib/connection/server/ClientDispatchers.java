@@ -0,0 +1,104 @@
+package com.metratec.lib.connection.server;
+
+/*******************************************************************************
+ * Copyright (c) 2023 by metraTec GmbH
+ * All rights reserved.
+ *******************************************************************************/
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.metratec.lib.connection.CommConnectionException;
+import com.metratec.lib.connection.ICommConnection;
+
+/**
+ * Dispatch strategies for calling the {@link ClientConnectionListener} of a socket server, see
+ * {@link AbstractSocketServer#setDispatchExecutor(Executor)}.
+ *
+ * @author man
+ */
+public final class ClientDispatchers {
+  private static final AtomicInteger threadCount = new AtomicInteger();
+
+  private ClientDispatchers() {}
+
+  /**
+   * Starts a new thread for every client. This is the default, it has no limit.
+   *
+   * @return the dispatch executor
+   */
+  public static Executor threadPerClient() {
+    return new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        new Thread(command, "SocketServer-client-" + threadCount.incrementAndGet()).start();
+      }
+    };
+  }
+
+  /**
+   * Calls the listener on a bounded thread pool. If all threads are busy and the queue is full, the
+   * new client is rejected and disconnected.
+   *
+   * @param threads maximum number of threads
+   * @param queueSize maximum number of clients waiting for a thread
+   * @return the dispatch executor, it must be shut down by the caller
+   */
+  public static ExecutorService boundedPool(int threads, int queueSize) {
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "SocketServer-worker-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        }, new ThreadPoolExecutor.AbortPolicy());
+    pool.allowCoreThreadTimeOut(true);
+    return pool;
+  }
+
+  /**
+   * @return true if the running Java version supports virtual threads (Java 21+)
+   */
+  public static boolean isVirtualThreadSupported() {
+    return null != virtualThreadFactoryMethod();
+  }
+
+  /**
+   * Starts a new virtual thread for every client. Virtual threads are cheap, so there is no need for
+   * a limit. Requires Java 21 or newer.
+   *
+   * @return the dispatch executor, it must be shut down by the caller
+   * @throws CommConnectionException NOT_AVAILABLE if virtual threads are not supported
+   */
+  public static ExecutorService virtualThreadPerClient() throws CommConnectionException {
+    /*
+     * The library is compiled for Java 7, so the Java 21 API is looked up at runtime.
+     */
+    Method method = virtualThreadFactoryMethod();
+    if (null == method) {
+      throw new CommConnectionException(ICommConnection.NOT_AVAILABLE,
+          "Virtual threads require Java 21 or newer");
+    }
+    try {
+      return (ExecutorService) method.invoke(null);
+    } catch (ReflectiveOperationException e) {
+      throw new CommConnectionException(ICommConnection.NOT_AVAILABLE, e.toString());
+    }
+  }
+
+  private static Method virtualThreadFactoryMethod() {
+    try {
+      return java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+    } catch (NoSuchMethodException e) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,311 @@
+package com.metratec.lib.connection.server;
+
+/*******************************************************************************
+ * Copyright (c) 2023 by metraTec GmbH
+ * All rights reserved.
+ *******************************************************************************/
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.metratec.lib.connection.CommConnectionException;
+import com.metratec.lib.connection.ICommConnection;
+import com.metratec.lib.connection.NioEventLoop;
+import com.metratec.lib.connection.NioTcpConnection;
+
+/**
+ * A socket server accepting clients on a {@link NioEventLoop}.
+ *
+ * In contrast to {@link SocketServer}, no thread blocks in accept and no thread is started per
+ * client. The accepted clients are served as {@link NioTcpConnection}s and the
+ * {@link ClientConnectionListener} is called on a bounded worker pool. If the pool and its queue
+ * are exhausted, e.g. during a reconnect storm, new clients are disconnected.
+ *
+ * @author man
+ */
+public class NioSocketServer {
+  private static final int DEFAULT_WORKER_QUEUE_SIZE = 10000;
+
+  private final Logger logger = LoggerFactory.getLogger(NioSocketServer.class);
+  /** the loop for accepting and serving clients, null for the shared loops */
+  private final NioEventLoop loop;
+  private final ExecutorService externalWorkers;
+  private final int workerThreads;
+  private ExecutorService workers = null;
+  private NioEventLoop acceptLoop = null;
+  private volatile ServerSocketChannel serverChannel = null;
+  private ClientConnectionListener listener;
+
+  /**
+   * Creates a server using the shared event loops and a worker pool with twice as many threads as
+   * processors.
+   */
+  public NioSocketServer() {
+    this(null, null, 2 * Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Creates a server.
+   *
+   * @param loop the event loop accepting and serving the clients
+   * @param workerThreads the number of threads calling the {@link ClientConnectionListener}
+   */
+  public NioSocketServer(NioEventLoop loop, int workerThreads) {
+    this(loop, null, workerThreads);
+  }
+
+  /**
+   * Creates a server.
+   *
+   * @param loop the event loop accepting and serving the clients
+   * @param workers the executor calling the {@link ClientConnectionListener}, it is not shut down
+   *        by the server
+   */
+  public NioSocketServer(NioEventLoop loop, ExecutorService workers) {
+    this(loop, workers, 0);
+  }
+
+  private NioSocketServer(NioEventLoop loop, ExecutorService workers, int workerThreads) {
+    this.loop = loop;
+    this.externalWorkers = workers;
+    this.workerThreads = Math.max(1, workerThreads);
+  }
+
+  /**
+   * @return true if the server is waiting for new client
+   */
+  public boolean isRunning() {
+    ServerSocketChannel channel = serverChannel;
+    return null != channel && channel.isOpen();
+  }
+
+  /**
+   * Start the waiting for new client to connect
+   *
+   * @param serverPort server port
+   * @param listener the {@link ClientConnectionListener}
+   * @throws CommConnectionException throwed if the server can not be created
+   */
+  public void start(int serverPort, ClientConnectionListener listener)
+      throws CommConnectionException {
+    start(serverPort, 50, null, listener);
+  }
+
+  /**
+   * Start the waiting for new client to connect
+   *
+   * @param serverPort the port number, or {@code 0} to use a port number that is automatically
+   *        allocated.
+   * @param backlog requested maximum length of the queue of incoming connections.
+   * @param bindAddr the local InetAddress the server will bind to, or null for all addresses
+   * @param listener the {@link ClientConnectionListener}
+   * @throws CommConnectionException throwed if the server can not be created
+   */
+  public synchronized void start(int serverPort, int backlog, InetAddress bindAddr,
+      ClientConnectionListener listener) throws CommConnectionException {
+    if (isRunning()) {
+      return;
+    }
+    final NioEventLoop registerLoop = null != loop ? loop : NioEventLoop.getDefault();
+    final ServerSocketChannel channel;
+    try {
+      channel = ServerSocketChannel.open();
+      channel.configureBlocking(false);
+      channel.bind(new InetSocketAddress(bindAddr, serverPort), backlog);
+    } catch (IOException e) {
+      throw new CommConnectionException(ICommConnection.NOT_INITIALISED, e.getMessage());
+    }
+    this.listener = listener;
+    workers = null != externalWorkers ? externalWorkers : createWorkers();
+    serverChannel = channel;
+    acceptLoop = registerLoop;
+    final NioEventLoop.Handler handler = new AcceptHandler(channel, listener, workers);
+    registerLoop.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          registerLoop.register(channel, SelectionKey.OP_ACCEPT, handler);
+        } catch (IOException e) {
+          serverError(channel, e);
+        }
+      }
+    });
+  }
+
+  private ExecutorService createWorkers() {
+    return new ThreadPoolExecutor(workerThreads, workerThreads, 60, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(DEFAULT_WORKER_QUEUE_SIZE), new ThreadFactory() {
+          private final AtomicInteger count = new AtomicInteger();
+
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "NioSocketServer-worker-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+  }
+
+  /**
+   * stop the server
+   */
+  public synchronized void stop() {
+    ServerSocketChannel channel = serverChannel;
+    if (null == channel) {
+      return;
+    }
+    serverChannel = null;
+    try {
+      channel.close();
+    } catch (IOException e) {
+      if (logger.isDebugEnabled()) {
+        String message = channel + " error close socket " + e.getMessage();
+        if (logger.isTraceEnabled()) {
+          logger.trace(message, e);
+        } else {
+          logger.debug(message);
+        }
+      }
+    }
+    /* let the selector release the channel */
+    acceptLoop.wakeup();
+    if (null == externalWorkers && null != workers) {
+      workers.shutdown();
+    }
+    workers = null;
+  }
+
+  /**
+   * @return the current using server port or -1 if the server not started
+   */
+  public int getPort() {
+    ServerSocketChannel channel = serverChannel;
+    if (null != channel && channel.isOpen()) {
+      return channel.socket().getLocalPort();
+    } else {
+      return -1;
+    }
+  }
+
+  /**
+   * @return the listener of the last start
+   */
+  public ClientConnectionListener getListener() {
+    return listener;
+  }
+
+  private void serverError(ServerSocketChannel channel, IOException e) {
+    String message = channel + " io error " + e.getMessage();
+    if (logger.isDebugEnabled()) {
+      if (logger.isTraceEnabled()) {
+        logger.trace(message, e);
+      } else {
+        logger.debug(message);
+      }
+    }
+    if (channel == serverChannel) {
+      if (!channel.isOpen()) {
+        serverChannel = null;
+      }
+      listener.serverError(e);
+    }
+  }
+
+  /**
+   * Accepts all pending clients, on the accept loop thread.
+   */
+  private class AcceptHandler implements NioEventLoop.Handler {
+    private final ServerSocketChannel channel;
+    private final ClientConnectionListener listener;
+    private final ExecutorService workers;
+
+    AcceptHandler(ServerSocketChannel channel, ClientConnectionListener listener,
+        ExecutorService workers) {
+      this.channel = channel;
+      this.listener = listener;
+      this.workers = workers;
+    }
+
+    @Override
+    public void handle(SelectionKey key) {
+      while (true) {
+        SocketChannel client;
+        try {
+          client = channel.accept();
+        } catch (IOException e) {
+          serverError(channel, e);
+          return;
+        }
+        if (null == client) {
+          return;
+        }
+        final NioTcpConnection connection;
+        try {
+          connection =
+              new NioTcpConnection(client, null != loop ? loop : NioEventLoop.getDefault());
+        } catch (CommConnectionException e) {
+          // connection error - disconnect the client
+          if (logger.isDebugEnabled()) {
+            String message = channel + " error create client connection " + e.getMessage();
+            if (logger.isTraceEnabled()) {
+              logger.trace(message, e);
+            } else {
+              logger.debug(message);
+            }
+          }
+          try {
+            client.close();
+          } catch (IOException e1) {
+            logger.trace("{} error close client {}", channel, e1.getMessage());
+          }
+          continue;
+        }
+        callListener(connection);
+      }
+    }
+
+    private void callListener(final NioTcpConnection connection) {
+      try {
+        workers.execute(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              listener.clientConnected(connection);
+            } catch (Exception e) {
+              if (logger.isDebugEnabled()) {
+                String message =
+                    channel + " error call client connection listener " + e.getMessage();
+                if (logger.isTraceEnabled()) {
+                  logger.trace(message, e);
+                } else {
+                  logger.debug(message);
+                }
+              }
+            }
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        logger.debug("{} worker pool exhausted, disconnect {}", channel, connection);
+        try {
+          connection.disconnect();
+        } catch (CommConnectionException e1) {
+          logger.trace("{} error disconnect {}", channel, e1.getMessage());
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,452 @@
+package com.metratec.lib.connection.simulator;
+
+/*******************************************************************************
+ * Copyright (c) 2023 by metraTec GmbH
+ * All rights reserved.
+ *******************************************************************************/
+
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.metratec.lib.connection.CommConnectionException;
+
+/**
+ * A scriptable stand-in for a metraTec reader, for tests and load tests without hardware.
+ *
+ * The simulator answers CR-terminated commands with the scripted responses, starts and stops
+ * continuous report streams and delays every response by a configurable latency and jitter.
+ * Responses are always delivered in the order of the commands. One simulator can serve many
+ * connections, each one gets its own {@link Session}. Use a {@link SimulatorConnection} to talk to
+ * the simulator in memory, or a {@link SimulatorServer} to reach it over TCP.
+ *
+ * <pre>
+ * DeviceSimulator simulator = new DeviceSimulator();
+ * simulator.on("RHR", "1\r");
+ * simulator.onPrefix("BINXT ", "BINXT OK\r");
+ * simulator.onReport("CNR INV", "BRK", "IVF 01 E2003412DC03011917112738\r", 1000);
+ * simulator.on("BRK", "BRA\r");
+ * simulator.setLatency(5, 2);
+ * </pre>
+ *
+ * The script may be changed while sessions are running.
+ *
+ * @author man
+ */
+public class DeviceSimulator {
+  private static final Logger logger = LoggerFactory.getLogger(DeviceSimulator.class);
+  private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+  /** longer commands are discarded */
+  private static final int MAX_COMMAND_LENGTH = 4096;
+  private static ScheduledExecutorService defaultScheduler = null;
+
+  /**
+   * Computes the response of a command.
+   */
+  public interface Responder {
+    /**
+     * @param command the command without the terminating CR
+     * @return the response including its terminator or null if the command is not handled
+     */
+    String respond(String command);
+  }
+
+  /**
+   * Receives the data sent by the simulator.
+   */
+  public interface Output {
+    /**
+     * @param data the response or report data
+     * @throws CommConnectionException if the data can not be delivered, the session is closed
+     */
+    void write(byte[] data) throws CommConnectionException;
+  }
+
+  private final Map<String, String> responses = new ConcurrentHashMap<String, String>();
+  private final List<Responder> responders = new CopyOnWriteArrayList<Responder>();
+  private final List<ReportStream> reportStreams = new CopyOnWriteArrayList<ReportStream>();
+  private final ScheduledExecutorService scheduler;
+  private volatile String unknownCommandResponse = "UCO\r";
+  private volatile int latency = 0;
+  private volatile int jitter = 0;
+
+  /**
+   * Creates a simulator using the shared default scheduler. It answers REV with "SIMULATOR 0100"
+   * and unknown commands with UCO.
+   */
+  public DeviceSimulator() {
+    this(getDefaultScheduler());
+  }
+
+  /**
+   * Creates a simulator. It answers REV with "SIMULATOR 0100" and unknown commands with UCO.
+   *
+   * @param scheduler the scheduler delivering the delayed responses and the reports
+   */
+  public DeviceSimulator(ScheduledExecutorService scheduler) {
+    this.scheduler = scheduler;
+    on("REV", "SIMULATOR 0100\r");
+  }
+
+  /**
+   * Returns the shared default scheduler. It has as many daemon threads as processors.
+   *
+   * @return the shared default scheduler
+   */
+  public static synchronized ScheduledExecutorService getDefaultScheduler() {
+    if (null == defaultScheduler) {
+      defaultScheduler = new ScheduledThreadPoolExecutor(
+          Math.max(2, Runtime.getRuntime().availableProcessors()), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+              Thread thread = new Thread(r, "DeviceSimulator-" + count.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            }
+          });
+    }
+    return defaultScheduler;
+  }
+
+  /**
+   * Sets the response of a command, replacing a previous one.
+   *
+   * @param command the command without the terminating CR
+   * @param response the response including its terminator, several lines are allowed
+   */
+  public void on(String command, String response) {
+    responses.put(command, response);
+  }
+
+  /**
+   * Sets the response of all commands starting with the given prefix. Exact commands set with
+   * {@link #on(String, String)} take precedence.
+   *
+   * @param prefix the command prefix
+   * @param response the response including its terminator
+   */
+  public void onPrefix(final String prefix, final String response) {
+    addResponder(new Responder() {
+      @Override
+      public String respond(String command) {
+        return command.startsWith(prefix) ? response : null;
+      }
+    });
+  }
+
+  /**
+   * Adds a responder for commands without a fixed response. The responders are asked in the order
+   * they were added, after the exact commands.
+   *
+   * @param responder the responder
+   */
+  public void addResponder(Responder responder) {
+    responders.add(responder);
+  }
+
+  /**
+   * Adds a report stream. The start command starts sending the report at the given rate until the
+   * stop command is received. The stop command is answered as usual afterwards.
+   *
+   * @param startCommand the command starting the stream
+   * @param stopCommand the command stopping the stream
+   * @param report the report including its terminator
+   * @param rate number of reports per second
+   */
+  public void onReport(String startCommand, String stopCommand, String report, int rate) {
+    if (rate <= 0) {
+      throw new IllegalArgumentException("rate must be positive");
+    }
+    reportStreams.add(new ReportStream(startCommand, stopCommand, report, rate));
+  }
+
+  /**
+   * Removes all responses, responders and report streams, including the REV default.
+   */
+  public void clear() {
+    responses.clear();
+    responders.clear();
+    reportStreams.clear();
+  }
+
+  /**
+   * @param response the response to unknown commands or null for no response, default UCO
+   */
+  public void setUnknownCommandResponse(String response) {
+    unknownCommandResponse = response;
+  }
+
+  /**
+   * @return the response to unknown commands or null for no response
+   */
+  public String getUnknownCommandResponse() {
+    return unknownCommandResponse;
+  }
+
+  /**
+   * Sets the response delay. Every response is delayed by the latency plus a random value up to
+   * the jitter. Reports are sent at their rate without a delay.
+   *
+   * @param latency the latency in milliseconds
+   * @param jitter the maximum additional random delay in milliseconds
+   */
+  public void setLatency(int latency, int jitter) {
+    this.latency = Math.max(0, latency);
+    this.jitter = Math.max(0, jitter);
+  }
+
+  /**
+   * @return the latency in milliseconds
+   */
+  public int getLatency() {
+    return latency;
+  }
+
+  /**
+   * @return the maximum jitter in milliseconds
+   */
+  public int getJitter() {
+    return jitter;
+  }
+
+  /**
+   * Opens a new session, i.e. a simulated device connection.
+   *
+   * @param output receives the data sent by the simulated device
+   * @return the session
+   */
+  public Session openSession(Output output) {
+    return new Session(output);
+  }
+
+  private String respond(String command) {
+    String response = responses.get(command);
+    if (null != response) {
+      return response;
+    }
+    for (Responder responder : responders) {
+      response = responder.respond(command);
+      if (null != response) {
+        return response;
+      }
+    }
+    return unknownCommandResponse;
+  }
+
+  private long nextDelay() {
+    int max = jitter;
+    long delay = latency;
+    if (max > 0) {
+      delay += ThreadLocalRandom.current().nextInt(max + 1);
+    }
+    return TimeUnit.MILLISECONDS.toNanos(delay);
+  }
+
+  private static class ReportStream {
+    private final String startCommand;
+    private final String stopCommand;
+    private final byte[] report;
+    private final long period;
+
+    ReportStream(String startCommand, String stopCommand, String report, int rate) {
+      this.startCommand = startCommand;
+      this.stopCommand = stopCommand;
+      this.report = report.getBytes(ISO_8859_1);
+      this.period = Math.max(1, TimeUnit.SECONDS.toNanos(1) / rate);
+    }
+  }
+
+  /**
+   * One simulated device connection. The data sent to the device is passed to
+   * {@link #receive(byte[], int, int)}, the device output is written to the {@link Output}.
+   */
+  public class Session {
+    private final Output output;
+    private final StringBuilder command = new StringBuilder();
+    /** pending responses, their due times never decrease */
+    private final ArrayDeque<Pending> pending = new ArrayDeque<Pending>();
+    private final Object writeLock = new Object();
+    private final List<ScheduledFuture<?>> reports = new ArrayList<ScheduledFuture<?>>();
+    private final List<ReportStream> runningStreams = new ArrayList<ReportStream>();
+    private long lastDue = 0;
+    private volatile boolean open = true;
+    private boolean discarding = false;
+
+    private final Runnable drainer = new Runnable() {
+      @Override
+      public void run() {
+        drain();
+      }
+    };
+
+    Session(Output output) {
+      this.output = output;
+    }
+
+    /**
+     * Passes data sent to the device. Complete commands are answered, LF characters are ignored.
+     *
+     * @param b the data
+     * @param off the offset of the data
+     * @param len the length of the data
+     */
+    public void receive(byte[] b, int off, int len) {
+      for (int i = off; i < off + len; i++) {
+        char c = (char) (b[i] & 0xFF);
+        if (c == '\r') {
+          if (!discarding) {
+            handle(command.toString());
+          }
+          command.setLength(0);
+          discarding = false;
+        } else if (c != '\n' && !discarding) {
+          if (command.length() >= MAX_COMMAND_LENGTH) {
+            logger.debug("simulator command too long, discarded");
+            command.setLength(0);
+            discarding = true;
+          } else {
+            command.append(c);
+          }
+        }
+      }
+    }
+
+    /**
+     * @return true until the session is closed
+     */
+    public boolean isOpen() {
+      return open;
+    }
+
+    /**
+     * Closes the session, stops the reports and drops the pending responses.
+     */
+    public void close() {
+      open = false;
+      synchronized (reports) {
+        for (ScheduledFuture<?> report : reports) {
+          report.cancel(false);
+        }
+        reports.clear();
+        runningStreams.clear();
+      }
+      synchronized (pending) {
+        pending.clear();
+      }
+    }
+
+    private void handle(String cmd) {
+      if (!open) {
+        return;
+      }
+      for (ReportStream stream : reportStreams) {
+        if (stream.startCommand.equals(cmd)) {
+          startReport(stream);
+          return;
+        }
+      }
+      for (ReportStream stream : reportStreams) {
+        if (stream.stopCommand.equals(cmd)) {
+          stopReport(stream);
+        }
+      }
+      String response = respond(cmd);
+      if (null != response) {
+        send(response.getBytes(ISO_8859_1), nextDelay());
+      }
+    }
+
+    private void startReport(final ReportStream stream) {
+      synchronized (reports) {
+        if (!open || runningStreams.contains(stream)) {
+          return;
+        }
+        runningStreams.add(stream);
+        reports.add(scheduler.scheduleAtFixedRate(new Runnable() {
+          @Override
+          public void run() {
+            send(stream.report, 0);
+          }
+        }, stream.period, stream.period, TimeUnit.NANOSECONDS));
+      }
+    }
+
+    private void stopReport(ReportStream stream) {
+      synchronized (reports) {
+        int index = runningStreams.indexOf(stream);
+        if (index >= 0) {
+          runningStreams.remove(index);
+          reports.remove(index).cancel(false);
+        }
+      }
+    }
+
+    private void send(byte[] data, long delay) {
+      long now = System.nanoTime();
+      synchronized (pending) {
+        if (!open) {
+          return;
+        }
+        long due = Math.max(now + delay, lastDue);
+        lastDue = due;
+        pending.add(new Pending(due, data));
+        if (due - now > 0) {
+          scheduler.schedule(drainer, due - now, TimeUnit.NANOSECONDS);
+          return;
+        }
+      }
+      drain();
+    }
+
+    /**
+     * Writes all due responses. The write lock keeps the order if several threads drain at once.
+     */
+    private void drain() {
+      synchronized (writeLock) {
+        while (true) {
+          Pending next;
+          synchronized (pending) {
+            next = pending.peek();
+            if (null == next || next.due - System.nanoTime() > 0) {
+              return;
+            }
+            pending.poll();
+          }
+          try {
+            output.write(next.data);
+          } catch (CommConnectionException e) {
+            logger.debug("simulator session closed - {}", e.getMessage());
+            close();
+            return;
+          }
+        }
+      }
+    }
+  }
+
+  private static class Pending {
+    private final long due;
+    private final byte[] data;
+
+    Pending(long due, byte[] data) {
+      this.due = due;
+      this.data = data;
+    }
+  }
+}
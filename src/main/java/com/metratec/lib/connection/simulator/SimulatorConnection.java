@@ -0,0 +1,294 @@
+package com.metratec.lib.connection.simulator;
+
+/*******************************************************************************
+ * Copyright (c) 2023 by metraTec GmbH
+ * All rights reserved.
+ *******************************************************************************/
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Hashtable;
+
+import com.metratec.lib.connection.CommConnectionException;
+import com.metratec.lib.connection.ICommConnection;
+
+/**
+ * An in-memory connection to a {@link DeviceSimulator}. Every connect opens a new simulator
+ * session, the simulator output is buffered until it is received.
+ *
+ * @author man
+ */
+public class SimulatorConnection extends ICommConnection {
+  private final DeviceSimulator simulator;
+  private final Object lock = new Object();
+  /** received data not read yet, a ring buffer growing on demand */
+  private byte[] buffer = new byte[4096];
+  private int readPos = 0;
+  private int count = 0;
+  private volatile DeviceSimulator.Session session = null;
+  private int recvTimeout = 1000;
+  private int connectionTimeout = 1000;
+
+  private final InputStream inputStream = new InputStream() {
+    @Override
+    public int read() throws IOException {
+      try {
+        return recv();
+      } catch (CommConnectionException e) {
+        throw new IOException(e.getMessage(), e);
+      }
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      try {
+        return recvAvailable(b, off, len);
+      } catch (CommConnectionException e) {
+        throw new IOException(e.getMessage(), e);
+      }
+    }
+
+    @Override
+    public int available() {
+      synchronized (lock) {
+        return count;
+      }
+    }
+  };
+
+  private final OutputStream outputStream = new OutputStream() {
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      try {
+        send(b, off, len);
+      } catch (CommConnectionException e) {
+        throw new IOException(e.getMessage(), e);
+      }
+    }
+  };
+
+  /**
+   * @param simulator the simulated device
+   */
+  public SimulatorConnection(DeviceSimulator simulator) {
+    this.simulator = simulator;
+  }
+
+  /**
+   * @return the simulated device
+   */
+  public DeviceSimulator getSimulator() {
+    return simulator;
+  }
+
+  @Override
+  public void connect() throws CommConnectionException {
+    synchronized (lock) {
+      if (null != session) {
+        return;
+      }
+      readPos = 0;
+      count = 0;
+      session = simulator.openSession(new DeviceSimulator.Output() {
+        @Override
+        public void write(byte[] data) throws CommConnectionException {
+          append(data);
+        }
+      });
+    }
+  }
+
+  @Override
+  public void disconnect() throws CommConnectionException {
+    DeviceSimulator.Session closed;
+    synchronized (lock) {
+      closed = session;
+      session = null;
+      lock.notifyAll();
+    }
+    if (null != closed) {
+      closed.close();
+    }
+  }
+
+  private void append(byte[] data) throws CommConnectionException {
+    synchronized (lock) {
+      if (null == session) {
+        throw new CommConnectionException(CONNECTION_LOST, "connection closed");
+      }
+      if (count + data.length > buffer.length) {
+        byte[] newBuffer = new byte[Math.max(2 * buffer.length, count + data.length)];
+        copyOut(newBuffer, 0, count);
+        buffer = newBuffer;
+        readPos = 0;
+      }
+      int writePos = (readPos + count) % buffer.length;
+      int first = Math.min(data.length, buffer.length - writePos);
+      System.arraycopy(data, 0, buffer, writePos, first);
+      System.arraycopy(data, first, buffer, 0, data.length - first);
+      count += data.length;
+      lock.notifyAll();
+    }
+  }
+
+  /**
+   * Copies buffered data without consuming it, the lock must be held.
+   */
+  private void copyOut(byte[] b, int off, int len) {
+    int first = Math.min(len, buffer.length - readPos);
+    System.arraycopy(buffer, readPos, b, off, first);
+    System.arraycopy(buffer, 0, b, off + first, len - first);
+  }
+
+  /**
+   * Waits for data up to the receive timeout (0 waits forever like a socket), the lock must be
+   * held.
+   *
+   * @return false on timeout
+   */
+  private boolean awaitData() throws CommConnectionException {
+    long deadline = System.nanoTime() + recvTimeout * 1000000L;
+    while (count == 0) {
+      if (null == session) {
+        throw new CommConnectionException(NOT_INITIALISED, "not initialize");
+      }
+      long remaining = 0;
+      if (recvTimeout > 0) {
+        remaining = (deadline - System.nanoTime()) / 1000000L;
+        if (remaining <= 0) {
+          return false;
+        }
+      }
+      try {
+        lock.wait(remaining);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new CommConnectionException(UNHANDLED_ERROR, "interrupted");
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public void send(byte[] senddata) throws CommConnectionException {
+    if (null == senddata) {
+      throw new CommConnectionException(WRONG_PARAMETER, "data are null");
+    }
+    send(senddata, 0, senddata.length);
+  }
+
+  @Override
+  public void send(byte[] senddata, int off, int len) throws CommConnectionException {
+    if (null == senddata) {
+      throw new CommConnectionException(WRONG_PARAMETER, "data are null");
+    }
+    DeviceSimulator.Session current = session;
+    if (null == current) {
+      throw new CommConnectionException(NOT_INITIALISED, "not initialize");
+    }
+    synchronized (current) {
+      current.receive(senddata, off, len);
+    }
+  }
+
+  @Override
+  public int recv() throws CommConnectionException {
+    synchronized (lock) {
+      if (!awaitData()) {
+        return -1;
+      }
+      int c = buffer[readPos] & 0xFF;
+      readPos = (readPos + 1) % buffer.length;
+      count--;
+      return c;
+    }
+  }
+
+  @Override
+  public int recvAvailable(byte[] b, int off, int len) throws CommConnectionException {
+    if (len <= 0) {
+      return 0;
+    }
+    synchronized (lock) {
+      if (!awaitData()) {
+        return -1;
+      }
+      int n = Math.min(len, count);
+      copyOut(b, off, n);
+      readPos = (readPos + n) % buffer.length;
+      count -= n;
+      return n;
+    }
+  }
+
+  @Override
+  public boolean isConnected() {
+    return null != session;
+  }
+
+  @Override
+  public Hashtable<String, Object> getInfo() {
+    Hashtable<String, Object> info = new Hashtable<>();
+    info.put("type", "simulator");
+    return info;
+  }
+
+  @Override
+  public void setSettings(Hashtable<String, String> settings) {
+    // nothing to set
+  }
+
+  @Override
+  public InputStream getInputStream() {
+    return inputStream;
+  }
+
+  @Override
+  public OutputStream getOutputStream() {
+    return outputStream;
+  }
+
+  @Override
+  public int dataAvailable() throws CommConnectionException {
+    synchronized (lock) {
+      if (null == session) {
+        throw new CommConnectionException(NOT_INITIALISED, "not initialize");
+      }
+      return count;
+    }
+  }
+
+  @Override
+  public void setRecvTimeout(int timeout) throws CommConnectionException {
+    if (timeout < 0) {
+      throw new CommConnectionException(WRONG_PARAMETER, "timeout must be positive");
+    }
+    recvTimeout = timeout;
+  }
+
+  @Override
+  public int getRecvTimeout() {
+    return recvTimeout;
+  }
+
+  @Override
+  public void setConnectionTimeout(int timeout) {
+    connectionTimeout = timeout;
+  }
+
+  @Override
+  public int getConnectionTimeout() {
+    return connectionTimeout;
+  }
+
+  @Override
+  public String toString() {
+    return "simulator@" + Integer.toHexString(System.identityHashCode(simulator));
+  }
+}
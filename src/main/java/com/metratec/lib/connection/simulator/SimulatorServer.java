@@ -0,0 +1,166 @@
+package com.metratec.lib.connection.simulator;
+
+/*******************************************************************************
+ * Copyright (c) 2023 by metraTec GmbH
+ * All rights reserved.
+ *******************************************************************************/
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.metratec.lib.connection.CommConnectionException;
+import com.metratec.lib.connection.ICommConnection;
+import com.metratec.lib.connection.server.AbstractSocketServer;
+import com.metratec.lib.connection.server.ClientConnectionListener;
+import com.metratec.lib.connection.server.SocketServer;
+
+/**
+ * Makes a {@link DeviceSimulator} reachable over the network. Every client gets its own simulator
+ * session. With a {@link SocketServer} the simulator behaves like an ethernet reader for a
+ * TcpConnection, with an SslSocketServer like one for an SslTcpConnection.
+ *
+ * <pre>
+ * SimulatorServer server = new SimulatorServer(new DeviceSimulator());
+ * server.start(10001);
+ * ICommConnection connection = new TcpConnection("127.0.0.1", server.getPort());
+ * </pre>
+ *
+ * @author man
+ */
+public class SimulatorServer {
+  private static final Logger logger = LoggerFactory.getLogger(SimulatorServer.class);
+
+  private final DeviceSimulator simulator;
+  private final AbstractSocketServer server;
+  private final Set<ICommConnection> clients =
+      Collections.newSetFromMap(new ConcurrentHashMap<ICommConnection, Boolean>());
+
+  private final ClientConnectionListener listener = new ClientConnectionListener() {
+    @Override
+    public void clientConnected(ICommConnection connection) {
+      serve(connection);
+    }
+
+    @Override
+    public void serverError(IOException e) {
+      logger.debug("simulator server error {}", e.getMessage());
+    }
+  };
+
+  /**
+   * Creates a plain TCP simulator server.
+   *
+   * @param simulator the simulated device
+   */
+  public SimulatorServer(DeviceSimulator simulator) {
+    this(simulator, new SocketServer());
+  }
+
+  /**
+   * @param simulator the simulated device
+   * @param server the socket server accepting the clients, e.g. an SslSocketServer
+   */
+  public SimulatorServer(DeviceSimulator simulator, AbstractSocketServer server) {
+    this.simulator = simulator;
+    this.server = server;
+  }
+
+  /**
+   * @return the simulated device
+   */
+  public DeviceSimulator getSimulator() {
+    return simulator;
+  }
+
+  /**
+   * @return the socket server
+   */
+  public AbstractSocketServer getServer() {
+    return server;
+  }
+
+  /**
+   * Starts the server.
+   *
+   * @param port the server port, 0 for any free port
+   * @throws CommConnectionException if the server can not be created
+   */
+  public void start(int port) throws CommConnectionException {
+    server.start(port, listener);
+  }
+
+  /**
+   * Starts the server.
+   *
+   * @param port the server port, 0 for any free port
+   * @param backlog the maximum length of the queue of incoming connections
+   * @param bindAddr the local address to bind to, e.g. the loopback address
+   * @throws CommConnectionException if the server can not be created
+   */
+  public void start(int port, int backlog, InetAddress bindAddr) throws CommConnectionException {
+    server.start(port, backlog, bindAddr, listener);
+  }
+
+  /**
+   * Stops the server and disconnects all clients.
+   */
+  public void stop() {
+    server.stop();
+    for (ICommConnection client : clients) {
+      try {
+        client.disconnect();
+      } catch (CommConnectionException e) {
+        logger.trace("{} error disconnect client {}", client, e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * @return the server port or -1 if the server is not running
+   */
+  public int getPort() {
+    return server.getPort();
+  }
+
+  /**
+   * @return the number of connected clients
+   */
+  public int getClientCount() {
+    return clients.size();
+  }
+
+  private void serve(final ICommConnection connection) {
+    clients.add(connection);
+    DeviceSimulator.Session session = simulator.openSession(new DeviceSimulator.Output() {
+      @Override
+      public void write(byte[] data) throws CommConnectionException {
+        connection.send(data);
+      }
+    });
+    byte[] buffer = new byte[4096];
+    try {
+      while (session.isOpen() && connection.isConnected()) {
+        int count = connection.recvAvailable(buffer, 0, buffer.length);
+        if (count > 0) {
+          session.receive(buffer, 0, count);
+        }
+      }
+    } catch (CommConnectionException e) {
+      logger.debug("{} simulator client disconnected - {}", connection, e.getMessage());
+    } finally {
+      session.close();
+      clients.remove(connection);
+      try {
+        connection.disconnect();
+      } catch (CommConnectionException e) {
+        logger.trace("{} error disconnect client {}", connection, e.getMessage());
+      }
+    }
+  }
+}
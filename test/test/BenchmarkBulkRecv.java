@@ -0,0 +1,99 @@
+/*******************************************************************************
+ * Copyright (c) 2023 by metraTec GmbH
+ * All rights reserved.
+ *******************************************************************************/
+package test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+
+import com.metratec.lib.connection.CommConnectionException;
+import com.metratec.lib.connection.ICommConnection;
+import com.metratec.lib.connection.TcpConnection;
+
+/**
+ * Compares the per-byte receive loop with the bulk receive path. A local TCP server streams a
+ * block of data on every request, so no reader hardware is required.
+ *
+ * @author man
+ */
+public class BenchmarkBulkRecv {
+  private static final int ITERATIONS = 2000;
+  private static final int BLOCK_SIZE = 16 * 1024;
+
+  /**
+   * @param args program arguments - not used
+   * @throws Exception if an error occurs
+   */
+  public static void main(String[] args) throws Exception {
+    final ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+    Thread serverThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        byte[] block = new byte[BLOCK_SIZE];
+        Arrays.fill(block, (byte) 'A');
+        try (Socket client = server.accept()) {
+          InputStream in = client.getInputStream();
+          OutputStream out = client.getOutputStream();
+          while (in.read() >= 0) {
+            out.write(block);
+            out.flush();
+          }
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    });
+    serverThread.start();
+
+    ICommConnection comm = new TcpConnection("127.0.0.1", server.getLocalPort());
+    comm.connect();
+    byte[] b = new byte[BLOCK_SIZE];
+
+    // warm up both paths
+    runPerByte(comm, b, ITERATIONS / 4);
+    runBulk(comm, b, ITERATIONS / 4);
+
+    long perByte = runPerByte(comm, b, ITERATIONS);
+    long bulk = runBulk(comm, b, ITERATIONS);
+
+    comm.disconnect();
+    server.close();
+    serverThread.join();
+
+    System.out.println("Per-byte recv(): " + perByte / ITERATIONS + " ns per block");
+    System.out.println("Bulk recv(byte[]): " + bulk / ITERATIONS + " ns per block");
+    System.out.println("Speedup: " + String.format("%.1f", (double) perByte / bulk));
+  }
+
+  private static long runPerByte(ICommConnection comm, byte[] b, int iterations)
+      throws CommConnectionException {
+    long startTime = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      comm.send(new byte[] {'X'});
+      for (int n = 0; n < b.length; n++) {
+        int c = comm.recv();
+        if (c < 0) {
+          throw new CommConnectionException(ICommConnection.RECV_TIMEOUT);
+        }
+        b[n] = (byte) c;
+      }
+    }
+    return System.nanoTime() - startTime;
+  }
+
+  private static long runBulk(ICommConnection comm, byte[] b, int iterations)
+      throws CommConnectionException {
+    long startTime = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      comm.send(new byte[] {'X'});
+      comm.recv(b);
+    }
+    return System.nanoTime() - startTime;
+  }
+}
@@ -0,0 +1,112 @@
+/*******************************************************************************
+ * Copyright (c) 2023 by metraTec GmbH
+ * All rights reserved.
+ *******************************************************************************/
+package test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import com.metratec.lib.connection.CommandPipeline;
+import com.metratec.lib.connection.ICommConnection;
+import com.metratec.lib.connection.TcpConnection;
+
+/**
+ * Compares send/recv round trips with pipelined transactions. A local TCP server answers every
+ * REV command after a simulated link latency, so no reader hardware is required.
+ *
+ * @author man
+ */
+public class BenchmarkPipeline {
+  private static final int ITERATIONS = 500;
+  private static final int LATENCY_MS = 2;
+  private static final String RESPONSE = "Comet_ISO_B     0105\r";
+
+  /**
+   * @param args program arguments - not used
+   * @throws Exception if an error occurs
+   */
+  public static void main(String[] args) throws Exception {
+    final ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+    Thread serverThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try (Socket client = server.accept()) {
+          InputStream in = client.getInputStream();
+          final OutputStream out = client.getOutputStream();
+          /* the time stamps of the received commands, the responses are sent after the latency */
+          final BlockingQueue<Long> received = new LinkedBlockingQueue<>();
+          Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+              try {
+                while (true) {
+                  long due = received.take() + LATENCY_MS * 1000000L;
+                  long wait = due - System.nanoTime();
+                  if (wait > 0) {
+                    Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                  }
+                  out.write(RESPONSE.getBytes());
+                  out.flush();
+                }
+              } catch (InterruptedException | IOException e) {
+                // finished
+              }
+            }
+          });
+          writer.start();
+          int c;
+          while ((c = in.read()) >= 0) {
+            if (c == '\r') {
+              received.add(System.nanoTime());
+            }
+          }
+          writer.interrupt();
+          writer.join();
+        } catch (IOException | InterruptedException e) {
+          e.printStackTrace();
+        }
+      }
+    });
+    serverThread.start();
+
+    ICommConnection comm = new TcpConnection("127.0.0.1", server.getLocalPort());
+    comm.connect();
+
+    long startTime = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      comm.send("REV\r");
+      if (!comm.recv(13).equals(RESPONSE)) {
+        throw new Exception("Unexpected REV response");
+      }
+    }
+    long roundTrip = System.nanoTime() - startTime;
+
+    CommandPipeline pipeline = new CommandPipeline(comm, 16, '\r');
+    String[] commands = new String[ITERATIONS];
+    for (int i = 0; i < ITERATIONS; i++) {
+      commands[i] = "REV\r";
+    }
+    startTime = System.nanoTime();
+    for (String response : pipeline.transact(commands)) {
+      if (!response.equals(RESPONSE)) {
+        throw new Exception("Unexpected REV response");
+      }
+    }
+    long pipelined = System.nanoTime() - startTime;
+
+    comm.disconnect();
+    server.close();
+    serverThread.join();
+
+    System.out.println("Round trips: " + roundTrip / ITERATIONS + " ns per command");
+    System.out.println("Pipelined: " + pipelined / ITERATIONS + " ns per command");
+    System.out.println("Speedup: " + String.format("%.1f", (double) roundTrip / pipelined));
+  }
+}